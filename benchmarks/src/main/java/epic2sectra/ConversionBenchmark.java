@@ -0,0 +1,124 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Whole-report costs: converting a CSV report and a password protected
+ * XLSX report to a manifest (read, filter, dedup and write, as in step 5),
+ * and loading the processed manifests into a fresh dedup index (step 4).
+ * The conversions run on one thread and in stages (see StagedConversion).
+ * Scores are operations per second. Run with "-prof gc" for allocation
+ * rates.
+ *
+ * @author Geoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+    static final String PASSWORD = "Moops01";
+
+    @Param({ "300", "3000" })
+    public int rows;
+
+    @Param({ "false", "true" })
+    public boolean staged;
+
+    // processed manifests in the dedup lookback window
+    @Param({ "20" })
+    public int manifests;
+
+    File dir;
+    File csvReport;
+    File xlsxReport;
+    File manifestFile;
+    File processedDir;
+    List<String> recentDays;
+    Configuration config;
+    DedupIndex dedupIndex;
+
+    @Setup
+    public void setup() throws Exception {
+
+        dir = Files.createTempDirectory("epic2sectra-bench").toFile();
+        processedDir = new File(dir, "processed");
+        processedDir.mkdir();
+
+        ReportGenerator generator = new ReportGenerator(1);
+        csvReport = new File(dir, "LabSlidesOrderedTodayEUH_20230428_1150.csv");
+        generator.writeCsv(csvReport, rows);
+        xlsxReport = new File(dir, "Lab_Containers_20230428_1150.xlsx");
+        generator.writeXlsx(xlsxReport, rows, PASSWORD);
+        manifestFile = new File(dir, "manifest.csv");
+
+        recentDays = new ArrayList<>();
+        List<String> fileNameTimestamps = new ArrayList<>();
+        for(int x = 0; x < manifests; x++) {
+            String day = LocalDate.now().minusDays(x).format(DateTimeFormatter.BASIC_ISO_DATE);
+            recentDays.add(day);
+            fileNameTimestamps.add(day + "_0600");
+        }
+        // the manifests cover the first half of the report, so about half of
+        // the slides are duplicates
+        new ReportGenerator(2).writeManifests(processedDir, fileNameTimestamps, rows / manifests / 2 + 1);
+
+        config = new Configuration();
+        config.services = ReportGenerator.SERVICE_FILTER;
+        config.noUnstained = true;
+        config.stainRegex = ReportGenerator.STAIN_REGEX;
+        config.filterEngine = new FilterEngine(config.services, config.noUnstained, config.stainRegex);
+        config.excelPassword = PASSWORD;
+        config.excelPasswordBypass = "Hoops01";
+        config.stagedConversion = staged;
+
+        dedupIndex = new DedupIndex(new File(dir, "epic2sectra.dedup"));
+        dedupIndex.refresh(processedDir, recentDays, System.out);
+
+    }
+
+    @TearDown
+    public void tearDown() {
+        for(File file : processedDir.listFiles()) { file.delete(); }
+        for(File file : dir.listFiles()) { file.delete(); }
+        dir.delete();
+    }
+
+    Conversion convert(File report) throws Exception {
+        Conversion conversion = new Conversion(manifestFile, ConvertCsvOrXlsx.fileNameTimestamp(report), config.filterEngine, dedupIndex);
+        try {
+            ConvertCsvOrXlsx.readReport(report, conversion, config);
+        }
+        finally {
+            conversion.close();
+        }
+        return conversion;
+    }
+
+    @Benchmark
+    public Conversion convertCsv() throws Exception {
+        return convert(csvReport);
+    }
+
+    @Benchmark
+    public Conversion convertXlsx() throws Exception {
+        return convert(xlsxReport);
+    }
+
+    @Benchmark
+    public DedupIndex loadProcessedManifests() throws IOException {
+        DedupIndex index = new DedupIndex(new File(dir, "unused.dedup"));
+        index.refresh(processedDir, recentDays, System.out);
+        return index;
+    }
+
+}
@@ -0,0 +1,202 @@
+package epic2sectra;
+
+import java.io.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import org.apache.poi.poifs.crypt.EncryptionInfo;
+import org.apache.poi.poifs.crypt.EncryptionMode;
+import org.apache.poi.poifs.crypt.Encryptor;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Makes up Epic "Lab Container" reports and Sectra manifests for the
+ * benchmarks. The mix of services, stains, date formats and bad rows is
+ * roughly what we see in production, and the same seed always gives the
+ * same report.
+ *
+ * @author Geoff
+ */
+public class ReportGenerator {
+
+    static final String[] SERVICES = { "GI 2 Bx", "GI 3 Bx", "GI 4 Bx", "Derm", "Cyto" };
+    static final String[] STAINS = { "H&E", "PAS", "US 1", "Unstained", "Congo Red", "CK7", "CK20 w/ Quant", "GMS", "Trichrome", "H&E Recut for Levels", "AFB" };
+    static final String[] COLUMNS = { "Container", "Specialty", "Specimen/Case ID", "Container", "Task", "MRN", "Patient Enterprise ID", "Birth Date", "Patient Last Name", "Patient First Name", "Gender", "Collected", "Ordered Instant" };
+
+    // a service filter and stain regex like the ones in epic2sectra.properties
+    static final List<String> SERVICE_FILTER = Arrays.asList("GI 2 BX", "GI 3 BX", "GI 4 BX");
+    static final String STAIN_REGEX = ".*w/ Quant.*|^H&E Recut for.*|^Derm.*|.*FISH.*|.*Molecular.*|.*EM .*|.*Cyto.*|.*Smear.*|^Lifelink.*|^MA.* IHC|.*Micros.*|^Send.*|^Microarray.*|SurePath Slides|.*Stained Slide.*|Decal.*|Congo Red|(?i).*Prep.*";
+
+    final Random random;
+
+    public ReportGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    String pick(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    /**
+     * The cells of one report row, with dates formatted the way Epic's CSV
+     * export does. Every fiftieth row is missing its enterprise ID.
+     */
+    String[] row(int x) {
+        String accNo = String.format("S23-%05d", x / 4);
+        int part = x % 3 + 1;
+        int slide = x % 4 + 1;
+        return new String[] {
+            String.format("%s-A%d-%d", accNo, part, slide),
+            pick(SERVICES),
+            accNo,
+            String.format("%s, A, %d, %d", accNo, part, slide),
+            pick(STAINS),
+            "MRN" + x,
+            x % 50 == 49 ? "" : "E" + x,
+            "1/2/1960",
+            x % 50 == 0 ? "O\"Brien" : "Smith" + x,
+            "Ann",
+            random.nextBoolean() ? "Female" : "Male",
+            pick(new String[] { "4/27/2023 0930", "4/27/2023", "" }),
+            pick(new String[] { "4/28/2023 11:05 AM", "4/28/2023 13:05" })
+        };
+    }
+
+    /**
+     * Writes a CSV report like the ones the scheduled Epic job drops in
+     * epic-report-dir.
+     */
+    public void writeCsv(File file, int rows) throws IOException {
+        try(PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.print(csvLine(COLUMNS));
+            for(int x = 0; x < rows; x++) {
+                out.print(csvLine(row(x)));
+            }
+        }
+    }
+
+    static String csvLine(String[] cells) {
+        StringBuilder sb = new StringBuilder();
+        for(int x = 0; x < cells.length; x++) {
+            if(x > 0) { sb.append(','); }
+            sb.append('"').append(cells[x].replace("\"", "\"\"")).append('"');
+        }
+        return sb.append("\r\n").toString();
+    }
+
+    /**
+     * Builds the workbook of an XLSX report like the ones run by hand in
+     * Epic, with real date cells.
+     */
+    public XSSFWorkbook workbook(int rows) {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet("Report");
+        CellStyle dateStyle = workbook.createCellStyle();
+        dateStyle.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat("m/d/yyyy h:mm"));
+        Row header = sheet.createRow(0);
+        for(int y = 0; y < COLUMNS.length; y++) {
+            header.createCell(y).setCellValue(COLUMNS[y]);
+        }
+        for(int x = 0; x < rows; x++) {
+            String[] cells = row(x);
+            Row row = sheet.createRow(x + 1);
+            for(int y = 0; y < cells.length; y++) {
+                if(cells[y].isEmpty()) {
+                    continue;
+                }
+                Cell cell = row.createCell(y);
+                if(COLUMNS[y].equals("Birth Date") || COLUMNS[y].equals("Collected") || COLUMNS[y].equals("Ordered Instant")) {
+                    cell.setCellValue(excelDate(COLUMNS[y], cells[y]));
+                    cell.setCellStyle(dateStyle);
+                }
+                else {
+                    cell.setCellValue(cells[y]);
+                }
+            }
+        }
+        return workbook;
+    }
+
+    static LocalDateTime excelDate(String column, String text) {
+        switch(column) {
+            case "Birth Date": return Slide.parseDay(text).atStartOfDay();
+            case "Collected": return Slide.parseCollected(text);
+            default: return Slide.parseOrderedInstant(text);
+        }
+    }
+
+    /**
+     * Writes an XLSX report, encrypted with the password (if not null) the
+     * way Epic does it.
+     */
+    public void writeXlsx(File file, int rows, String password) throws Exception {
+        try(XSSFWorkbook workbook = workbook(rows)) {
+            if(password == null) {
+                try(OutputStream out = new FileOutputStream(file)) {
+                    workbook.write(out);
+                }
+                return;
+            }
+            try(POIFSFileSystem fs = new POIFSFileSystem()) {
+                Encryptor encryptor = new EncryptionInfo(EncryptionMode.agile).getEncryptor();
+                encryptor.confirmPassword(password);
+                try(OutputStream out = encryptor.getDataStream(fs)) {
+                    workbook.write(out);
+                }
+                try(OutputStream out = new FileOutputStream(file)) {
+                    fs.writeFilesystem(out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes processed manifests for the dedup index to load, one per
+     * report timestamp, each starting at a different slide.
+     */
+    public void writeManifests(File dir, List<String> fileNameTimestamps, int rowsEach) throws IOException {
+        int x = 0;
+        for(String fileNameTimestamp : fileNameTimestamps) {
+            File file = new File(dir, String.format("LabSlidesOrderedTodayEUH_%s.csv.sectra_%s.csv", fileNameTimestamp, fileNameTimestamp));
+            try(PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.println(Slide.toManifestHeaderString());
+                for(int y = 0; y < rowsEach; y++, x++) {
+                    Slide slide = slide(x);
+                    if(slide != null) {
+                        out.println(slide.toManifestString());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The slide for a report row, or null if the row has an error.
+     */
+    Slide slide(int x) {
+        String[] cells = row(x);
+        if(cells[6].isEmpty()) {
+            return null;
+        }
+        Slide slide = new Slide();
+        slide.slideBarCode = cells[0];
+        slide.service = cells[1];
+        slide.accNo = cells[2];
+        String[] container = cells[3].split(",");
+        slide.partId = container[1].trim();
+        slide.blockId = container[2].trim();
+        slide.slideNo = container[3].trim();
+        slide.stain = cells[4];
+        slide.mrn = cells[5];
+        slide.empi = cells[6];
+        slide.dob = Slide.parseDay(cells[7]);
+        slide.lastName = cells[8];
+        slide.firstName = cells[9];
+        slide.gender = cells[10].substring(0, 1);
+        slide.orderDt = Slide.parseOrderedInstant(cells[12]);
+        slide.collectionDt = cells[11].isEmpty() ? slide.orderDt : Slide.parseCollected(cells[11]);
+        return slide;
+    }
+
+}
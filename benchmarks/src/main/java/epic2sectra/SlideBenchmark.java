@@ -0,0 +1,148 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.csv.*;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per-row costs: loading a slide from a CSV record and from an XLSX row
+ * (through a SlideBinder set up once per report, as readReport does it),
+ * writing it as a manifest line and reading it back from a processed
+ * manifest. The two parse benchmarks compare reading a whole CSV report
+ * with commons-csv and with CsvTokenizer. Each invocation does a whole report's worth of rows, so the
+ * scores are reports per second. Run with "-prof gc" for allocation rates.
+ *
+ * @author Geoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SlideBenchmark {
+
+    @Param({ "300", "3000" })
+    public int rows;
+
+    String reportCsv;
+    byte[] reportBytes;
+    List<CSVRecord> reportRecords;
+    SlideBinder csvBinder;
+    XSSFWorkbook workbook;
+    List<Row> reportRows;
+    SlideBinder rowBinder;
+    List<Slide> slides;
+    List<CSVRecord> manifestRecords;
+
+    @Setup
+    public void setup() throws IOException {
+
+        ReportGenerator generator = new ReportGenerator(1);
+
+        StringBuilder csv = new StringBuilder(ReportGenerator.csvLine(ReportGenerator.COLUMNS));
+        for(int x = 0; x < rows; x++) {
+            csv.append(ReportGenerator.csvLine(generator.row(x)));
+        }
+        reportCsv = csv.toString();
+        reportBytes = reportCsv.getBytes(Charset.defaultCharset());
+        reportRecords = parse(reportCsv);
+        csvBinder = SlideBinder.forCsv(reportRecords.get(0).getParser().getHeaderMap());
+
+        workbook = generator.workbook(rows);
+        Sheet sheet = workbook.getSheetAt(0);
+        Map<String, Integer> columnIndexByNameMap = new HashMap<>();
+        Row header = sheet.getRow(0);
+        for(int y = 0; y < ReportGenerator.COLUMNS.length; y++) {
+            columnIndexByNameMap.put(header.getCell(y).getStringCellValue(), y);
+        }
+        columnIndexByNameMap.put("Slide Bar Code", 0); // Epic uses "Container" for two different columns
+        rowBinder = SlideBinder.forXlsx(columnIndexByNameMap);
+        reportRows = new ArrayList<>();
+        for(int x = 1; x <= rows; x++) {
+            reportRows.add(sheet.getRow(x));
+        }
+
+        slides = new ArrayList<>();
+        StringBuilder manifest = new StringBuilder(Slide.toManifestHeaderString()).append("\r\n");
+        for(int x = 0; x < rows; x++) {
+            Slide slide = generator.slide(x);
+            if(slide != null) {
+                slides.add(slide);
+                manifest.append(slide.toManifestString()).append("\r\n");
+            }
+        }
+        manifestRecords = parse(manifest.toString());
+
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        workbook.close();
+    }
+
+    static List<CSVRecord> parse(String csv) throws IOException {
+        return CSVFormat.DEFAULT.withFirstRecordAsHeader()
+            .withIgnoreHeaderCase()
+            .withTrim()
+            .parse(new StringReader(csv))
+            .getRecords();
+    }
+
+    @Benchmark
+    public void loadCsvRecord(Blackhole bh) {
+        for(CSVRecord record : reportRecords) {
+            bh.consume(csvBinder.load(record));
+        }
+    }
+
+    @Benchmark
+    public void parseCsvReport(Blackhole bh) throws IOException {
+        CSVParser parser = CSVFormat.DEFAULT.withFirstRecordAsHeader()
+            .withIgnoreHeaderCase()
+            .withTrim()
+            .parse(new StringReader(reportCsv));
+        SlideBinder binder = SlideBinder.forCsv(parser.getHeaderMap());
+        for(CSVRecord record : parser) {
+            bh.consume(binder.load(record));
+        }
+    }
+
+    @Benchmark
+    public void tokenizeCsvReport(Blackhole bh) throws IOException {
+        CsvTokenizer records = new CsvTokenizer(reportBytes, Charset.defaultCharset());
+        SlideBinder binder = SlideBinder.forCsv(records.headerMap);
+        while(records.next()) {
+            bh.consume(binder.load(records));
+        }
+    }
+
+    @Benchmark
+    public void loadXlsxRow(Blackhole bh) {
+        for(Row row : reportRows) {
+            bh.consume(rowBinder.load(row));
+        }
+    }
+
+    @Benchmark
+    public void toManifestString(Blackhole bh) {
+        for(Slide slide : slides) {
+            bh.consume(slide.toManifestString());
+        }
+    }
+
+    @Benchmark
+    public void loadFromManifest(Blackhole bh) {
+        for(CSVRecord record : manifestRecords) {
+            bh.consume(Slide.loadFromManifest(record));
+        }
+    }
+
+}
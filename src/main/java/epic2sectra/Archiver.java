@@ -0,0 +1,179 @@
+package epic2sectra;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Moves files that are past the lookback windows out of the directories
+ * that are scanned on every pass, into one zip per month per directory in
+ * archive-dir:
+ *
+ *   epic-reports-yyyyMM.zip        SENT_TO_SECTRA and REJECTED reports from epic-report-dir
+ *   epic-missed-reports-yyyyMM.zip the same from epic-missed-report-dir
+ *   manifests-yyyyMM.zip           manifests from sectra-processed-dir
+ *
+ * The month is the one in the file name. Reports are archived once their
+ * day is older than report-file-name-lookback-days, and manifests once it
+ * is older than processed-file-name-lookback-days, so nothing the next pass
+ * could look at is ever moved. Reports that were never converted are left
+ * alone.
+ *
+ * archive.index lists each archived file name and its zip, so find() and
+ * singleton mode (the -a option) can get a report back out. A file is only
+ * deleted after its zip has been written and its index line fsynced; if a
+ * crash comes in between, the next run just archives it again.
+ *
+ * Archiving runs at most every archive-interval-hours: after the pass when
+ * started by the scheduled task, and on a background thread in daemon mode.
+ *
+ * @author Geoff
+ */
+public class Archiver {
+
+    static final String INDEX_FILE_NAME = "archive.index";
+    static final String LAST_RUN_FILE_NAME = "archive.last";
+
+    public static boolean isDue(Configuration config) {
+        File lastRunFile = new File(config.archiveDir, LAST_RUN_FILE_NAME);
+        return !lastRunFile.exists() || ConvertCsvOrXlsx.clock.millis() - lastRunFile.lastModified() >= config.archiveIntervalHours * 3600000L;
+    }
+
+    /**
+     * Archives everything that is past the lookback windows.
+     */
+    public static void archive(Configuration config, PrintStream out) throws IOException {
+
+        Files.createDirectories(config.archiveDir.toPath());
+        // marked before the work, so a run that fails isn't retried on
+        // every pass
+        File lastRunFile = new File(config.archiveDir, LAST_RUN_FILE_NAME);
+        new FileOutputStream(lastRunFile).close();
+        lastRunFile.setLastModified(ConvertCsvOrXlsx.clock.millis());
+
+        String oldestReportDay = oldestDay(config.reportFileNameLookbackDays);
+        String oldestManifestDay = oldestDay(config.processedFileNameLookbackDays);
+
+        // files by the zip they go into
+        Map<String, List<File>> filesByZip = new TreeMap<>();
+        for(FileDiscovery.ParsedName name : FileDiscovery.scan(config.epicReportDir, FileDiscovery::parseReportName)) {
+            if(name.isProcessed() && name.day.compareTo(oldestReportDay) < 0) {
+                filesByZip.computeIfAbsent(zipName("epic-reports", name), k -> new ArrayList<>()).add(name.file);
+            }
+        }
+        for(FileDiscovery.ParsedName name : FileDiscovery.scan(config.epicMissedReportDir, FileDiscovery::parseReportName)) {
+            if(name.isProcessed() && name.day.compareTo(oldestReportDay) < 0) {
+                filesByZip.computeIfAbsent(zipName("epic-missed-reports", name), k -> new ArrayList<>()).add(name.file);
+            }
+        }
+        for(FileDiscovery.ParsedName name : FileDiscovery.scan(config.sectraProcessedDir, FileDiscovery::parseManifestName)) {
+            if(name.day.compareTo(oldestManifestDay) < 0) {
+                filesByZip.computeIfAbsent(zipName("manifests", name), k -> new ArrayList<>()).add(name.file);
+            }
+        }
+
+        if(filesByZip.isEmpty()) {
+            return;
+        }
+
+        out.println();
+        out.println(String.format("%s - archiving files older than the lookback windows", new Date()));
+
+        for(Map.Entry<String, List<File>> entry : filesByZip.entrySet()) {
+
+            File zipFile = new File(config.archiveDir, entry.getKey());
+            List<File> files = entry.getValue();
+
+            // the zip file system writes the whole zip out again (to a
+            // temporary file) when it is closed
+            Map<String, String> env = new HashMap<>();
+            env.put("create", "true");
+            try(FileSystem zip = FileSystems.newFileSystem(URI.create("jar:" + zipFile.toURI()), env)) {
+                for(File file : files) {
+                    Files.copy(file.toPath(), zip.getPath(file.getName()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+
+            StringBuilder lines = new StringBuilder();
+            for(File file : files) {
+                lines.append(file.getName()).append('\t').append(zipFile.getName()).append('\n');
+            }
+            try(FileOutputStream indexOutputStream = new FileOutputStream(new File(config.archiveDir, INDEX_FILE_NAME), true)) {
+                indexOutputStream.write(lines.toString().getBytes("UTF-8"));
+                indexOutputStream.getFD().sync();
+            }
+
+            for(File file : files) {
+                Files.delete(file.toPath());
+            }
+
+            out.println(String.format("    %4d files to %s", files.size(), zipFile.getPath()));
+            EventLog.event("archived", config, "zip", zipFile.getName(), "files", files.size());
+
+        }
+
+    }
+
+    /**
+     * Looks an archived file up in the index. The name can be the one it
+     * was archived under (LabSlidesOrderedTodayEUH_20230428_1150.SENT_TO_SECTRA_028.csv)
+     * or the report's original name (LabSlidesOrderedTodayEUH_20230428_1150.csv).
+     * Returns the file's name in the zip and the zip, or null if it isn't
+     * there.
+     */
+    public static String[] find(File archiveDir, String fileName) throws IOException {
+        File indexFile = new File(archiveDir, INDEX_FILE_NAME);
+        if(!indexFile.exists()) {
+            return null;
+        }
+        String[] found = null;
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if(fields.length != 2) {
+                    continue; // torn write at the end of the index
+                }
+                if(fields[0].equalsIgnoreCase(fileName)) {
+                    return fields;
+                }
+                FileDiscovery.ParsedName name = FileDiscovery.parseReportName(new File(fields[0]));
+                if(found == null && name != null && name.isProcessed() && fields[0].replace(name.processedSuffix, "").equalsIgnoreCase(fileName)) {
+                    found = fields;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Copies an archived file into targetDir, under the name it was
+     * archived with. Returns the copy, or null if the file isn't in the
+     * archive. Refuses to overwrite a file that is already there.
+     */
+    public static File extract(File archiveDir, String fileName, File targetDir) throws IOException {
+        String[] found = find(archiveDir, fileName);
+        if(found == null) {
+            return null;
+        }
+        File target = new File(targetDir, found[0]);
+        try(FileSystem zip = FileSystems.newFileSystem(URI.create("jar:" + new File(archiveDir, found[1]).toURI()), new HashMap<String, String>())) {
+            Files.copy(zip.getPath(found[0]), target.toPath());
+        }
+        return target;
+    }
+
+    static String zipName(String kind, FileDiscovery.ParsedName name) {
+        return String.format("%s-%s.zip", kind, name.day.substring(0, 6));
+    }
+
+    // the earliest day the lookback window still covers (yyyyMMdd)
+    private static String oldestDay(int lookbackDays) {
+        Calendar cal = ConvertCsvOrXlsx.calendar();
+        cal.add(Calendar.DATE, -lookbackDays);
+        return new SimpleDateFormat("yyyyMMdd").format(cal.getTime());
+    }
+
+}
@@ -0,0 +1,101 @@
+package epic2sectra;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Settings for one run of the converter, as read from the command line
+ * and/or the properties file in step 1 of ConvertCsvOrXlsx.main. There is
+ * one of these for each pipeline.
+ *
+ * @author Geoff
+ */
+public class Configuration {
+
+    // the pipeline's name (see Pipeline), null if the properties file
+    // doesn't define pipelines
+    public String pipeline;
+
+    public List<String> services = new ArrayList<>();
+    public File singletonFile;
+
+    public File propertiesFile;
+    public File logFile;
+    public File epicReportDir;
+    public File epicMissedReportDir;
+    public File sectraInboxDir;
+    public File sectraProcessedDir;
+    public Integer reportFileNameLookbackDays;
+    public Integer processedFileNameLookbackDays;
+    public Boolean noUnstained;
+    public String stainRegex;
+    public FilterEngine filterEngine; // built from the three settings above
+    public String excelPassword;
+    public String excelPasswordBypass;
+    public File dedupIndexFile;
+
+    // which excel password last opened each kind of XLSX report, next to
+    // the dedup index (see XlsxReportReader), null if not kept
+    public File passwordIndexFile;
+
+    public List<FileReadiness> fileReadiness;
+    public int fileReadinessMaxWaitSeconds;
+
+    // parallel conversion (see ParallelConversion and InboxBudget), off if
+    // parallelFiles is 0
+    public int parallelFiles = 0;
+    public int inboxBudgetManifests = 0;
+    public int inboxBudgetSlides = 0;
+    public int inboxBudgetWindowMinutes = 60;
+    public File inboxBudgetFile;
+
+    // daemon mode (see WatchDaemon)
+    public boolean daemon;
+    public int daemonPollSeconds = 300;
+
+    // threads shared by the pipelines, 0 for one per pipeline (see Pipeline)
+    public int pipelineThreads = 0;
+
+    // metrics (see Metrics), served over HTTP in daemon mode if metricsPort
+    // is not 0 and written to metricsFile at the end of a scheduled run
+    public int metricsPort = 0;
+    public File metricsFile;
+
+    // sends to the Sectra inbox are journaled here so an interrupted one can
+    // be finished or rolled back on the next pass (see HandoffJournal)
+    public HandoffJournal handoffJournal;
+
+    // delta mode for the "Today" reports (see DeltaIndex), null if off
+    public DeltaIndex deltaIndex;
+
+    // the charset of the CSV Epic reports (see CsvTokenizer)
+    public Charset reportCharset = Charset.defaultCharset();
+
+    // each report is read, bound and written on three threads (see
+    // StagedConversion)
+    public boolean stagedConversion = false;
+
+    // files past the lookback windows are moved into zips here (see
+    // Archiver), off if archiveDir is null
+    public File archiveDir;
+    public int archiveIntervalHours = 24;
+
+    // manifests wait in outboxDir until the Sectra inbox has room for them
+    // (see Outbox), off if outboxDir is null
+    public File outboxDir;
+    public int inboxMaxManifests = 1;
+    public int outboxAlarmManifests = 20;
+    public int outboxAlarmMinutes = 30;
+
+    // manifests over the size limit are split instead of rejected (see
+    // ManifestSplitter), only with an outbox
+    public boolean splitManifests = false;
+
+    // how long each report took to convert, by file name, for the replay
+    // (see ReplaySimulator), null if not kept
+    public Map<String, Long> conversionNanosByFile;
+
+}
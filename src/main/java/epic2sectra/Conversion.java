@@ -0,0 +1,251 @@
+package epic2sectra;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The filtering, deduplication and manifest writing for one Epic report.
+ * Slides are handed to accept() one at a time as they are read from the
+ * report and go straight to the manifest file if they pass, so a report is
+ * never held in memory no matter how many rows it has.
+ *
+ * When several reports are converted at once (see ParallelConversion),
+ * the duplicate check has to wait until the newer reports have been
+ * sent. In that case slides that pass the other filters are parked in a
+ * candidates file next to the manifest, and applyDedup() does the
+ * duplicate check and writes the manifest later.
+ *
+ * @author Geoff
+ */
+public class Conversion {
+
+    final FilterEngine filterEngine;
+    final DedupIndex dedupIndex; // null if duplicate checking is disabled or deferred
+    final String fileNameTimestamp;
+
+    static final int ROWS_PROCESSED_MAX_ALLOWED = 300; // we would not do this many GI biopsy slides in a day
+
+    public int rowsProcessedMaxAllowed = ROWS_PROCESSED_MAX_ALLOWED;
+
+    public int rowsProcessed = 0;
+    public int rowsSkipped = 0;
+    public int rowsSkippedError = 0;
+    public int rowsSkippedService = 0;
+    public int rowsSkippedUnstained = 0;
+    public int rowsSkippedStainRegex = 0;
+    public int rowsSkippedDuplicate = 0;
+    public int rowsStainUpdateAllowed = 0;
+    public int rowsSkippedUnchanged = 0;
+    public long conversionNanos = 0; // reading the report, filtering and writing the manifest
+
+    public final Set<String> errorSet = new HashSet<>();
+    public final Set<String> filteredStainSet = new HashSet<>();
+    public final FilterEngine.Stats filterStats = new FilterEngine.Stats();
+
+    // delta mode (see DeltaIndex): the fingerprints of this report's rows,
+    // and the previous "Today" report for the same day (null if none)
+    public DeltaIndex.Fingerprints rowFingerprints;
+    public DeltaIndex.Report previousReport;
+
+    final File manifestFile;
+    final ManifestWriter manifestWriter;
+
+    // only used when the duplicate check is deferred
+    final File candidatesFile;
+    final DataOutputStream candidatesOutputStream;
+    final List<String[]> sentSlides = new ArrayList<>();
+
+    public Conversion(File manifestFile, String fileNameTimestamp, FilterEngine filterEngine, DedupIndex dedupIndex) throws IOException {
+        this(manifestFile, fileNameTimestamp, filterEngine, dedupIndex, false);
+    }
+
+    public Conversion(File manifestFile, String fileNameTimestamp, FilterEngine filterEngine, DedupIndex dedupIndex, boolean deferDedup) throws IOException {
+        this.manifestFile = manifestFile;
+        this.fileNameTimestamp = fileNameTimestamp;
+        this.filterEngine = filterEngine;
+        if(deferDedup) {
+            this.dedupIndex = null;
+            this.manifestWriter = null;
+            this.candidatesFile = new File(manifestFile.getPath() + ".candidates");
+            this.candidatesOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(candidatesFile), 1 << 16));
+        }
+        else {
+            this.dedupIndex = dedupIndex;
+            this.manifestWriter = new ManifestWriter(manifestFile);
+            this.candidatesFile = null;
+            this.candidatesOutputStream = null;
+            manifestWriter.writeHeader();
+        }
+    }
+
+    /**
+     * In delta mode, records the row's fingerprint and returns true if the
+     * row was already handled in the previous "Today" report, in which case
+     * it should be skipped. Only called when rowFingerprints is set.
+     */
+    public boolean unchanged(long fingerprint) {
+        rowFingerprints.add(fingerprint);
+        if(previousReport != null && previousReport.rows.contains(fingerprint)) {
+            rowsSkipped++;
+            rowsSkippedUnchanged++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A row that could not be loaded (errors is SlideBinder.errors).
+     */
+    public void reject(int errors) {
+        rowsSkipped++;
+        rowsSkippedError++;
+        SlideBinder.addErrorMessages(errors, errorSet);
+    }
+
+    public void accept(Slide slide) {
+
+        slide.fileNameTimestamp = fileNameTimestamp;
+
+        long filterStart = System.nanoTime();
+        FilterEngine.Verdict verdict = filterEngine.check(slide.service, slide.stain, filterStats);
+        Metrics.rowFilter.record(System.nanoTime() - filterStart);
+
+        switch(verdict) {
+            case SERVICE:
+                rowsSkipped++;
+                rowsSkippedService++;
+                return;
+            case UNSTAINED:
+                rowsSkipped++;
+                rowsSkippedUnstained++;
+                return;
+            case STAIN_REGEX:
+                rowsSkipped++;
+                rowsSkippedStainRegex++;
+                filteredStainSet.add(slide.stain);
+                return;
+            default:
+                break;
+        }
+
+        if(candidatesOutputStream != null) {
+            try {
+                candidatesOutputStream.writeUTF(slide.slideBarCode);
+                candidatesOutputStream.writeUTF(slide.stain);
+                candidatesOutputStream.writeUTF(slide.toManifestString());
+            }
+            catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+
+        if(isDuplicate(dedupIndex, slide.slideBarCode, slide.stain)) {
+            return;
+        }
+
+        rowsProcessed++;
+        if(dedupIndex != null) {
+            sentSlides.add(new String[] { slide.slideBarCode, slide.stain });
+        }
+
+        // The manifest file is on disk, so there is no harm in writing past
+        // rowsProcessedMaxAllowed. The caller just won't move it to the
+        // inbox, and the full manifest is there for anyone who wants to
+        // split it up by hand.
+        try {
+            long writeStart = System.nanoTime();
+            manifestWriter.write(slide);
+            Metrics.rowWrite.record(System.nanoTime() - writeStart);
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+    }
+
+    private boolean isDuplicate(DedupIndex dedupIndex, String slideBarCode, String stain) {
+
+        if(dedupIndex != null) {
+            DedupIndex.Entry previousSlide = dedupIndex.get(slideBarCode);
+            if(previousSlide != null) {
+                // let stain updates go through
+                if(!stain.equals(previousSlide.stain) && fileNameTimestamp.compareTo(previousSlide.fileNameTimestamp) >= 0) {
+                    rowsStainUpdateAllowed++;
+                }
+                else {
+                    rowsSkipped++;
+                    rowsSkippedDuplicate++;
+                    return true;
+                }
+            }
+        }
+
+        return false;
+
+    }
+
+    public void close() throws IOException {
+        if(candidatesOutputStream != null) {
+            candidatesOutputStream.close();
+            return;
+        }
+        manifestWriter.close();
+    }
+
+    /**
+     * Does the deferred duplicate check against the index as it is now and
+     * writes the manifest. The slides that make it into the manifest are
+     * only added to the index by commit(), once the manifest has been sent.
+     */
+    public void applyDedup(DedupIndex dedupIndex) throws IOException {
+
+        try (
+            DataInputStream candidates = new DataInputStream(new BufferedInputStream(new FileInputStream(candidatesFile), 1 << 16));
+            ManifestWriter manifestWriter = new ManifestWriter(manifestFile);
+        ) {
+
+            manifestWriter.writeHeader();
+
+            while(true) {
+                String slideBarCode;
+                try { slideBarCode = candidates.readUTF(); } catch(EOFException e) { break; }
+                String stain = candidates.readUTF();
+                String manifestString = candidates.readUTF();
+                if(isDuplicate(dedupIndex, slideBarCode, stain)) {
+                    continue;
+                }
+                rowsProcessed++;
+                long writeStart = System.nanoTime();
+                manifestWriter.writeLine(manifestString);
+                Metrics.rowWrite.record(System.nanoTime() - writeStart);
+                sentSlides.add(new String[] { slideBarCode, stain });
+            }
+
+        }
+        finally {
+            candidatesFile.delete();
+        }
+
+    }
+
+    /**
+     * Adds the slides in the manifest to the index once it has been sent,
+     * so reports converted after it see them as duplicates even before
+     * Sectra has processed the manifest.
+     */
+    public void commit(DedupIndex dedupIndex) {
+        dedupIndex.mergeAll(sentSlides, fileNameTimestamp);
+    }
+
+    /**
+     * Throws away the candidates file if the conversion never got as far
+     * as applyDedup().
+     */
+    public void discard() {
+        if(candidatesFile != null) {
+            candidatesFile.delete();
+        }
+    }
+
+}
@@ -3,17 +3,12 @@ package epic2sectra;
 import java.io.*;
 import java.net.InetAddress;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.time.Clock;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.apache.commons.cli.*;
-import org.apache.commons.csv.*;
-import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbookFactory;
 
 /**
  *
@@ -21,23 +16,23 @@ import org.apache.poi.xssf.usermodel.XSSFWorkbookFactory;
  */
 public class ConvertCsvOrXlsx {
 
+    // what time it is as far as the lookback windows, manifest names, the
+    // inbox budget and the delta index are concerned (ReplaySimulator sets
+    // it to the simulated time)
+    static Clock clock = Clock.systemDefaultZone();
+
     public static void main(String[] args) throws IOException {
 
         List<String> services = new ArrayList<>();
         File singletonFile = null;
-
-        File propertiesFile = null;
-        File logFile = null;
-        File epicReportDir = null;
-        File epicMissedReportDir = null;
-        File sectraInboxDir = null;
-        File sectraProcessedDir = null;
-        Integer reportFileNameLookbackDays = null;
-        Integer processedFileNameLookbackDays = null;
         Boolean noUnstained = null;
         String stainRegex = null;
         String excelPassword = null;
-        String excelPasswordBypass = null;
+
+        File propertiesFile = null;
+        File logFile = null;
+        boolean daemon = false;
+        List<Configuration> pipelines = new ArrayList<>();
         
         PrintStream out = System.out;
 
@@ -67,6 +62,15 @@ public class ConvertCsvOrXlsx {
             optionPropertiesFileName.setType(String.class);
             options.addOption(optionPropertiesFileName);
 
+            Option optionArchiveDir = new Option("a", "archive-dir", true, "if the Epic report file isn't there, get it from this archive (see archive-dir in the properties file)");
+            optionArchiveDir.setRequired(false);
+            optionArchiveDir.setType(String.class);
+            options.addOption(optionArchiveDir);
+
+            Option optionDaemon = new Option("d", "daemon", false, "stay resident and watch the Epic report directories instead of processing once and exiting (requires a properties file)");
+            optionDaemon.setRequired(false);
+            options.addOption(optionDaemon);
+
             CommandLineParser parser = new DefaultParser();
             HelpFormatter formatter = new HelpFormatter();
             CommandLine cmd = null; // not a good practice
@@ -88,34 +92,40 @@ public class ConvertCsvOrXlsx {
                     try(InputStream inputStream = new FileInputStream(propertiesFile)) {
                         Properties props = new Properties();
                         props.load(inputStream);
-                        if(props.get("services") != null && (props.getProperty("services")).length() > 0) {
-                            for(String service : props.getProperty("services").split(",")) { services.add(service.trim().toUpperCase()); }
-                        }
                         if(props.getProperty("log-file") != null && (props.getProperty("log-file")).length() > 0) { logFile = new File(props.getProperty("log-file")); }
-                        if(props.getProperty("epic-report-dir") != null && (props.getProperty("epic-report-dir")).length() > 0) { epicReportDir = new File(props.getProperty("epic-report-dir")); }
-                        if(props.getProperty("epic-missed-report-dir") != null && (props.getProperty("epic-missed-report-dir")).length() > 0) { epicMissedReportDir = new File(props.getProperty("epic-missed-report-dir")); }
-                        if(props.getProperty("sectra-inbox-dir") != null && (props.getProperty("sectra-inbox-dir")).length() > 0) { sectraInboxDir = new File(props.getProperty("sectra-inbox-dir")); }
-                        if(props.getProperty("sectra-processed-dir") != null && (props.getProperty("sectra-processed-dir")).length() > 0) { sectraProcessedDir = new File(props.getProperty("sectra-processed-dir")); }
-                        if(props.getProperty("report-file-name-lookback-days") != null && (props.getProperty("report-file-name-lookback-days")).length() > 0) { reportFileNameLookbackDays = Integer.valueOf(props.getProperty("report-file-name-lookback-days")); }
-                        if(props.getProperty("processed-file-name-lookback-days") != null && (props.getProperty("processed-file-name-lookback-days")).length() > 0) { processedFileNameLookbackDays = Integer.valueOf(props.getProperty("processed-file-name-lookback-days")); }
-                        if(props.getProperty("no-unstained") != null) {
-                            noUnstained = props.getProperty("no-unstained").length() > 0; // any value in no-unstained turns it on
+                        File eventLogFile = null;
+                        int logFileMaxMegabytes = 50;
+                        int logFileMaxFiles = 10;
+                        if(props.getProperty("event-log-file") != null && (props.getProperty("event-log-file")).length() > 0) { eventLogFile = new File(props.getProperty("event-log-file")); }
+                        else { eventLogFile = Pipeline.pipelineFile(logFile, "events"); }
+                        if(props.getProperty("log-file-max-mb") != null && (props.getProperty("log-file-max-mb")).length() > 0) { logFileMaxMegabytes = Integer.valueOf(props.getProperty("log-file-max-mb")); }
+                        if(props.getProperty("log-file-max-files") != null && (props.getProperty("log-file-max-files")).length() > 0) { logFileMaxFiles = Integer.valueOf(props.getProperty("log-file-max-files")); }
+
+                        daemon = cmd.hasOption(optionDaemon);
+
+                        // written on a background thread by log4j (see EventLog)
+                        out = EventLog.open(logFile, eventLogFile, logFileMaxMegabytes, logFileMaxFiles);
+
+                        // a properties file can define several pipelines
+                        // (see Pipeline), each converted with its own
+                        // settings in this one process
+                        List<String> pipelineNames = new ArrayList<>();
+                        if(props.getProperty("pipelines") != null && (props.getProperty("pipelines")).length() > 0) {
+                            for(String pipelineName : props.getProperty("pipelines").split(",")) { pipelineNames.add(pipelineName.trim()); }
                         }
-                        if(props.get("stain-regex") != null && (props.getProperty("stain-regex")).length() > 0) { stainRegex = props.getProperty("stain-regex"); }
-                        if(props.get("excel-password") != null && (props.getProperty("excel-password")).length() > 0) { excelPassword = props.getProperty("excel-password"); }
-                        if(props.get("excel-password-bypass") != null && (props.getProperty("excel-password-bypass")).length() > 0) { excelPasswordBypass = props.getProperty("excel-password-bypass"); }
-
-                        out = new PrintStream(new FileOutputStream(logFile.toString(), true));
-
-                        if(services.isEmpty() || epicReportDir == null || epicMissedReportDir == null || sectraInboxDir == null || sectraProcessedDir == null || reportFileNameLookbackDays == null || processedFileNameLookbackDays == null || noUnstained == null || stainRegex == null || excelPassword == null || excelPasswordBypass == null) {
-                            out.println();
-                            out.println(String.format("%s - ERROR: invalid properties file", new Date()));
-                            System.exit(1);
+                        else {
+                            pipelineNames.add(null);
+                        }
+                        for(String pipelineName : pipelineNames) {
+                            pipelines.add(configure(props, pipelineName, propertiesFile, logFile, daemon, out));
                         }
 
                     }
 
                 }
+                else if(cmd.hasOption(optionDaemon)) {
+                    throw new org.apache.commons.cli.ParseException("daemon mode requires a properties file");
+                }
                 else {
 
                     // This is used if you are on manual override and want to
@@ -136,6 +146,21 @@ public class ConvertCsvOrXlsx {
                     if(cmd.hasOption(optionStainRegex)) { stainRegex = cmd.getOptionValue(optionStainRegex); }
 
                     singletonFile = new File(cmd.getArgs()[0]);
+                    if(!singletonFile.exists() && cmd.hasOption(optionArchiveDir)) {
+                        // an old report that has been archived is copied
+                        // into the current directory, under the name it was
+                        // archived with
+                        try {
+                            File archivedFile = Archiver.extract(new File(cmd.getOptionValue(optionArchiveDir)), singletonFile.getName(), new File("."));
+                            if(archivedFile != null) {
+                                out.println(String.format("%s - copied %s from the archive", new Date(), archivedFile.getName()));
+                                singletonFile = archivedFile;
+                            }
+                        }
+                        catch(IOException e) {
+                            out.println(String.format("%s - WARNING: could not get %s from the archive (%s)", new Date(), singletonFile.getName(), e.getMessage()));
+                        }
+                    }
                     if(cmd.getArgs().length > 1) { excelPassword = cmd.getArgs()[1]; } // if processing a CSV, you don't need an Excel password
 
                 }
@@ -152,6 +177,328 @@ public class ConvertCsvOrXlsx {
             
         }
 
+        if(singletonFile != null) {
+            Configuration config = new Configuration();
+            config.services = services;
+            config.singletonFile = singletonFile;
+            config.noUnstained = noUnstained;
+            config.stainRegex = stainRegex;
+            config.excelPassword = excelPassword;
+            try {
+                config.filterEngine = new FilterEngine(services, noUnstained, stainRegex);
+            }
+            catch(IllegalArgumentException e) {
+                out.println();
+                out.println(String.format("%s - ERROR: %s", new Date(), e.getMessage()));
+                System.exit(1);
+            }
+            System.exit(convert(config, null, out).exitCode);
+        }
+
+        try {
+            Pipeline.checkDistinct(pipelines);
+        }
+        catch(IllegalArgumentException e) {
+            out.println();
+            out.println(String.format("%s - ERROR: %s", new Date(), e.getMessage()));
+            System.exit(1);
+        }
+
+        // the log, the metrics and the daemon settings are for the whole
+        // process, so they are taken from the first pipeline
+        Configuration config = pipelines.get(0);
+
+        if(daemon) {
+            // only returns when interrupted, which means shut down
+            new WatchDaemon(pipelines, out).run();
+            System.exit(0);
+        }
+
+        List<Pipeline> round = new ArrayList<>();
+        for(Configuration pipelineConfig : pipelines) { round.add(new Pipeline(pipelineConfig)); }
+        ExecutorService executor = Executors.newFixedThreadPool(config.pipelineThreads > 0 ? config.pipelineThreads : pipelines.size());
+
+        long start = System.currentTimeMillis();
+        Map<Pipeline, RunResult> resultByPipeline = Pipeline.runRound(round, executor, out);
+        executor.shutdown();
+        for(Configuration pipelineConfig : pipelines) {
+            if(pipelineConfig.archiveDir != null && Archiver.isDue(pipelineConfig)) {
+                archive(pipelineConfig, out);
+            }
+        }
+        Metrics.lastPassTimestamp.set(System.currentTimeMillis() / 1000);
+
+        // the exit code is 1 if any pipeline found its inbox not empty,
+        // otherwise the result is the first one that isn't NOTHING_TO_DO
+        RunResult result = RunResult.NOTHING_TO_DO;
+        for(RunResult pipelineResult : resultByPipeline.values()) {
+            if(pipelineResult.exitCode > result.exitCode || (pipelineResult.exitCode == result.exitCode && result == RunResult.NOTHING_TO_DO)) { result = pipelineResult; }
+        }
+
+        // a summary of this run for monitoring to pick up
+        try {
+            Map<String, String> runInfo = new LinkedHashMap<>();
+            runInfo.put("result", result.name());
+            for(Map.Entry<Pipeline, RunResult> entry : resultByPipeline.entrySet()) {
+                if(entry.getKey().name() != null) { runInfo.put("result." + entry.getKey().name(), entry.getValue().name()); }
+            }
+            runInfo.put("started", new Date(start).toInstant().toString());
+            runInfo.put("finished", new Date().toInstant().toString());
+            Metrics.writeJson(config.metricsFile, runInfo);
+        }
+        catch(IOException e) {
+            out.println();
+            out.println(String.format("%s - WARNING: metrics file could not be written", new Date()));
+            out.println(String.format("    %s", config.metricsFile.getPath()));
+            out.println(String.format("    %s", e.getMessage()));
+        }
+
+        System.exit(result.exitCode);
+
+    }
+
+    /**
+     * Runs the Archiver for a pipeline. Archiving is housekeeping, so if it
+     * fails the failure is logged and it is tried again next time.
+     */
+    static void archive(Configuration config, PrintStream out) {
+        try {
+            Archiver.archive(config, out);
+        }
+        catch(Exception e) {
+            out.println();
+            out.println(String.format("%s - WARNING: archiving failed%s", new Date(), config.pipeline != null ? " for pipeline " + config.pipeline : ""));
+            out.println(String.format("    %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Reads the settings of one pipeline from the properties file. A
+     * pipeline's own settings ("euh.services=...") override the shared ones
+     * ("services=..."). State files that come from the shared settings get
+     * the pipeline's name (see Pipeline.pipelineFile), so each pipeline
+     * keeps its own dedup index, journal, delta index and inbox budget.
+     * pipeline is null if the properties file doesn't define pipelines.
+     */
+    static Configuration configure(Properties sharedProps, String pipeline, File propertiesFile, File logFile, boolean daemon, PrintStream out) {
+
+        Properties props = new Properties();
+        props.putAll(sharedProps);
+        if(pipeline != null) {
+            for(String name : sharedProps.stringPropertyNames()) {
+                if(name.startsWith(pipeline + ".")) { props.setProperty(name.substring(pipeline.length() + 1), sharedProps.getProperty(name)); }
+            }
+        }
+
+        List<String> services = new ArrayList<>();
+        File epicReportDir = null;
+        File epicMissedReportDir = null;
+        File sectraInboxDir = null;
+        File sectraProcessedDir = null;
+        Integer reportFileNameLookbackDays = null;
+        Integer processedFileNameLookbackDays = null;
+        Boolean noUnstained = null;
+        String stainRegex = null;
+        String excelPassword = null;
+        String excelPasswordBypass = null;
+        Integer daemonPollSeconds = null;
+        File dedupIndexFile = null;
+        String fileReadiness = FileReadiness.DEFAULT;
+        Integer fileReadinessMaxWaitSeconds = 5;
+        Integer parallelFiles = null;
+        Integer inboxBudgetManifests = null;
+        Integer inboxBudgetSlides = null;
+        Integer inboxBudgetWindowMinutes = null;
+        File inboxBudgetFile = null;
+        Integer metricsPort = null;
+        File metricsFile = null;
+        File handoffJournalFile = null;
+        boolean deltaMode = false;
+        String reportCharset = null;
+        File deltaIndexFile = null;
+        Integer pipelineThreads = null;
+        File archiveDir = null;
+        Integer archiveIntervalHours = null;
+        File outboxDir = null;
+        boolean splitManifests = false;
+        boolean stagedConversion = false;
+        Integer inboxMaxManifests = null;
+        Integer outboxAlarmManifests = null;
+        Integer outboxAlarmMinutes = null;
+
+        if(props.get("services") != null && (props.getProperty("services")).length() > 0) {
+            for(String service : props.getProperty("services").split(",")) { services.add(service.trim().toUpperCase()); }
+        }
+        if(props.getProperty("epic-report-dir") != null && (props.getProperty("epic-report-dir")).length() > 0) { epicReportDir = new File(props.getProperty("epic-report-dir")); }
+        if(props.getProperty("epic-missed-report-dir") != null && (props.getProperty("epic-missed-report-dir")).length() > 0) { epicMissedReportDir = new File(props.getProperty("epic-missed-report-dir")); }
+        if(props.getProperty("sectra-inbox-dir") != null && (props.getProperty("sectra-inbox-dir")).length() > 0) { sectraInboxDir = new File(props.getProperty("sectra-inbox-dir")); }
+        if(props.getProperty("sectra-processed-dir") != null && (props.getProperty("sectra-processed-dir")).length() > 0) { sectraProcessedDir = new File(props.getProperty("sectra-processed-dir")); }
+        if(props.getProperty("report-file-name-lookback-days") != null && (props.getProperty("report-file-name-lookback-days")).length() > 0) { reportFileNameLookbackDays = Integer.valueOf(props.getProperty("report-file-name-lookback-days")); }
+        if(props.getProperty("processed-file-name-lookback-days") != null && (props.getProperty("processed-file-name-lookback-days")).length() > 0) { processedFileNameLookbackDays = Integer.valueOf(props.getProperty("processed-file-name-lookback-days")); }
+        if(props.getProperty("no-unstained") != null) {
+            noUnstained = props.getProperty("no-unstained").length() > 0; // any value in no-unstained turns it on
+        }
+        if(props.get("stain-regex") != null && (props.getProperty("stain-regex")).length() > 0) { stainRegex = props.getProperty("stain-regex"); }
+        if(props.get("excel-password") != null && (props.getProperty("excel-password")).length() > 0) { excelPassword = props.getProperty("excel-password"); }
+        if(props.get("excel-password-bypass") != null && (props.getProperty("excel-password-bypass")).length() > 0) { excelPasswordBypass = props.getProperty("excel-password-bypass"); }
+        if(props.getProperty("dedup-index-file") != null && (props.getProperty("dedup-index-file")).length() > 0) { dedupIndexFile = new File(props.getProperty("dedup-index-file")); }
+        else { dedupIndexFile = new File(propertiesFile.getAbsoluteFile().getParentFile(), "epic2sectra.dedup"); }
+        if(props.getProperty("file-readiness") != null && (props.getProperty("file-readiness")).length() > 0) { fileReadiness = props.getProperty("file-readiness"); }
+        if(props.getProperty("file-readiness-max-wait-seconds") != null && (props.getProperty("file-readiness-max-wait-seconds")).length() > 0) { fileReadinessMaxWaitSeconds = Integer.valueOf(props.getProperty("file-readiness-max-wait-seconds")); }
+        if(props.getProperty("parallel-files") != null && (props.getProperty("parallel-files")).length() > 0) { parallelFiles = Integer.valueOf(props.getProperty("parallel-files")); }
+        if(props.getProperty("inbox-budget-manifests") != null && (props.getProperty("inbox-budget-manifests")).length() > 0) { inboxBudgetManifests = Integer.valueOf(props.getProperty("inbox-budget-manifests")); }
+        if(props.getProperty("inbox-budget-slides") != null && (props.getProperty("inbox-budget-slides")).length() > 0) { inboxBudgetSlides = Integer.valueOf(props.getProperty("inbox-budget-slides")); }
+        if(props.getProperty("inbox-budget-window-minutes") != null && (props.getProperty("inbox-budget-window-minutes")).length() > 0) { inboxBudgetWindowMinutes = Integer.valueOf(props.getProperty("inbox-budget-window-minutes")); }
+        if(props.getProperty("inbox-budget-file") != null && (props.getProperty("inbox-budget-file")).length() > 0) { inboxBudgetFile = new File(props.getProperty("inbox-budget-file")); }
+        else { inboxBudgetFile = new File(propertiesFile.getAbsoluteFile().getParentFile(), "epic2sectra.budget"); }
+        if(props.getProperty("daemon-poll-seconds") != null && (props.getProperty("daemon-poll-seconds")).length() > 0) { daemonPollSeconds = Integer.valueOf(props.getProperty("daemon-poll-seconds")); }
+        if(props.getProperty("metrics-port") != null && (props.getProperty("metrics-port")).length() > 0) { metricsPort = Integer.valueOf(props.getProperty("metrics-port")); }
+        if(props.getProperty("metrics-file") != null && (props.getProperty("metrics-file")).length() > 0) { metricsFile = new File(props.getProperty("metrics-file")); }
+        else { metricsFile = new File(propertiesFile.getAbsoluteFile().getParentFile(), "epic2sectra.metrics.json"); }
+        if(props.getProperty("handoff-journal-file") != null && (props.getProperty("handoff-journal-file")).length() > 0) { handoffJournalFile = new File(props.getProperty("handoff-journal-file")); }
+        else { handoffJournalFile = new File(propertiesFile.getAbsoluteFile().getParentFile(), "epic2sectra.journal"); }
+        if(props.getProperty("report-charset") != null && (props.getProperty("report-charset")).length() > 0) { reportCharset = props.getProperty("report-charset"); }
+        if(props.getProperty("delta-mode") != null) { deltaMode = props.getProperty("delta-mode").equalsIgnoreCase("yes"); }
+        if(props.getProperty("delta-index-file") != null && (props.getProperty("delta-index-file")).length() > 0) { deltaIndexFile = new File(props.getProperty("delta-index-file")); }
+        else { deltaIndexFile = new File(propertiesFile.getAbsoluteFile().getParentFile(), "epic2sectra.delta"); }
+        if(props.getProperty("archive-dir") != null && (props.getProperty("archive-dir")).length() > 0) { archiveDir = new File(props.getProperty("archive-dir")); }
+        if(props.getProperty("archive-interval-hours") != null && (props.getProperty("archive-interval-hours")).length() > 0) { archiveIntervalHours = Integer.valueOf(props.getProperty("archive-interval-hours")); }
+        if(props.getProperty("outbox-dir") != null && (props.getProperty("outbox-dir")).length() > 0) { outboxDir = new File(props.getProperty("outbox-dir")); }
+        if(props.getProperty("staged-conversion") != null) { stagedConversion = props.getProperty("staged-conversion").equalsIgnoreCase("yes"); }
+        if(props.getProperty("split-manifests") != null) { splitManifests = props.getProperty("split-manifests").equalsIgnoreCase("yes"); }
+        if(props.getProperty("inbox-max-manifests") != null && (props.getProperty("inbox-max-manifests")).length() > 0) { inboxMaxManifests = Integer.valueOf(props.getProperty("inbox-max-manifests")); }
+        if(props.getProperty("outbox-alarm-manifests") != null && (props.getProperty("outbox-alarm-manifests")).length() > 0) { outboxAlarmManifests = Integer.valueOf(props.getProperty("outbox-alarm-manifests")); }
+        if(props.getProperty("outbox-alarm-minutes") != null && (props.getProperty("outbox-alarm-minutes")).length() > 0) { outboxAlarmMinutes = Integer.valueOf(props.getProperty("outbox-alarm-minutes")); }
+        if(props.getProperty("pipeline-threads") != null && (props.getProperty("pipeline-threads")).length() > 0) { pipelineThreads = Integer.valueOf(props.getProperty("pipeline-threads")); }
+
+        if(services.isEmpty() || epicReportDir == null || epicMissedReportDir == null || sectraInboxDir == null || sectraProcessedDir == null || reportFileNameLookbackDays == null || processedFileNameLookbackDays == null || noUnstained == null || stainRegex == null || excelPassword == null || excelPasswordBypass == null) {
+            out.println();
+            out.println(String.format("%s - ERROR: invalid properties file%s", new Date(), pipeline != null ? " (pipeline " + pipeline + ")" : ""));
+            System.exit(1);
+        }
+
+        if(pipeline != null) {
+            if(sharedProps.getProperty(pipeline + ".dedup-index-file") == null) { dedupIndexFile = Pipeline.pipelineFile(dedupIndexFile, pipeline); }
+            if(sharedProps.getProperty(pipeline + ".inbox-budget-file") == null) { inboxBudgetFile = Pipeline.pipelineFile(inboxBudgetFile, pipeline); }
+            if(sharedProps.getProperty(pipeline + ".handoff-journal-file") == null) { handoffJournalFile = Pipeline.pipelineFile(handoffJournalFile, pipeline); }
+            if(sharedProps.getProperty(pipeline + ".delta-index-file") == null) { deltaIndexFile = Pipeline.pipelineFile(deltaIndexFile, pipeline); }
+            if(sharedProps.getProperty(pipeline + ".archive-dir") == null && archiveDir != null) { archiveDir = new File(archiveDir, pipeline); }
+            if(sharedProps.getProperty(pipeline + ".outbox-dir") == null && outboxDir != null) { outboxDir = new File(outboxDir, pipeline); }
+        }
+
+        // a manifest "released" into the directory it is already in would be
+        // taken for one left behind by an interrupted dispatch and deleted
+        if(outboxDir != null && (outboxDir.getAbsolutePath().equals(sectraInboxDir.getAbsolutePath()) || outboxDir.getAbsolutePath().equals(sectraProcessedDir.getAbsolutePath()))) {
+            out.println();
+            out.println(String.format("%s - ERROR: outbox-dir must not be the Sectra inbox or processed directory%s", new Date(), pipeline != null ? " (pipeline " + pipeline + ")" : ""));
+            System.exit(1);
+        }
+
+        // the parts of a split manifest are released one at a time (or
+        // inbox-max-manifests at a time) from the outbox
+        if(splitManifests && outboxDir == null) {
+            out.println();
+            out.println(String.format("%s - ERROR: split-manifests=yes needs an outbox-dir%s", new Date(), pipeline != null ? " (pipeline " + pipeline + ")" : ""));
+            System.exit(1);
+        }
+
+        Configuration config = new Configuration();
+        config.pipeline = pipeline;
+        config.services = services;
+        config.propertiesFile = propertiesFile;
+        config.logFile = logFile;
+        config.epicReportDir = epicReportDir;
+        config.epicMissedReportDir = epicMissedReportDir;
+        config.sectraInboxDir = sectraInboxDir;
+        config.sectraProcessedDir = sectraProcessedDir;
+        config.reportFileNameLookbackDays = reportFileNameLookbackDays;
+        config.processedFileNameLookbackDays = processedFileNameLookbackDays;
+        config.noUnstained = noUnstained;
+        config.stainRegex = stainRegex;
+        config.excelPassword = excelPassword;
+        config.excelPasswordBypass = excelPasswordBypass;
+        config.dedupIndexFile = dedupIndexFile;
+        config.passwordIndexFile = new File(dedupIndexFile.getPath().replaceFirst("(\\.dedup)?$", ".passwords"));
+        try {
+            config.filterEngine = FilterEngine.shared(services, noUnstained, stainRegex);
+            config.fileReadiness = FileReadiness.parse(fileReadiness, fileReadinessMaxWaitSeconds);
+            config.fileReadinessMaxWaitSeconds = fileReadinessMaxWaitSeconds;
+            if(reportCharset != null) { config.reportCharset = CsvTokenizer.charset(reportCharset); }
+        }
+        catch(IllegalArgumentException e) {
+            out.println();
+            out.println(String.format("%s - ERROR: %s", new Date(), e.getMessage()));
+            System.exit(1);
+        }
+        if(parallelFiles != null) { config.parallelFiles = parallelFiles; }
+        if(inboxBudgetManifests != null) { config.inboxBudgetManifests = inboxBudgetManifests; }
+        if(inboxBudgetSlides != null) { config.inboxBudgetSlides = inboxBudgetSlides; }
+        if(inboxBudgetWindowMinutes != null) { config.inboxBudgetWindowMinutes = inboxBudgetWindowMinutes; }
+        config.inboxBudgetFile = inboxBudgetFile;
+        config.daemon = daemon;
+        if(daemonPollSeconds != null) { config.daemonPollSeconds = daemonPollSeconds; }
+        if(metricsPort != null) { config.metricsPort = metricsPort; }
+        config.metricsFile = metricsFile;
+        config.handoffJournal = new HandoffJournal(handoffJournalFile);
+        if(deltaMode) {
+            config.deltaIndex = new DeltaIndex(deltaIndexFile, DeltaIndex.settingsFingerprint(config.services, config.noUnstained, config.stainRegex), config.reportFileNameLookbackDays);
+        }
+        if(pipelineThreads != null) { config.pipelineThreads = pipelineThreads; }
+        config.archiveDir = archiveDir;
+        if(archiveIntervalHours != null) { config.archiveIntervalHours = archiveIntervalHours; }
+        config.outboxDir = outboxDir;
+        config.splitManifests = splitManifests;
+        config.stagedConversion = stagedConversion;
+        if(inboxMaxManifests != null) { config.inboxMaxManifests = inboxMaxManifests; }
+        if(outboxAlarmManifests != null) { config.outboxAlarmManifests = outboxAlarmManifests; }
+        if(outboxAlarmMinutes != null) { config.outboxAlarmMinutes = outboxAlarmMinutes; }
+
+        return config;
+
+    }
+
+    /**
+     * Outcome of one pass through steps 2-5. The scheduled task only cares
+     * about the exit code, but the daemon uses the outcome to decide
+     * whether to go again right away or wait for the next file system event.
+     */
+    enum RunResult {
+
+        NOTHING_TO_DO(0),   // no Epic report is waiting
+        FILE_PROCESSED(0),  // an Epic report was renamed SENT_TO_SECTRA or REJECTED
+        FILE_NOT_READY(0),  // an Epic report is still being written
+        INBOX_NOT_EMPTY(1), // Sectra has not picked up the last manifest yet
+        BUDGET_USED_UP(0);  // reports are waiting but the inbox budget is used up
+
+        final int exitCode;
+
+        RunResult(int exitCode) {
+            this.exitCode = exitCode;
+        }
+
+    }
+
+    /**
+     * Runs steps 2-5 once against the given configuration. This is the whole
+     * program when started by the scheduled task and the body of the loop
+     * when running as a daemon.
+     */
+    static RunResult convert(Configuration config, DedupIndex dedupIndex, PrintStream out) throws IOException {
+
+        List<String> services = config.services;
+        File singletonFile = config.singletonFile;
+        File logFile = config.logFile;
+        File epicReportDir = config.epicReportDir;
+        File epicMissedReportDir = config.epicMissedReportDir;
+        File sectraInboxDir = config.sectraInboxDir;
+        File sectraProcessedDir = config.sectraProcessedDir;
+        Integer reportFileNameLookbackDays = config.reportFileNameLookbackDays;
+        Integer processedFileNameLookbackDays = config.processedFileNameLookbackDays;
+        Boolean noUnstained = config.noUnstained;
+        String stainRegex = config.stainRegex;
+
+        RunResult result = RunResult.NOTHING_TO_DO;
+
         // *********************************************************************
         // 2. Load the filesToProcess list. The objective is to create a list of
         //    files that need to be processed ordered from most recent file to
@@ -175,42 +522,19 @@ public class ConvertCsvOrXlsx {
         
         if(singletonFile == null) {
         
-            List<String> recentDays = recentDaysListYYYYYMMDD(reportFileNameLookbackDays);
-            // Epic_reports
-            List<File> allFiles = new ArrayList<>();
-            allFiles.addAll(Arrays.asList(epicReportDir.listFiles((File dir, String name) ->
-                name.matches("(?i)^LabSlidesOrderedPriorDayEUH_(" + String.join("|", recentDays) + ")_[0-9]{4}(\\.[^\\.]*)?\\.csv$")
-                || name.matches("(?i)^LabSlidesOrderedTodayEUH_(" + String.join("|", recentDays) + ")_[0-9]{4}(\\.[^\\.]*)?\\.csv$"))));
-            // Epic_missed_slide_report
-            allFiles.addAll(Arrays.asList(epicMissedReportDir.listFiles((File dir, String name) ->
-                name.matches("(?i)^[^\\.]*_(" + String.join("|", recentDays) + ")_[0-9]{4}(\\.[^\\.]*)?\\.xlsx$"))));
-            // sort in reverse order based on the timestamp in the file name
-            allFiles.sort(Comparator.comparing(f -> ((File)f).getName().replaceAll("(?i)^[^\\.]*_([0-9]{8}_[0-9]{4})(\\.[^\\.]*)?\\.(csv|xlsx)$", "$1")).reversed());
-            // only select the latest "today" file and any files that have not been previously processed
-            {
-                String lastDay = "99999999";
-                Pattern p1 = Pattern.compile("(?i)^LabSlidesOrderedTodayEUH_([0-9]{8})_[0-9]{4}(\\.[^\\.]*)?\\.csv$");
-                Pattern p2 = Pattern.compile("(?i)^.[^\\.]*_[0-9]{8}_[0-9]{4}(\\.[^\\.]*)?\\.(csv|xlsx)$");
-                for(File file : allFiles) {
-                    Matcher m1 = p1.matcher(file.getName());
-                    if(m1.matches()) {
-                        if(!m1.group(1).equals(lastDay)) {
-                            lastDay = m1.group(1);
-                            if(m1.group(2) == null) { // if this is not null, the file has been processed (e.g, LabSlidesOrderedTodayEUH_20230428_1150.SENT_TO_SECTRA_028.csv)
-                                filesToProcess.add(file);
-                            }
-                        }
-                    }
-                    else {
-                        Matcher m2 = p2.matcher(file.getName());
-                        if(m2.matches()) {
-                            if(m2.group(1) == null) { // if this is not null, the file has been processed (e.g, Lab_Containers_20230428_1150.SENT_TO_SECTRA_028.csv)
-                                filesToProcess.add(file);
-                            }
-                        }
-                    }
-                }
+            // finish (or roll back) any send that a crash interrupted before
+            // looking for reports, so a report renamed here isn't picked up
+            config.handoffJournal.recover(out);
+
+            // release what the outbox is holding if Sectra has made room
+            if(config.outboxDir != null) {
+                Files.createDirectories(config.outboxDir.toPath());
+                Outbox.dispatch(config, out);
             }
+
+            filesToProcess = FileDiscovery.filesToProcess(epicReportDir, epicMissedReportDir, recentDaysListYYYYYMMDD(reportFileNameLookbackDays));
+            Metrics.filesDiscovered.add(filesToProcess.size());
+            Metrics.filesWaiting.set(filesToProcess.size());
             
         }
         else {
@@ -227,11 +551,12 @@ public class ConvertCsvOrXlsx {
             if(filesToProcess.isEmpty()) {
                 out.println();
                 out.println(String.format("%s - nothing to do", new Date()));
-                System.exit(0);
+                return RunResult.NOTHING_TO_DO;
             }
 
-            // cap the list at 5 files
-            if(filesToProcess.size() > 5) {
+            // cap the list at 5 files (when converting in parallel, the inbox
+            // budget decides how many files go instead)
+            if(filesToProcess.size() > 5 && config.parallelFiles == 0) {
                 filesToProcess = filesToProcess.subList(0, 5);
             }
             
@@ -240,16 +565,44 @@ public class ConvertCsvOrXlsx {
                 out.println();
                 out.println(String.format("%s - running with these parameters", new Date(), InetAddress.getLocalHost().getHostName()));
                 out.println(String.format("    souce-code:             %s", "https://github.com/ghsmith/Epic2SectraV2"));
+                if(config.pipeline != null) {
+                    out.println(String.format("    pipeline:               %s", config.pipeline));
+                }
                 out.println(String.format("    host-name:              %s", InetAddress.getLocalHost().getHostName()));
                 out.println(String.format("    user-name:              %s", System.getProperty("user.name")));
                 out.println(String.format("    services:               %s", services));
                 out.println(String.format("    log-file:               %s", logFile.getPath()));
+                if(EventLog.eventLogFile != null) {
+                    out.println(String.format("    event-log-file:         %s", EventLog.eventLogFile.getPath()));
+                }
                 out.println(String.format("    epic-report-dir:        %s", epicReportDir.getPath()));
                 out.println(String.format("    epic-missed-report-dir: %s", epicMissedReportDir.getPath()));
                 out.println(String.format("    sectra-inbox-dir:       %s", sectraInboxDir.getPath()));
                 out.println(String.format("    sectra-processed-dir:   %s", sectraProcessedDir.getPath()));
                 out.println(String.format("    report-file-name-lookback-days:    %d %s", reportFileNameLookbackDays, recentDaysListYYYYYMMDD(reportFileNameLookbackDays)));
                 out.println(String.format("    processed-file-name-lookback-days: %d %s", processedFileNameLookbackDays, recentDaysListYYYYYMMDD(processedFileNameLookbackDays)));
+                out.println(String.format("    dedup-index-file:       %s", config.dedupIndexFile.getPath()));
+                out.println(String.format("    handoff-journal-file:   %s", config.handoffJournal.journalFile.getPath()));
+                if(config.deltaIndex != null) {
+                    out.println(String.format("    delta-index-file:       %s", config.deltaIndex.indexFile.getPath()));
+                }
+                out.println(String.format("    report-charset:         %s", config.reportCharset.name()));
+                if(config.stagedConversion) {
+                    out.println("    staged-conversion:      yes");
+                }
+                if(config.archiveDir != null) {
+                    out.println(String.format("    archive-dir:            %s (every %d hours)", config.archiveDir.getPath(), config.archiveIntervalHours));
+                }
+                if(config.outboxDir != null) {
+                    out.println(String.format("    outbox-dir:             %s (at most %d manifests in the inbox, alarms at %d manifests or %d minutes)", config.outboxDir.getPath(), config.inboxMaxManifests, config.outboxAlarmManifests, config.outboxAlarmMinutes));
+                    out.println(String.format("    split-manifests:        %s", config.splitManifests ? "yes" : "no"));
+                }
+                out.println(String.format("    file-readiness:         %s (max wait %d seconds)", fileReadinessNames(config.fileReadiness), config.fileReadinessMaxWaitSeconds));
+                if(config.parallelFiles > 0) {
+                    out.println(String.format("    parallel-files:         %d", config.parallelFiles));
+                    out.println(String.format("    inbox-budget:           %d manifests / %d slides per %d minutes (0 = no limit)", config.inboxBudgetManifests, config.inboxBudgetSlides, config.inboxBudgetWindowMinutes));
+                    out.println(String.format("    inbox-budget-file:      %s", config.inboxBudgetFile.getPath()));
+                }
                 out.println(String.format("    no-unstained:           %s", noUnstained));
                 out.println(String.format("    stain-regex:            %s", stainRegex));
                 //out.println(String.format("    excel-password:         %s", excelPassword));
@@ -266,11 +619,12 @@ public class ConvertCsvOrXlsx {
                     out.println("          files to process.");
                 }
                 for(File file : filesToProcess) {
-                    out.println(String.format("    [%s] %s", file.getName().replaceAll("(?i)^[^\\.]*_([0-9]{8}_[0-9]{4})(\\.[^\\.]*)?\\.(csv|xlsx)$", "$1"), file.getPath()));
+                    out.println(String.format("    [%s] %s", fileNameTimestamp(file), file.getPath()));
                 }
 
-                // inbox must be empty
-                if(sectraInboxDir.listFiles((File dir, String name) -> name.matches("(?i)^.*\\.csv$")).length > 0) {
+                // inbox must be empty (unless manifests queue up in the
+                // outbox, see Outbox)
+                if(config.outboxDir == null && sectraInboxDir.listFiles((File dir, String name) -> name.matches("(?i)^.*\\.csv$")).length > 0) {
                     if(sectraInboxDir.getPath().equals(sectraProcessedDir.getPath())) {
                         out.println();
                         out.println(String.format("%s - WARNING: Sectra inbox is not empty", new Date()));
@@ -288,7 +642,9 @@ public class ConvertCsvOrXlsx {
                         for(File file : sectraInboxDir.listFiles((File dir, String name) -> name.matches("(?i)^.*\\.csv$"))) {
                             out.println(String.format("    %s", file.getPath()));
                         }
-                        System.exit(1);
+                        Metrics.inboxNotEmpty.inc();
+                        EventLog.event("inbox_not_empty", config, "inbox", sectraInboxDir.getPath());
+                        return RunResult.INBOX_NOT_EMPTY;
                     }
                 }
                 
@@ -301,51 +657,38 @@ public class ConvertCsvOrXlsx {
         //    we've already sent in. This won't be perfect and sending in a
         //    slide again doesn't have any real consequence, but we're trying
         //    to avoid doing it, anyway. If you are processing a singleton
-        //    file on manual override, this is skipped.
+        //    file on manual override, this is skipped. The manifests are
+        //    kept in a dedup index on disk (and in memory when running as a
+        //    daemon), so we only have to read the ones that are new since
+        //    the last run. With an outbox, Sectra may not have processed
+        //    the last few manifests yet, so the ones still waiting in the
+        //    outbox and the inbox are read too.
         // *********************************************************************
-        Map<String, Slide> processedSlideMap = null;
-
         if(singletonFile == null) {
             
-            processedSlideMap = new HashMap<>();
-            List<String> recentDays = recentDaysListYYYYYMMDD(processedFileNameLookbackDays);
-            List<File> processedFiles = Arrays.asList(sectraProcessedDir.listFiles((File dir, String name) ->
-                name.matches("(?i)^[^\\.]*_(" + String.join("|", recentDays) + ")_[0-9]{4}(\\..*)?\\.csv$")));
-            processedFiles.sort(Comparator.comparing(f -> ((File)f).getName().replaceAll("(?i)^[^\\.]*_([0-9]{8}_[0-9]{4})(\\..*)?\\.csv$", "$1")).reversed());
-            for(File file : processedFiles) {
-                String fileNameTimestamp = file.getName().replaceAll("(?i)^[^\\.]*_([0-9]{8}_[0-9]{4})(\\..*)?\\.csv$", "$1");
-                Reader reader = new BufferedReader(new FileReader(file));
-                Iterable<CSVRecord> records =
-                    CSVFormat.DEFAULT.withFirstRecordAsHeader()
-                        .withIgnoreHeaderCase()
-                        .withTrim()
-                        .parse(reader);
-                for(CSVRecord record : records) {
-                    try {
-                        Slide slide = Slide.loadFromManifest(record);
-                        slide.fileNameTimestamp = fileNameTimestamp;
-                        if(!processedSlideMap.containsKey(slide.slideBarCode)) { // we're processing the files from latest to earliest, so we only take the latest record if the slide appears in multiple previously processed manifests
-                            processedSlideMap.put(slide.slideBarCode, slide);
-                        }
-                    }
-                    catch(Exception e) {
-                        out.println();
-                        out.println(String.format("%s - WARNING: problem loading slide from previously processed manifest for deduplication", new Date()));
-                        out.println(String.format("    %s", file.getPath()));
-                        out.println(String.format("    %s", e.getMessage()));
-                    }
-                }
+            List<File> manifestDirs = new ArrayList<>();
+            if(config.outboxDir != null) {
+                manifestDirs.add(config.outboxDir);
+                if(!sectraInboxDir.getPath().equals(sectraProcessedDir.getPath())) { manifestDirs.add(sectraInboxDir); }
             }
+            manifestDirs.add(sectraProcessedDir);
+            List<FileDiscovery.ParsedName> processedFiles = dedupIndex.refresh(manifestDirs, recentDaysListYYYYYMMDD(processedFileNameLookbackDays), out);
+            dedupIndex.save();
+            Metrics.record(dedupIndex);
 
             out.println();
-            out.println(String.format("%s - loaded %d slides from %d previously processed manifests", new Date(), processedSlideMap.size(), processedFiles.size()));
+            out.println(String.format("%s - dedup index holds %d slides from %d previously processed manifests (%d new manifests loaded)", new Date(), dedupIndex.size(), dedupIndex.manifestCount(), processedFiles.size()));
             out.println("    NOTE: Slide bar codes appearing in these files will be filtered out of the");
             out.println("          current manifest. This avoids sending the same slide bar code to");
             out.println("          Sectra multiple times. This is a form of deduplication. The");
             out.println(String.format("          processed-file-name-lookback-days parameter (currently = %d)", processedFileNameLookbackDays));
             out.println("          controls how far back the system looks for files to process.");
-            for(File file : processedFiles) {
-                out.println(String.format("    [%s] %s", file.getName().replaceAll("(?i)^[^\\.]*_([0-9]{8}_[0-9]{4})(\\..*)?\\.csv$", "$1"), file.getPath()));
+            out.println(String.format("          The index is kept in %s.", dedupIndex.indexFile.getPath()));
+            if(config.outboxDir != null) {
+                out.println("          Manifests still waiting in the outbox or the Sectra inbox count, too.");
+            }
+            for(FileDiscovery.ParsedName processedFile : processedFiles) {
+                out.println(String.format("    [%s] %s", processedFile.timestamp, processedFile.file.getPath()));
             }
             
         }
@@ -353,316 +696,409 @@ public class ConvertCsvOrXlsx {
         // *********************************************************************
         // 5. Convert from Epic report to Sectra manifest format.
         // *********************************************************************
+        if(singletonFile == null && config.parallelFiles > 0) {
+
+            // convert everything that is waiting, several reports at a time,
+            // as fast as the inbox budget allows
+            return ParallelConversion.run(filesToProcess, config, dedupIndex, out);
+
+        }
+
         for(File file : filesToProcess) {
             
-            String fileNameTimestamp = file.getName().replaceAll("(?i)^[^\\.]*_([0-9]{8}_[0-9]{4})(\\.[^\\.]*)?\\.(csv|xlsx)$", "$1");
-                    
             File manifestFile = null;
             int rowsProcessed = -1;
-            int rowsProcessedMaxAllowed = 300; // we would not do this many GI biopsy slides in a day
             
             try {
             
                 out.println();
                 out.println(String.format("%s - converting %s to Sectra manifest", new Date(), file.getName()));
             
-                // make sure the file is stable using byte counts and MD5 hashes
+                // make sure Epic is done writing the file
                 if(singletonFile == null) {
-                    int[] byteCounts = new int[] { 0, 0 };
-                    byte[][] md5Hashes = new byte[2][];
-                    for(int x = 0; x < 2; x++) {
-                        MessageDigest md = MessageDigest.getInstance("MD5");
-                        try (
-                            FileInputStream fileInputStream = new FileInputStream(file);
-                            DigestInputStream dis = new DigestInputStream(fileInputStream, md);
-                        ) {
-                            //byteCounts[x] = dis.readAllBytes().length; - not in Java 1.8
-                            byte[] buf = new byte[100000];
-                            int readLen;
-                            while ((readLen = dis.read(buf, 0, 100000)) != -1) { byteCounts[x] += readLen; }
-                            md5Hashes[x] = md.digest();
-                            out.println(String.format("    MD5 hash = %s file size = %d bytes", byteArrayToHex(md5Hashes[x]), byteCounts[x]));
-                            if(x == 0) { Thread.sleep(5000); }
-                        }
-                    }
-                    if(byteCounts[0] != byteCounts[1] || !Arrays.equals(md5Hashes[0], md5Hashes[1])) {
-                        throw new Exception("file not stable over 5 seconds");
-                    }
-                    out.println("    file is stable over 5 seconds");
+                    FileReadiness.awaitReady(config.fileReadiness, file, out);
                 }
                 
-                Set<String> errorSet = new HashSet<>();
-                Set<String> filteredStainSet = new HashSet<>();
-
-                int rowsSkipped = 0;
-                int rowsSkippedError = 0;
-                int rowsSkippedService = 0;
-                int rowsSkippedUnstained = 0;
-                int rowsSkippedStainRegex = 0;
-                int rowsSkippedDuplicate = 0;
-                int rowsStainUpdateAllowed = 0;
+                // the manifest is written as the report is read, one row at
+                // a time, and only moved to the inbox once it is complete
+                manifestFile = manifestFileFor(file);
+                Conversion conversion = new Conversion(manifestFile, fileNameTimestamp(file), config.filterEngine, dedupIndex);
+                if(config.deltaIndex != null && singletonFile == null) {
+                    config.deltaIndex.begin(file, conversion, out);
+                }
 
-                List<Slide> slides = new ArrayList<>();
+                long conversionStart = System.nanoTime();
+                try {
+                    readReport(file, conversion, config);
+                }
+                finally {
+                    conversion.close();
+                }
+                conversion.conversionNanos = System.nanoTime() - conversionStart;
+                Metrics.fileConversion.record(conversion.conversionNanos);
 
-                if(file.getName().toLowerCase().endsWith(".csv")) {
+                rowsProcessed = conversion.rowsProcessed;
 
-                    // *********************************************************
-                    // Epic rw_extract (i.e., the scheduled job) generates files
-                    // in a CSV format.
-                    // *********************************************************
-                    
-                    try (
-                        FileInputStream fileInputStream = new FileInputStream(file);
-                        Reader reader = new BufferedReader(new InputStreamReader(fileInputStream));
-                    ) {
-
-                        Iterable<CSVRecord> records =
-                            CSVFormat.DEFAULT.withFirstRecordAsHeader()
-                                .withIgnoreHeaderCase()
-                                .withTrim()
-                                .parse(reader);
-
-                        for(CSVRecord record : records) {
-
-                            List<String> errorList = new ArrayList<>();
-                            Slide slide = Slide.load(record, errorList);
-
-                            if(slide == null) {
-                                rowsSkipped++;
-                                rowsSkippedError++;
-                                errorSet.addAll(errorList);
-                                continue;
-                            }
+                printSummary(conversion, config, out);
+                converted(file, conversion, config);
+                Metrics.record(conversion);
 
-                            slide.fileNameTimestamp = fileNameTimestamp;
-                            slides.add(slide);
-                            
-                        }
-                        
+                if(singletonFile == null) {
+                    if(!sendManifest(file, manifestFile, conversion.rowsProcessed, conversion.rowsProcessedMaxAllowed, config, out).isEmpty()) {
+                        // the slides count as sent from now on, even while
+                        // the manifest waits in the outbox or the inbox
+                        conversion.commit(dedupIndex);
+                        dedupIndex.save();
+                    }
+                    if(config.deltaIndex != null) {
+                        config.deltaIndex.commit(file, conversion, out);
                     }
-                        
                 }
-                else if(file.getName().toLowerCase().endsWith(".xlsx")) {
 
-                    // *********************************************************
-                    // Reports run im Epic interactively use the XLSX format
-                    // and have an Excel password.
-                    // *********************************************************
+                result = RunResult.FILE_PROCESSED;
+
+                 // if you remove this break, it will process more than one file
+                 // at a time - at the moment it only processes the first file
+                 // in the filesToProcess list and the subsequent ones have to
+                 // wait for subsequent invocations of the program - this
+                 // throttles the number of files we send to Sectra at the same
+                 // time and makes the previously processed semantics a lot
+                 // simpler (see ParallelConversion for the alternative)
+                break;
                     
-                    WorkbookFactory.addProvider(new XSSFWorkbookFactory());
-                    Workbook workbook;
-                    try {
-                        workbook = WorkbookFactory.create(file, excelPassword);
-                        rowsProcessedMaxAllowed = 50;
-                    }
-                    catch(Exception e) {
-                        workbook = WorkbookFactory.create(file, excelPasswordBypass);
-                    }
-                    Sheet sheet = workbook.getSheetAt(0);
-
-                    Iterator<Row> rowIterator = sheet.iterator();
-                    Row headerRow = rowIterator.next();
-                    Map<String, Integer> columnIndexByNameMap = new HashMap<>();
-                    columnIndexByNameMap.put("Slide Bar Code", Integer.valueOf(headerRow.getFirstCellNum())); // Epic uses "Container" for two different columns
-                    for(int x = headerRow.getFirstCellNum() + 1; x <= headerRow.getLastCellNum(); x++) {
-                        if(headerRow.getCell(x) != null) {
-                            columnIndexByNameMap.put(headerRow.getCell(x).getStringCellValue(), x);
-                        }
-                    }
+            }
+            catch(Exception e) {
+
+                // the idea of putting this exception handler in the
+                // filesToProcess loop is to try and process the next file
+                // if the current file breaks something - this might make things
+                // a little less brittle and mitigate the risk of one bad
+                // file shutting us down
 
-                    while(rowIterator.hasNext()) {
+                result = reportFailure(file, manifestFile, rowsProcessed, e, config, out);
 
-                        Row dataRow = rowIterator.next();
-                        List<String> errorList = new ArrayList<>();
-                        Slide slide = Slide.load(dataRow, errorList, columnIndexByNameMap);
-                        
-                        if(slide == null) {
-                            rowsSkipped++;
-                            rowsSkippedError++;
-                            errorSet.addAll(errorList);
-                            continue;
-                        }
+            }
+            
+        }
 
-                        slide.fileNameTimestamp = fileNameTimestamp;
-                        slides.add(slide);
-                        
-                    }
-                        
+        return result;
+        
+    }
+
+    static String fileNameTimestamp(File file) {
+        FileDiscovery.ParsedName name = FileDiscovery.parseReportName(file);
+        return name != null ? name.timestamp : file.getName();
+    }
+
+    static File manifestFileFor(File file) {
+        return new File(file.getParentFile(), String.format("%s.sectra_%s.csv", file.getName(), (new SimpleDateFormat("yyyyMMdd_HHmm")).format(new Date(clock.millis()))));
+    }
+
+    /**
+     * Reads every row of the Epic report into the conversion.
+     */
+    static void readReport(File file, Conversion conversion, Configuration config) throws Exception {
+
+        if(file.getName().toLowerCase().endsWith(".csv")) {
+
+            // *****************************************************************
+            // Epic rw_extract (i.e., the scheduled job) generates files in a
+            // CSV format.
+            // *****************************************************************
+
+            // the report is split into fields in place and only the columns
+            // a Slide uses are turned into Strings (see CsvTokenizer)
+            try(CsvTokenizer records = CsvTokenizer.open(file, config.reportCharset)) {
+
+                if(config.stagedConversion) {
+                    StagedConversion.readCsv(records, conversion);
+                    return;
                 }
-                    
-                manifestFile = new File(String.format("%s\\%s.sectra_%s.csv", (file.getParent() != null ? file.getParent() : "."), file.getName(), (new SimpleDateFormat("yyyyMMdd_HHmm")).format(new Date())));
-                PrintStream manifestPrintStream = new PrintStream(manifestFile);
 
-                manifestPrintStream.println(Slide.toManifestHeaderString());
-                
-                rowsProcessed = 0;
+                // the columns are looked up once, when the first row arrives
+                SlideBinder binder = null;
 
-                for(Slide slide : slides) {
+                while(records.next()) {
 
-                    if(!services.isEmpty()) {
-                        if(!services.contains(slide.service.toUpperCase())) {
-                            rowsSkipped++;
-                            rowsSkippedService++;
-                            continue;
-                        }
+                    if(conversion.rowFingerprints != null && conversion.unchanged(DeltaIndex.fingerprint(records))) {
+                        continue;
                     }
 
-                    if(noUnstained) {
-                        if(slide.stain.startsWith("US") || slide.stain.startsWith("Unstained")) {
-                            rowsSkipped++;
-                            rowsSkippedUnstained++;
-                            continue;
-                        }
+                    if(binder == null) {
+                        binder = SlideBinder.forCsv(records.headerMap);
                     }
 
-                    if(stainRegex != null) {
-                        if(slide.stain.matches(stainRegex)) {
-                            rowsSkipped++;
-                            rowsSkippedStainRegex++;
-                            filteredStainSet.add(slide.stain);
-                            continue;
-                        }
-                    }
+                    long parseStart = System.nanoTime();
+                    Slide slide = binder.load(records);
+                    Metrics.rowParse.record(System.nanoTime() - parseStart);
 
-                    if(processedSlideMap != null) {
-                        if(processedSlideMap.containsKey(slide.slideBarCode)) {
-                            // let stain updates go through
-                            Slide previousSlide = processedSlideMap.get(slide.slideBarCode);
-                            if(!slide.stain.equals(previousSlide.stain) && slide.fileNameTimestamp.compareTo(previousSlide.fileNameTimestamp) >= 0) {
-                                rowsStainUpdateAllowed++;
-                            }
-                            else {
-                                rowsSkipped++;
-                                rowsSkippedDuplicate++;
-                                continue;
-                            }
-                        }
+                    if(slide == null) {
+                        conversion.reject(binder.errors);
+                        continue;
                     }
 
-                    rowsProcessed++;
-
-                    manifestPrintStream.println(slide.toManifestString());
+                    conversion.accept(slide);
 
                 }
 
-                manifestPrintStream.close();
-
-                out.println(String.format("    %5d rows processed", rowsProcessed));
-                out.println(String.format("    %5d rows skipped", rowsSkipped));
-                out.println(String.format("          ...%5d skipped with errors", rowsSkippedError));
-                for(String error : errorSet) { out.println(String.format("                   %s", error)); }
-                out.println(String.format("          ...%5d skipped because they do not match a service filter (service selection is: %s)", rowsSkippedService, !services.isEmpty() ? "TURNED ON" : "TURNED OFF"));
-                out.println(String.format("          ...%5d skipped because unstained (unstained exclusion is: %s)", rowsSkippedUnstained, noUnstained ? "TURNED ON" : "TURNED OFF"));
-                out.println(String.format("          ...%5d skipped because stain matches regular expression (stain filtering is: %s)", rowsSkippedStainRegex, stainRegex != null ? "TURNED ON" : "TURNED OFF"));
-                for(String filteredStain : filteredStainSet) { out.println(String.format("                   %s", filteredStain)); }
-                if(singletonFile ==  null) {
-                    out.println(String.format("          ...%5d skipped because they appear in a processed manifest (%d stain updates were allowed)", rowsSkippedDuplicate, rowsStainUpdateAllowed));
+            }
+
+        }
+        else if(file.getName().toLowerCase().endsWith(".xlsx")) {
+
+            // *****************************************************************
+            // Reports run im Epic interactively use the XLSX format and have
+            // an Excel password.
+            // *****************************************************************
+
+            // read row by row with POI's event API rather than loading the
+            // whole workbook
+            try(XlsxReportReader reader = XlsxReportReader.open(file, config.passwordIndexFile, config.excelPassword, config.excelPasswordBypass)) {
+
+                if(reader.password != null && reader.password.equals(config.excelPassword)) {
+                    conversion.rowsProcessedMaxAllowed = 50;
                 }
-                else {
-                    out.println("          ... duplicate checking in previous manifests is DISABLED when running manually");
+
+                if(config.stagedConversion) {
+                    StagedConversion.readXlsx(reader, conversion);
+                    return;
                 }
 
-                if(singletonFile == null) {
+                reader.read(new XlsxReportReader.RowHandler() {
 
-                    if(rowsProcessed > 0) {
+                    // the columns are looked up once, when the first row
+                    // arrives (the header row has been read by then)
+                    SlideBinder binder;
 
-                        out.println();
-                        out.println(String.format("%s - created manifest", new Date()));
-                        out.println(String.format("    %s", manifestFile.getPath()));
-
-                        if(rowsProcessed <= rowsProcessedMaxAllowed) {
-                            Path inboxTarget = Paths.get(sectraInboxDir.getPath() + "\\" + manifestFile.getName());
-                            Files.move(manifestFile.toPath(), inboxTarget);
-                            out.println();
-                            out.println(String.format("%s - moved manifest to Sectra inbox", new Date()));
-                            out.println(String.format("    %s", inboxTarget.toFile().getPath()));
+                    @Override
+                    public void row(String[] cells) {
+
+                        if(conversion.rowFingerprints != null && conversion.unchanged(DeltaIndex.fingerprint(cells))) {
+                            return;
                         }
-                        else {
-                            throw new Exception(String.format("manifest too large (the limit is %d slides in one manifest)", rowsProcessedMaxAllowed));
+
+                        if(binder == null) {
+                            binder = SlideBinder.forXlsx(reader.columnIndexByNameMap, reader.date1904);
                         }
 
-                    }
-                    else {
+                        long parseStart = System.nanoTime();
+                        Slide slide = binder.load(cells);
+                        Metrics.rowParse.record(System.nanoTime() - parseStart);
 
-                        manifestFile.delete();
-                        out.println();
-                        out.println(String.format("%s - no manifest created", new Date()));
+                        if(slide == null) {
+                            conversion.reject(binder.errors);
+                            return;
+                        }
+
+                        conversion.accept(slide);
 
                     }
-                    
-                    Path renameTarget = Paths.get(file.getParent() + "\\" + file.getName().replaceAll("(?i)\\.(csv|xlsx)$", String.format(".SENT_TO_SECTRA_%03d.$1", rowsProcessed)));
-                    Files.move(file.toPath(), renameTarget);
-                    out.println();
-                    out.println(String.format("%s - renamed Epic report to prevent future processing", new Date()));
-                    out.println(String.format("    %s", renameTarget.toFile().getPath()));
 
-                }
+                });
 
-                 // if you remove this break, it will process more than one file
-                 // at a time - at the moment it only processes the first file
-                 // in the filesToProcess list and the subsequent ones have to
-                 // wait for subsequent invocations of the program - this
-                 // throttles the number of files we send to Sectra at the same
-                 // time and makes the previously processed semantics a lot
-                 // simpler
-                break;
-                    
             }
-            catch(Exception e) {
 
-                // the idea of putting this exception handler in the
-                // filesToProcess loop is to try and process the next file
-                // if the current file breaks something - this might make things
-                // a little less brittle and mitigate the risk of one bad
-                // file shutting us down
+        }
+
+    }
+
+    static void printSummary(Conversion conversion, Configuration config, PrintStream out) {
+
+        out.println(String.format("    %5d rows processed", conversion.rowsProcessed));
+        out.println(String.format("    %5d rows skipped", conversion.rowsSkipped));
+        out.println(String.format("          ...%5d skipped with errors", conversion.rowsSkippedError));
+        for(String error : conversion.errorSet) { out.println(String.format("                   %s", error)); }
+        out.println(String.format("          ...%5d skipped because they do not match a service filter (service selection is: %s)", conversion.rowsSkippedService, !config.services.isEmpty() ? "TURNED ON" : "TURNED OFF"));
+        out.println(String.format("          ...%5d skipped because unstained (unstained exclusion is: %s)", conversion.rowsSkippedUnstained, config.noUnstained ? "TURNED ON" : "TURNED OFF"));
+        out.println(String.format("          ...%5d skipped because stain matches regular expression (stain filtering is: %s)", conversion.rowsSkippedStainRegex, config.stainRegex != null ? "TURNED ON" : "TURNED OFF"));
+        for(String filteredStain : conversion.filteredStainSet) { out.println(String.format("                   %s", filteredStain)); }
+        out.println(String.format("          ... filter rules: %s", conversion.filterStats));
+        if(conversion.previousReport != null) {
+            out.println(String.format("          ...%5d skipped because they are unchanged since the previous report for the day [%s] (delta mode)", conversion.rowsSkippedUnchanged, conversion.previousReport.fileNameTimestamp));
+        }
+        if(config.singletonFile ==  null) {
+            out.println(String.format("          ...%5d skipped because they appear in a processed manifest (%d stain updates were allowed)", conversion.rowsSkippedDuplicate, conversion.rowsStainUpdateAllowed));
+        }
+        else {
+            out.println("          ... duplicate checking in previous manifests is DISABLED when running manually");
+        }
 
-                //try { manifestFile.delete(); } catch(Exception e1) { }
+    }
+
+    /**
+     * Logs the conversion of a report to the event log.
+     */
+    static void converted(File file, Conversion conversion, Configuration config) {
+        EventLog.event("converted", config,
+            "file", file.getName(),
+            "rows_processed", conversion.rowsProcessed,
+            "rows_skipped", conversion.rowsSkipped,
+            "skipped_error", conversion.rowsSkippedError,
+            "skipped_service", conversion.rowsSkippedService,
+            "skipped_unstained", conversion.rowsSkippedUnstained,
+            "skipped_stain_regex", conversion.rowsSkippedStainRegex,
+            "skipped_duplicate", conversion.rowsSkippedDuplicate,
+            "skipped_unchanged", conversion.rowsSkippedUnchanged,
+            "stain_updates", conversion.rowsStainUpdateAllowed,
+            "seconds", conversion.conversionNanos / 1e9);
+        if(config.conversionNanosByFile != null) {
+            config.conversionNanosByFile.put(file.getName(), conversion.conversionNanos);
+        }
+    }
+
+    /**
+     * Moves the manifest to the Sectra inbox (or deletes it if it is empty)
+     * and renames the Epic report so it isn't processed again. A manifest
+     * over the size limit is split into parts with split-manifests=yes (see
+     * ManifestSplitter) and rejected otherwise. Returns the number of
+     * slides in each manifest that went to the inbox (one for each part of
+     * a split manifest), empty if none did.
+     */
+    static List<Integer> sendManifest(File file, File manifestFile, int rowsProcessed, int rowsProcessedMaxAllowed, Configuration config, PrintStream out) throws Exception {
+
+        List<Integer> slidesSent = new ArrayList<>();
+        List<HandoffJournal.Handoff> handoffs = new ArrayList<>();
+        File renameTarget = new File(file.getParentFile(), file.getName().replaceAll("(?i)\\.(csv|xlsx)$", String.format(".SENT_TO_SECTRA_%03d.$1", rowsProcessed)));
+
+        if(rowsProcessed > 0) {
+
+            out.println();
+            out.println(String.format("%s - created manifest", new Date()));
+            out.println(String.format("    %s", manifestFile.getPath()));
+
+            List<File> manifests;
+            ManifestSplitter splitter = null;
+            if(rowsProcessed <= rowsProcessedMaxAllowed) {
+                manifests = Collections.singletonList(manifestFile);
+                slidesSent.add(rowsProcessed);
+            }
+            else if(config.splitManifests) {
+                splitter = new ManifestSplitter(manifestFile, rowsProcessedMaxAllowed);
+                manifests = splitter.partFiles;
+                for(List<String> part : splitter.parts) { slidesSent.add(part.size()); }
+            }
+            else {
+                throw new Exception(String.format("manifest too large (the limit is %d slides in one manifest)", rowsProcessedMaxAllowed));
+            }
+
+            // with an outbox, the manifests wait there for room in the inbox
+            File targetDir = config.outboxDir != null ? config.outboxDir : config.sectraInboxDir;
+            // the manifests were fsynced when they were closed; journal every
+            // send before the first part is written and the first move, so a
+            // crash can be recovered from
+            for(File manifest : manifests) {
+                HandoffJournal.Handoff handoff = new HandoffJournal.Handoff(file, manifest, new File(targetDir, manifest.getName()), renameTarget);
+                config.handoffJournal.begin(handoff);
+                handoffs.add(handoff);
+            }
+            if(splitter != null) {
+                splitter.write();
+                out.println();
+                out.println(String.format("%s - split manifest into %d parts (the limit is %d slides in one manifest)", new Date(), manifests.size(), rowsProcessedMaxAllowed));
+            }
+            for(HandoffJournal.Handoff handoff : handoffs) {
+                HandoffJournal.moveIntoInbox(handoff.manifest, handoff.inboxTarget);
+                config.handoffJournal.moved(handoff);
                 out.println();
-                out.println(String.format("%s - WARNING: Epic report not processed", new Date()));
-                out.println(String.format("    %s", e.getMessage()));
-                if(e.getMessage() == null || e.getMessage().length() == 0) { e.printStackTrace(out); }
+                out.println(String.format("%s - moved manifest to %s", new Date(), config.outboxDir != null ? "outbox" : "Sectra inbox"));
+                out.println(String.format("    %s", handoff.inboxTarget.getPath()));
+            }
+            Metrics.manifestsSent.add(handoffs.size());
+            Metrics.rowsProcessed.add(rowsProcessed);
 
-                if(singletonFile == null) {
+        }
+        else {
 
-                    // if the report is growing, it should be stable next time we try in a few minutes so we should not rename the file
-                    if(e.getMessage() == null || !e.getMessage().contains("file not stable")) {
-                        Path renameTarget;
-                        if(rowsProcessed == -1) {
-                            renameTarget = Paths.get(file.getParent() + "\\" + file.getName().replaceAll("(?i)\\.(csv|xlsx)$", ".REJECTED.$1"));
-                        }
-                        else {
-                            renameTarget = Paths.get(file.getParent() + "\\" + file.getName().replaceAll("(?i)\\.(csv|xlsx)$", String.format(".REJECTED_%03d.$1", rowsProcessed)));
-                        }
-                        Files.move(file.toPath(), renameTarget);
-                        out.println();
-                        out.println(String.format("%s - renamed Epic report to prevent future processing", new Date()));
-                        out.println(String.format("    %s", renameTarget.toFile().getPath()));
-                    }
-                    
-                }
+            manifestFile.delete();
+            out.println();
+            out.println(String.format("%s - no manifest created", new Date()));
 
+        }
+
+        Files.move(file.toPath(), renameTarget.toPath());
+        for(HandoffJournal.Handoff handoff : handoffs) {
+            config.handoffJournal.done(handoff);
+        }
+        Metrics.filesSent.inc();
+        out.println();
+        out.println(String.format("%s - renamed Epic report to prevent future processing", new Date()));
+        out.println(String.format("    %s", renameTarget.getPath()));
+        EventLog.event("sent", config, "file", file.getName(), "renamed_to", renameTarget.getName(), "rows", rowsProcessed, "manifests", handoffs.size(), "to", handoffs.isEmpty() ? "none" : config.outboxDir != null ? "outbox" : "inbox");
+
+        if(!slidesSent.isEmpty() && config.outboxDir != null) {
+            Outbox.dispatch(config, out);
+        }
+
+        return slidesSent;
+
+    }
+
+    /**
+     * Logs why a report wasn't converted and renames it REJECTED, unless it
+     * just isn't finished yet, in which case it is left for the next pass.
+     * rowsProcessed is -1 if the report couldn't be read.
+     */
+    static RunResult reportFailure(File file, File manifestFile, int rowsProcessed, Exception e, Configuration config, PrintStream out) throws IOException {
+
+        //try { manifestFile.delete(); } catch(Exception e1) { }
+        if(rowsProcessed == -1 && manifestFile != null) {
+            // the report could not be read all the way through, so
+            // whatever made it into the manifest is incomplete
+            manifestFile.delete();
+        }
+        out.println();
+        out.println(String.format("%s - WARNING: Epic report not processed", new Date()));
+        out.println(String.format("    %s", e.getMessage()));
+        if(e.getMessage() == null || e.getMessage().length() == 0) { e.printStackTrace(out); }
+
+        if(config.singletonFile == null) {
+
+            // if the report is growing, it should be stable next time we try in a few minutes so we should not rename the file
+            if(e.getMessage() != null && e.getMessage().contains("file not stable")) {
+                Metrics.filesNotReady.inc();
+                EventLog.event("not_ready", config, "file", file.getName(), "reason", e.getMessage());
+                return RunResult.FILE_NOT_READY;
             }
-            
+
+            File renameTarget;
+            if(rowsProcessed == -1) {
+                renameTarget = new File(file.getParentFile(), file.getName().replaceAll("(?i)\\.(csv|xlsx)$", ".REJECTED.$1"));
+            }
+            else {
+                renameTarget = new File(file.getParentFile(), file.getName().replaceAll("(?i)\\.(csv|xlsx)$", String.format(".REJECTED_%03d.$1", rowsProcessed)));
+            }
+            Files.move(file.toPath(), renameTarget.toPath());
+            Metrics.filesRejected.inc();
+            EventLog.event("rejected", config, "file", file.getName(), "renamed_to", renameTarget.getName(), "rows", rowsProcessed, "reason", String.valueOf(e.getMessage()));
+            out.println();
+            out.println(String.format("%s - renamed Epic report to prevent future processing", new Date()));
+            out.println(String.format("    %s", renameTarget.getPath()));
+
         }
 
-        System.exit(0);
-        
+        return RunResult.FILE_PROCESSED;
+
     }
 
-    private static List<String> recentDaysListYYYYYMMDD(int lookbackDays) {
+    private static String fileReadinessNames(List<FileReadiness> checks) {
+        List<String> names = new ArrayList<>();
+        for(FileReadiness check : checks) { names.add(check.name); }
+        return String.join(",", names);
+    }
+
+    static Calendar calendar() {
         Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(clock.millis());
+        return cal;
+    }
+
+    private static List<String> recentDaysListYYYYYMMDD(int lookbackDays) {
+        Calendar cal = calendar();
         SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
         List<String> recentDays = new ArrayList<>();
         recentDays.add(sdf.format(cal.getTime())); // don't forget to add today
         for(int x = 0; x < lookbackDays; x++) { cal.add(Calendar.DATE, -1); recentDays.add(sdf.format(cal.getTime())); }
         return recentDays;
     }
-    
-    private static String byteArrayToHex(byte[] a) {
-       StringBuilder sb = new StringBuilder(a.length * 2);
-       for(byte b: a)
-          sb.append(String.format("%02x", b));
-       return sb.toString();
-    }
 
 }
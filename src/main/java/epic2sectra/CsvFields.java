@@ -0,0 +1,24 @@
+package epic2sectra;
+
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * The fields of a CSV record, so a CSVRecord and a CsvTokenizer can be
+ * read the same way (see SlideBinder).
+ *
+ * @author Geoff
+ */
+public interface CsvFields {
+
+    int size();
+
+    String get(int index);
+
+    static CsvFields of(CSVRecord record) {
+        return new CsvFields() {
+            @Override public int size() { return record.size(); }
+            @Override public String get(int index) { return record.get(index); }
+        };
+    }
+
+}
@@ -0,0 +1,460 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reads a CSV file the way CSVFormat.DEFAULT.withFirstRecordAsHeader()
+ * .withIgnoreHeaderCase().withTrim() does (same records, same values, same
+ * errors) without making a CSVRecord and a String for every field.
+ *
+ * The file is read through a fixed-size buffer (64 KB) and each record is
+ * split in place into field offsets. A field only becomes a String
+ * (decoded with the given charset and trimmed) when get() asks for it, so
+ * the columns a Slide never looks at cost nothing but the scan. Splitting
+ * on bytes is only right for charsets where comma, quote, CR and LF are
+ * single bytes that never occur inside another character, which charset()
+ * checks.
+ *
+ * When the buffer runs out part way through a record, the part already
+ * read is moved to the front of the buffer before it is refilled, so a
+ * record's fields are always in one piece. The buffer only grows for a
+ * record longer than itself, so the heap a report costs doesn't depend on
+ * how long the report is.
+ *
+ * Files are read rather than memory mapped: on Windows a mapped file can't
+ * be renamed until the mapping is garbage collected, and the report is
+ * renamed right after it is read. For the same reason the file is closed
+ * as soon as the last record has been read, as well as by close().
+ *
+ * @author Geoff
+ */
+public class CsvTokenizer implements CsvFields, Closeable {
+
+    static final int DELIMITER = ',';
+    static final int QUOTE = '"';
+    static final int CR = '\r';
+    static final int LF = '\n';
+    static final int END_OF_STREAM = -1;
+    static final int UNDEFINED = -2;
+
+    // token types, as in commons-csv's Lexer
+    static final int TOKEN = 0;
+    static final int EORECORD = 1;
+    static final int EOF = 2;
+
+    static final int BUFFER_SIZE = 1 << 16;
+
+    // the file, null once it has all been read (or for a report that is
+    // already in memory)
+    ReadableByteChannel channel;
+    byte[] bytes;
+    int limit;
+    final Charset charset;
+
+    public final Map<String, Integer> headerMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    // reader state (see commons-csv's ExtendedBufferedReader)
+    int position = 0;
+    int lastChar = UNDEFINED;
+    long eolCounter = 0;
+
+    // the token just read
+    int tokenType;
+    boolean tokenReady;
+    int tokenStart;
+    int tokenEnd;
+    boolean tokenEscaped;
+
+    // the current record: where each field's bytes are and whether they
+    // hold doubled quotes, plus the bytes of the whole record
+    int size = 0;
+    int[] starts = new int[32];
+    int[] ends = new int[32];
+    boolean[] escaped = new boolean[32];
+    int recordStart;
+    int recordEnd;
+
+    CsvTokenizer(byte[] bytes, Charset charset) throws IOException {
+        this(null, bytes, bytes.length, charset);
+    }
+
+    CsvTokenizer(ReadableByteChannel channel, Charset charset, int bufferSize) throws IOException {
+        this(channel, new byte[bufferSize], 0, charset);
+    }
+
+    private CsvTokenizer(ReadableByteChannel channel, byte[] bytes, int limit, Charset charset) throws IOException {
+        this.channel = channel;
+        this.bytes = bytes;
+        this.limit = limit;
+        this.charset = charset;
+        // the first record is the header; a later column with the same name
+        // (Epic's second "Container") replaces the earlier one
+        if(nextRecord()) {
+            for(int x = 0; x < size; x++) {
+                String header = get(x);
+                if(headerMap.containsKey(header) && header.trim().isEmpty()) {
+                    String[] headerRecord = new String[size];
+                    for(int y = 0; y < size; y++) { headerRecord[y] = get(y); }
+                    throw new IllegalArgumentException("A header name is missing in " + Arrays.toString(headerRecord));
+                }
+                headerMap.put(header, x);
+            }
+        }
+    }
+
+    public static CsvTokenizer open(File file, Charset charset) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new CsvTokenizer(channel, charset, BUFFER_SIZE);
+        }
+        catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Looks up a charset for CSV files. Throws IllegalArgumentException if
+     * there is no such charset or it isn't one that CsvTokenizer can split
+     * on bytes (UTF-16, for instance).
+     */
+    public static Charset charset(String name) {
+        Charset charset = Charset.forName(name);
+        if(!Arrays.equals(",\"\r\n".getBytes(charset), ",\"\r\n".getBytes(StandardCharsets.US_ASCII))) {
+            throw new IllegalArgumentException(String.format("charset %s can't be used for CSV files", name));
+        }
+        return charset;
+    }
+
+    /**
+     * Moves to the next record. Returns false at the end of the file.
+     * Malformed CSV throws IllegalStateException with the same message as
+     * CSVParser's iterator.
+     */
+    public boolean next() {
+        try {
+            return nextRecord();
+        }
+        catch(IOException e) {
+            throw new IllegalStateException(e.getClass().getSimpleName() + " reading next record: " + e.toString(), e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The field, decoded and trimmed.
+     */
+    @Override
+    public String get(int index) {
+        if(index >= size) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return field(bytes, charset, starts[index], ends[index], escaped[index]);
+    }
+
+    /**
+     * A copy of the current record that stays valid after next(), so the
+     * record can be handed to another thread (see StagedConversion). Its
+     * fields are still only decoded when they are asked for.
+     */
+    public CsvFields record() {
+        final byte[] recordBytes = Arrays.copyOfRange(bytes, recordStart, recordEnd);
+        final int[] recordStarts = new int[size];
+        final int[] recordEnds = new int[size];
+        for(int x = 0; x < size; x++) {
+            recordStarts[x] = starts[x] - recordStart;
+            recordEnds[x] = ends[x] - recordStart;
+        }
+        final boolean[] recordEscaped = Arrays.copyOf(escaped, size);
+        return new CsvFields() {
+            @Override public int size() { return recordStarts.length; }
+            @Override public String get(int index) { return field(recordBytes, charset, recordStarts[index], recordEnds[index], recordEscaped[index]); }
+        };
+    }
+
+    private static String field(byte[] bytes, Charset charset, int start, int end, boolean escaped) {
+        while(start < end && (bytes[start] & 0xff) <= ' ') { start++; }
+        while(end > start && (bytes[end - 1] & 0xff) <= ' ') { end--; }
+        if(start == end) {
+            return "";
+        }
+        String value = new String(bytes, start, end - start, charset);
+        return escaped ? value.replace("\"\"", "\"") : value;
+    }
+
+    /**
+     * The field for a header name, with CSVRecord.get(String)'s complaints
+     * if there is no such column or the record is too short.
+     */
+    public String get(String name) {
+        Integer index = headerMap.get(name);
+        if(index == null) {
+            throw new IllegalArgumentException(String.format("Mapping for %s not found, expected one of %s", name, headerMap.keySet()));
+        }
+        if(index >= size) {
+            throw new IllegalArgumentException(String.format("Index for header '%s' is %d but CSVRecord only has %d values!", name, index, size));
+        }
+        return get(index);
+    }
+
+    // *************************************************************************
+    // The rest follows commons-csv 1.7 (CSVParser.nextRecord, Lexer and
+    // ExtendedBufferedReader) for this format: no comments, no escape
+    // character, empty lines ignored, surrounding spaces not ignored.
+    // *************************************************************************
+
+    private boolean nextRecord() throws IOException {
+        size = 0;
+        recordStart = position;
+        do {
+            nextToken();
+            if(tokenType != EOF || tokenReady) {
+                addField();
+            }
+        } while(tokenType == TOKEN);
+        recordEnd = position;
+        return size > 0;
+    }
+
+    private void addField() {
+        if(size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+            escaped = Arrays.copyOf(escaped, size * 2);
+        }
+        starts[size] = tokenStart;
+        ends[size] = tokenEnd;
+        escaped[size] = tokenEscaped;
+        size++;
+    }
+
+    /**
+     * Reads more of the file into the buffer, after moving the current
+     * record to the front of it (or growing it, if the record fills it).
+     * Returns false if there is no more.
+     */
+    private boolean fill() throws IOException {
+        if(channel == null) {
+            return false;
+        }
+        if(recordStart > 0) {
+            int shift = recordStart;
+            System.arraycopy(bytes, shift, bytes, 0, limit - shift);
+            limit -= shift;
+            position -= shift;
+            recordStart = 0;
+            tokenStart -= shift;
+            tokenEnd -= shift;
+            for(int x = 0; x < size; x++) {
+                starts[x] -= shift;
+                ends[x] -= shift;
+            }
+        }
+        if(limit == bytes.length) {
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        int read = channel.read(ByteBuffer.wrap(bytes, limit, bytes.length - limit));
+        if(read < 0) {
+            close();
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    private int read() throws IOException {
+        if(position == limit && !fill()) {
+            lastChar = END_OF_STREAM;
+            return END_OF_STREAM;
+        }
+        int c = bytes[position++] & 0xff;
+        if(c == CR || (c == LF && lastChar != CR)) {
+            eolCounter++;
+        }
+        lastChar = c;
+        return c;
+    }
+
+    private int lookAhead() throws IOException {
+        return position < limit || fill() ? bytes[position] & 0xff : END_OF_STREAM;
+    }
+
+    private long currentLineNumber() {
+        if(lastChar == CR || lastChar == LF || lastChar == UNDEFINED || lastChar == END_OF_STREAM) {
+            return eolCounter;
+        }
+        return eolCounter + 1;
+    }
+
+    private boolean readEndOfLine(int c) throws IOException {
+        if(c == CR && lookAhead() == LF) {
+            c = read();
+        }
+        return c == LF || c == CR;
+    }
+
+    // the byte just read starts a character that isn't ASCII: if it is
+    // whitespace (U+2028, say), consume the rest of it and return true
+    private boolean skipWhitespaceCharacter() throws IOException {
+        while(limit - position < 3 && fill()) {
+            // the rest of the character may be in the next buffer
+        }
+        int start = position - 1;
+        for(int length = 1; length <= 4 && start + length <= limit; length++) {
+            String decoded = new String(bytes, start, length, charset);
+            if(decoded.length() == 1 && decoded.charAt(0) != '\uFFFD') {
+                if(!Character.isWhitespace(decoded.charAt(0))) {
+                    return false;
+                }
+                for(int x = 1; x < length; x++) { read(); }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isStartOfLine(int c) {
+        return c == LF || c == CR || c == UNDEFINED;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c != DELIMITER && c != END_OF_STREAM && Character.isWhitespace((char)c);
+    }
+
+    private void nextToken() throws IOException {
+
+        tokenReady = false;
+        tokenEscaped = false;
+        tokenStart = position;
+        tokenEnd = position;
+
+        int last = lastChar;
+        int c = read();
+        boolean eol = readEndOfLine(c);
+
+        // skip empty lines
+        while(eol && isStartOfLine(last)) {
+            last = c;
+            c = read();
+            eol = readEndOfLine(c);
+            if(c == END_OF_STREAM) {
+                tokenType = EOF;
+                return;
+            }
+        }
+
+        if(last == END_OF_STREAM || (last != DELIMITER && c == END_OF_STREAM)) {
+            tokenType = EOF;
+            return;
+        }
+
+        tokenStart = position;
+        tokenEnd = position;
+
+        if(c == DELIMITER) {
+            tokenType = TOKEN;
+        }
+        else if(eol) {
+            tokenType = EORECORD;
+        }
+        else if(c == QUOTE) {
+            parseEncapsulatedToken();
+        }
+        else if(c == END_OF_STREAM) {
+            tokenType = EOF;
+            tokenReady = true;
+        }
+        else {
+            parseSimpleToken(c);
+        }
+
+    }
+
+    private void parseSimpleToken(int c) throws IOException {
+        tokenStart = position - 1;
+        tokenEnd = tokenStart;
+        while(true) {
+            if(readEndOfLine(c)) {
+                tokenType = EORECORD;
+                return;
+            }
+            else if(c == END_OF_STREAM) {
+                tokenType = EOF;
+                tokenReady = true;
+                return;
+            }
+            else if(c == DELIMITER) {
+                tokenType = TOKEN;
+                return;
+            }
+            tokenEnd = position;
+            c = read();
+        }
+    }
+
+    private void parseEncapsulatedToken() throws IOException {
+        long startLineNumber = currentLineNumber();
+        tokenStart = position;
+        tokenEnd = position;
+        while(true) {
+            int c = read();
+            if(c == QUOTE) {
+                if(lookAhead() == QUOTE) {
+                    // a doubled quote, collapsed by get()
+                    read();
+                    tokenEscaped = true;
+                    tokenEnd = position;
+                }
+                else {
+                    // closing quote: only whitespace may come before the
+                    // delimiter
+                    while(true) {
+                        c = read();
+                        if(c == DELIMITER) {
+                            tokenType = TOKEN;
+                            return;
+                        }
+                        else if(c == END_OF_STREAM) {
+                            tokenType = EOF;
+                            tokenReady = true;
+                            return;
+                        }
+                        else if(readEndOfLine(c)) {
+                            tokenType = EORECORD;
+                            return;
+                        }
+                        else if(!isWhitespace(c) && !(c >= 0x80 && skipWhitespaceCharacter())) {
+                            throw new IOException("(line " + currentLineNumber() + ") invalid char between encapsulated token and delimiter");
+                        }
+                    }
+                }
+            }
+            else if(c == END_OF_STREAM) {
+                throw new IOException("(startline " + startLineNumber + ") EOF reached before encapsulated token finished");
+            }
+            else {
+                tokenEnd = position;
+            }
+        }
+    }
+
+}
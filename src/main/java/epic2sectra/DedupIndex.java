@@ -0,0 +1,560 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * The slides we have already sent to Sectra, keyed by slide bar code, for
+ * deduplication (see step 4 of ConvertCsvOrXlsx). Only the stain and the
+ * Epic report timestamp of the latest manifest a bar code appeared in are
+ * kept, since that is all the duplicate check looks at.
+ *
+ * The index is saved to disk between runs along with the names of the
+ * manifests that have been merged into it, so each run only has to parse
+ * the manifests that Sectra has processed since the last run. Entries and
+ * manifest names fall out of the index when their timestamp leaves the
+ * processed-file-name-lookback-days window. If the index file is missing
+ * or unreadable, it is simply rebuilt from the processed manifests.
+ *
+ * To keep the heap small enough for lookbacks of six months or more, the
+ * entries are sharded by the day of their timestamp (so a day that leaves
+ * the window is dropped in one go) and each DayShard packs its bar codes
+ * into a single byte array with the stain as an id into a shared table and
+ * the time of day as a short - a little over half the memory of a HashMap of
+ * Strings. A bar code lives in exactly one shard, the one for its latest
+ * timestamp. A Bloom filter over all of the bar codes answers most lookups
+ * for slides that were never sent without probing every shard.
+ *
+ * @author Geoff
+ */
+public class DedupIndex {
+
+    static final int MAGIC = 0x45325344; // "E2SD"
+    static final int VERSION = 2;
+
+    public static class Entry {
+
+        public final String stain;
+        public final String fileNameTimestamp;
+
+        public Entry(String stain, String fileNameTimestamp) {
+            this.stain = stain;
+            this.fileNameTimestamp = fileNameTimestamp;
+        }
+
+    }
+
+    /**
+     * The bar codes whose latest timestamp falls on one day, in an open
+     * addressing (linear probing) table. Each key is stored in keyBytes as
+     * a two byte length followed by its UTF-8 bytes, and keyOffsets points
+     * at it (0 marks an empty slot, so offsets are stored plus one). Space
+     * for a removed key isn't reclaimed until the index is next loaded.
+     */
+    static class DayShard {
+
+        final String day;
+        int[] hashes = new int[64];
+        int[] keyOffsets = new int[64];
+        int[] stainIds = new int[64];
+        short[] times = new short[64];
+        byte[] keyBytes = new byte[1024];
+        int keyBytesLength = 0;
+        int count = 0;
+
+        DayShard(String day) {
+            this.day = day;
+        }
+
+        int find(byte[] key, int hash) {
+            int mask = keyOffsets.length - 1;
+            for(int slot = hash & mask; keyOffsets[slot] != 0; slot = (slot + 1) & mask) {
+                if(hashes[slot] == hash && keyEquals(keyOffsets[slot] - 1, key)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private boolean keyEquals(int offset, byte[] key) {
+            int length = ((keyBytes[offset] & 0xff) << 8) | (keyBytes[offset + 1] & 0xff);
+            if(length != key.length) {
+                return false;
+            }
+            for(int x = 0; x < length; x++) {
+                if(keyBytes[offset + 2 + x] != key[x]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Adds a key that isn't in the shard yet.
+         */
+        void put(byte[] key, int hash, int stainId, short time) {
+            if((count + 1) * 3 > keyOffsets.length * 2) {
+                grow();
+            }
+            if(keyBytesLength + 2 + key.length > keyBytes.length) {
+                keyBytes = Arrays.copyOf(keyBytes, Math.max(keyBytes.length * 2, keyBytesLength + 2 + key.length));
+            }
+            int offset = keyBytesLength;
+            keyBytes[offset] = (byte)(key.length >>> 8);
+            keyBytes[offset + 1] = (byte)key.length;
+            System.arraycopy(key, 0, keyBytes, offset + 2, key.length);
+            keyBytesLength += 2 + key.length;
+            insert(hash, offset + 1, stainId, time);
+            count++;
+        }
+
+        private void insert(int hash, int keyOffset, int stainId, short time) {
+            int mask = keyOffsets.length - 1;
+            int slot = hash & mask;
+            while(keyOffsets[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            keyOffsets[slot] = keyOffset;
+            stainIds[slot] = stainId;
+            times[slot] = time;
+        }
+
+        private void grow() {
+            int[] oldHashes = hashes;
+            int[] oldKeyOffsets = keyOffsets;
+            int[] oldStainIds = stainIds;
+            short[] oldTimes = times;
+            hashes = new int[oldKeyOffsets.length * 2];
+            keyOffsets = new int[oldKeyOffsets.length * 2];
+            stainIds = new int[oldKeyOffsets.length * 2];
+            times = new short[oldKeyOffsets.length * 2];
+            for(int slot = 0; slot < oldKeyOffsets.length; slot++) {
+                if(oldKeyOffsets[slot] != 0) {
+                    insert(oldHashes[slot], oldKeyOffsets[slot], oldStainIds[slot], oldTimes[slot]);
+                }
+            }
+        }
+
+        /**
+         * Empties the slot and shifts later keys in the same run back into
+         * it, so that find() never stops short at the gap.
+         */
+        void remove(int slot) {
+            int mask = keyOffsets.length - 1;
+            keyOffsets[slot] = 0;
+            count--;
+            int gap = slot;
+            for(int next = (gap + 1) & mask; keyOffsets[next] != 0; next = (next + 1) & mask) {
+                int home = hashes[next] & mask;
+                // the key at next can fill the gap unless its home slot
+                // lies (cyclically) after the gap and at or before next
+                boolean homeBetween = gap <= next ? (home > gap && home <= next) : (home > gap || home <= next);
+                if(!homeBetween) {
+                    hashes[gap] = hashes[next];
+                    keyOffsets[gap] = keyOffsets[next];
+                    stainIds[gap] = stainIds[next];
+                    times[gap] = times[next];
+                    keyOffsets[next] = 0;
+                    gap = next;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A Bloom filter over the bar code hashes, sized for about 1% false
+     * positives at its capacity. Bar codes are never taken out of it, so
+     * it is rebuilt when whole days expire or it fills up.
+     */
+    static class BloomFilter {
+
+        static final int BITS_PER_ENTRY = 10;
+        static final int HASH_COUNT = 7;
+
+        final long[] bits;
+        final int capacity;
+
+        BloomFilter(int capacity) {
+            int bitCount = Integer.highestOneBit(Math.max(capacity * BITS_PER_ENTRY, 1 << 16) - 1) << 1;
+            this.bits = new long[bitCount >>> 6];
+            this.capacity = bitCount / BITS_PER_ENTRY;
+        }
+
+        void add(int hash) {
+            int mask = (bits.length << 6) - 1;
+            int h2 = secondHash(hash);
+            for(int x = 0; x < HASH_COUNT; x++) {
+                int bit = (hash + x * h2) & mask;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(int hash) {
+            int mask = (bits.length << 6) - 1;
+            int h2 = secondHash(hash);
+            for(int x = 0; x < HASH_COUNT; x++) {
+                int bit = (hash + x * h2) & mask;
+                if((bits[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int secondHash(int hash) {
+            return (Integer.rotateLeft(hash, 15) * 0x9E3779B9) | 1;
+        }
+
+    }
+
+    final File indexFile;
+    final TreeMap<String, DayShard> shardByDay = new TreeMap<>();
+    final List<String> stains = new ArrayList<>();
+    final Map<String, Integer> stainIdByStain = new HashMap<>();
+    BloomFilter bloomFilter = new BloomFilter(0);
+    int size = 0;
+    final Map<String, String> fileNameTimestampByManifestName = new HashMap<>();
+    boolean dirty = false;
+
+    public DedupIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    static byte[] key(String slideBarCode) {
+        byte[] key = slideBarCode.getBytes(StandardCharsets.UTF_8);
+        if(key.length > 0xffff) {
+            throw new IllegalArgumentException("slide bar code is too long");
+        }
+        return key;
+    }
+
+    static int hash(byte[] key) {
+        int h = 0x811C9DC5;
+        for(byte b : key) {
+            h = (h ^ (b & 0xff)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // "HHmm" as a number and back
+    static short time(String fileNameTimestamp) {
+        return Short.parseShort(fileNameTimestamp.substring(9, 13));
+    }
+
+    static String fileNameTimestamp(String day, short time) {
+        char[] chars = new char[13];
+        day.getChars(0, 8, chars, 0);
+        chars[8] = '_';
+        chars[9] = (char)('0' + time / 1000);
+        chars[10] = (char)('0' + time / 100 % 10);
+        chars[11] = (char)('0' + time / 10 % 10);
+        chars[12] = (char)('0' + time % 10);
+        return new String(chars);
+    }
+
+    private int stainId(String stain) {
+        Integer stainId = stainIdByStain.get(stain);
+        if(stainId == null) {
+            stainId = stains.size();
+            stains.add(stain);
+            stainIdByStain.put(stain, stainId);
+        }
+        return stainId;
+    }
+
+    // the shard holding the key, latest day first, or null
+    private DayShard shardOf(byte[] key, int hash) {
+        if(!bloomFilter.mightContain(hash)) {
+            return null;
+        }
+        for(DayShard shard : shardByDay.descendingMap().values()) {
+            if(shard.find(key, hash) != -1) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    private void rebuildBloomFilter() {
+        bloomFilter = new BloomFilter(size * 2);
+        for(DayShard shard : shardByDay.values()) {
+            for(int slot = 0; slot < shard.keyOffsets.length; slot++) {
+                if(shard.keyOffsets[slot] != 0) {
+                    bloomFilter.add(shard.hashes[slot]);
+                }
+            }
+        }
+    }
+
+    public synchronized Entry get(String slideBarCode) {
+        byte[] key = key(slideBarCode);
+        int hash = hash(key);
+        DayShard shard = shardOf(key, hash);
+        if(shard == null) {
+            return null;
+        }
+        int slot = shard.find(key, hash);
+        return new Entry(stains.get(shard.stainIds[slot]), fileNameTimestamp(shard.day, shard.times[slot]));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int manifestCount() {
+        return fileNameTimestampByManifestName.size();
+    }
+
+    /**
+     * Records that a slide was sent in a manifest for an Epic report with
+     * the given timestamp. The latest timestamp wins, as it did when the
+     * processed manifests were read from latest to earliest.
+     */
+    public synchronized void merge(String slideBarCode, String stain, String fileNameTimestamp) {
+
+        byte[] key = key(slideBarCode);
+        int hash = hash(key);
+        String day = fileNameTimestamp.substring(0, 8);
+        short time = time(fileNameTimestamp);
+
+        DayShard shard = shardOf(key, hash);
+        if(shard != null) {
+            int slot = shard.find(key, hash);
+            int newer = day.compareTo(shard.day);
+            if(newer < 0 || (newer == 0 && time <= shard.times[slot])) {
+                return;
+            }
+            if(newer == 0) {
+                shard.stainIds[slot] = stainId(stain);
+                shard.times[slot] = time;
+                dirty = true;
+                return;
+            }
+            shard.remove(slot);
+            size--;
+        }
+
+        shardByDay.computeIfAbsent(day, DayShard::new).put(key, hash, stainId(stain), time);
+        size++;
+        if(size > bloomFilter.capacity) {
+            rebuildBloomFilter();
+        }
+        else {
+            bloomFilter.add(hash);
+        }
+        dirty = true;
+
+    }
+
+    /**
+     * Merges all of the slides in a manifest in one go, so nobody looking
+     * at the index ever sees half of a manifest.
+     */
+    public synchronized void mergeAll(List<String[]> slideBarCodeAndStainList, String fileNameTimestamp) {
+        for(String[] slideBarCodeAndStain : slideBarCodeAndStainList) {
+            merge(slideBarCodeAndStain[0], slideBarCodeAndStain[1], fileNameTimestamp);
+        }
+    }
+
+    /**
+     * Loads the index from disk. Returns an empty index if there isn't one
+     * yet or if it can't be read.
+     */
+    public static DedupIndex load(File indexFile, PrintStream out) {
+
+        DedupIndex index = new DedupIndex(indexFile);
+
+        if(!indexFile.exists()) {
+            return index;
+        }
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16))) {
+
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a dedup index file or wrong version");
+            }
+
+            int stainCount = in.readInt();
+            for(int x = 0; x < stainCount; x++) {
+                index.stainId(in.readUTF());
+            }
+
+            int manifestCount = in.readInt();
+            for(int x = 0; x < manifestCount; x++) {
+                String manifestName = in.readUTF();
+                index.fileNameTimestampByManifestName.put(manifestName, in.readUTF().intern());
+            }
+
+            // each shard is written as its day and its entries, each entry
+            // as the key (length and bytes, as stored in the shard), the
+            // stain id and the time of day
+            int shardCount = in.readInt();
+            for(int x = 0; x < shardCount; x++) {
+                DayShard shard = new DayShard(in.readUTF());
+                int entryCount = in.readInt();
+                for(int y = 0; y < entryCount; y++) {
+                    byte[] key = new byte[in.readUnsignedShort()];
+                    in.readFully(key);
+                    int stainId = in.readInt();
+                    if(stainId < 0 || stainId >= stainCount) {
+                        throw new IOException("stain id out of range");
+                    }
+                    shard.put(key, hash(key), stainId, in.readShort());
+                }
+                index.shardByDay.put(shard.day, shard);
+                index.size += entryCount;
+            }
+            index.rebuildBloomFilter();
+
+        }
+        catch(Exception e) {
+            out.println();
+            out.println(String.format("%s - WARNING: dedup index could not be read and will be rebuilt", new Date()));
+            out.println(String.format("    %s", indexFile.getPath()));
+            out.println(String.format("    %s", e.getMessage()));
+            index = new DedupIndex(indexFile);
+        }
+
+        return index;
+
+    }
+
+    /**
+     * Drops everything older than the lookback window and merges any
+     * processed manifests in the window that haven't been merged yet.
+     * Returns the manifests that were merged, latest first.
+     */
+    public List<FileDiscovery.ParsedName> refresh(File sectraProcessedDir, List<String> recentDays, PrintStream out) throws IOException {
+        return refresh(Collections.singletonList(sectraProcessedDir), recentDays, out);
+    }
+
+    /**
+     * Same as refresh(File, ...) but for the manifests in several
+     * directories: the outbox and the Sectra inbox, where manifests that
+     * have been sent but not processed yet wait, then the processed
+     * directory. A manifest that moves on while this runs is read from the
+     * directory it moved to. Returns the manifests that were merged, latest
+     * first in each directory.
+     */
+    public synchronized List<FileDiscovery.ParsedName> refresh(List<File> manifestDirs, List<String> recentDays, PrintStream out) throws IOException {
+
+        String oldestDay = Collections.min(recentDays);
+
+        SortedMap<String, DayShard> expiredShards = shardByDay.headMap(oldestDay);
+        if(!expiredShards.isEmpty()) {
+            for(DayShard shard : expiredShards.values()) { size -= shard.count; }
+            expiredShards.clear();
+            rebuildBloomFilter();
+            dirty = true;
+        }
+        if(fileNameTimestampByManifestName.values().removeIf(fileNameTimestamp -> fileNameTimestamp.substring(0, 8).compareTo(oldestDay) < 0)) { dirty = true; }
+
+        List<FileDiscovery.ParsedName> newFiles = new ArrayList<>();
+        for(File manifestDir : manifestDirs) {
+            for(FileDiscovery.ParsedName manifest : FileDiscovery.processedManifests(manifestDir, recentDays)) {
+                if(fileNameTimestampByManifestName.containsKey(manifest.file.getName())) {
+                    continue;
+                }
+                File file = manifest.file;
+                String fileNameTimestamp = manifest.timestamp;
+                // read in the charset ManifestWriter wrote it in
+                CsvTokenizer records;
+                try {
+                    records = CsvTokenizer.open(file, ManifestWriter.CHARSET);
+                }
+                catch(NoSuchFileException e) {
+                    // gone on to the inbox or the processed directory,
+                    // which are read after this one
+                    continue;
+                }
+                try {
+                    merge(records, file, fileNameTimestamp, out);
+                }
+                finally {
+                    records.close();
+                }
+                fileNameTimestampByManifestName.put(file.getName(), fileNameTimestamp.intern());
+                newFiles.add(manifest);
+                dirty = true;
+            }
+        }
+
+        return newFiles;
+
+    }
+
+    // merges the slides of one manifest
+    private void merge(CsvTokenizer records, File file, String fileNameTimestamp, PrintStream out) {
+        while(records.next()) {
+            try {
+                // only the two columns the duplicate check needs
+                merge(records.get("slideBarCode"), records.get("stain"), fileNameTimestamp);
+            }
+            catch(Exception e) {
+                out.println();
+                out.println(String.format("%s - WARNING: problem loading slide from previously processed manifest for deduplication", new Date()));
+                out.println(String.format("    %s", file.getPath()));
+                out.println(String.format("    %s", e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it into place, so a
+     * crash part way through never leaves a truncated index behind. Does
+     * nothing if nothing changed since the index was loaded or last saved.
+     */
+    public synchronized void save() throws IOException {
+
+        if(!dirty) {
+            return;
+        }
+
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+
+        try(DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(stains.size());
+            for(String stain : stains) {
+                dos.writeUTF(stain);
+            }
+            dos.writeInt(fileNameTimestampByManifestName.size());
+            for(Map.Entry<String, String> manifest : fileNameTimestampByManifestName.entrySet()) {
+                dos.writeUTF(manifest.getKey());
+                dos.writeUTF(manifest.getValue());
+            }
+            dos.writeInt(shardByDay.size());
+            for(DayShard shard : shardByDay.values()) {
+                dos.writeUTF(shard.day);
+                dos.writeInt(shard.count);
+                for(int slot = 0; slot < shard.keyOffsets.length; slot++) {
+                    if(shard.keyOffsets[slot] != 0) {
+                        int offset = shard.keyOffsets[slot] - 1;
+                        int length = ((shard.keyBytes[offset] & 0xff) << 8) | (shard.keyBytes[offset + 1] & 0xff);
+                        dos.write(shard.keyBytes, offset, 2 + length);
+                        dos.writeInt(shard.stainIds[slot]);
+                        dos.writeShort(shard.times[slot]);
+                    }
+                }
+            }
+        }
+
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        dirty = false;
+
+    }
+
+}
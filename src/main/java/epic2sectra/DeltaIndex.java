@@ -0,0 +1,296 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Delta mode for the "Today" reports. Each LabSlidesOrderedTodayEUH report
+ * contains every row of the earlier "Today" reports for the same day, so
+ * late in the day almost all of its rows were already handled (sent,
+ * filtered out or rejected) when the previous report was converted.
+ *
+ * When a "Today" report has been sent, a 64-bit fingerprint of every one
+ * of its rows (the row's bytes in a CSV report, its cells in an XLSX one)
+ * is kept here for its day. When
+ * the next "Today" report for that day is converted, rows whose
+ * fingerprint is in the previous report's set are skipped before they are
+ * bound to a Slide, filtered or checked for duplicates, which is the same
+ * outcome they would get from the dedup index. New rows and changed rows
+ * (a stain update, say) get a new fingerprint and are converted as usual.
+ *
+ * The fingerprints are only used if the filter settings (services,
+ * no-unstained and stain-regex) are the ones they were recorded with, and
+ * are only recorded once the report has been renamed SENT_TO_SECTRA, so a
+ * report that fails or is held back never hides its rows from the next
+ * one. Days older than report-file-name-lookback-days are dropped. If the
+ * file is missing or can't be read, every row is simply converted.
+ *
+ * @author Geoff
+ */
+public class DeltaIndex {
+
+    static final int MAGIC = 0x4532444C; // "E2DL"
+    static final int VERSION = 1;
+
+    /**
+     * A set of row fingerprints (open addressing, 0 marks an empty slot so
+     * a fingerprint of 0 is stored as 1).
+     */
+    public static class Fingerprints {
+
+        long[] table = new long[1024];
+        int size = 0;
+
+        public boolean contains(long fingerprint) {
+            if(fingerprint == 0) { fingerprint = 1; }
+            int mask = table.length - 1;
+            for(int slot = (int)(fingerprint ^ (fingerprint >>> 32)) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                if(table[slot] == fingerprint) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void add(long fingerprint) {
+            if(fingerprint == 0) { fingerprint = 1; }
+            if((size + 1) * 2 > table.length) {
+                long[] oldTable = table;
+                table = new long[oldTable.length * 2];
+                size = 0;
+                for(long oldFingerprint : oldTable) {
+                    if(oldFingerprint != 0) { insert(oldFingerprint); }
+                }
+            }
+            insert(fingerprint);
+        }
+
+        private void insert(long fingerprint) {
+            int mask = table.length - 1;
+            int slot = (int)(fingerprint ^ (fingerprint >>> 32)) & mask;
+            while(table[slot] != 0) {
+                if(table[slot] == fingerprint) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = fingerprint;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+    }
+
+    /**
+     * The last "Today" report sent for a day.
+     */
+    public static class Report {
+
+        public final String fileNameTimestamp;
+        final long settingsFingerprint;
+        final Fingerprints rows;
+
+        Report(String fileNameTimestamp, long settingsFingerprint, Fingerprints rows) {
+            this.fileNameTimestamp = fileNameTimestamp;
+            this.settingsFingerprint = settingsFingerprint;
+            this.rows = rows;
+        }
+
+    }
+
+    final File indexFile;
+    final long settingsFingerprint;
+    final int lookbackDays;
+    final TreeMap<String, Report> reportByDay = new TreeMap<>();
+    boolean loaded = false;
+
+    public DeltaIndex(File indexFile, long settingsFingerprint, int lookbackDays) {
+        this.indexFile = indexFile;
+        this.settingsFingerprint = settingsFingerprint;
+        this.lookbackDays = lookbackDays;
+    }
+
+    /**
+     * Fingerprints the filter settings, so rows handled under different
+     * settings aren't skipped.
+     */
+    public static long settingsFingerprint(List<String> services, boolean noUnstained, String stainRegex) {
+        long h = 0xCBF29CE484222325L;
+        for(String service : services) { h = mix(h, service); }
+        h = mix(h, String.valueOf(noUnstained));
+        h = mix(h, String.valueOf(stainRegex));
+        return finish(h);
+    }
+
+    /**
+     * The current record's bytes as they are in the file, so no field has
+     * to be decoded.
+     */
+    public static long fingerprint(CsvTokenizer record) {
+        long h = 0xCBF29CE484222325L;
+        for(int x = record.recordStart; x < record.recordEnd; x++) {
+            h = (h ^ (record.bytes[x] & 0xff)) * 0x100000001B3L;
+        }
+        return finish(h);
+    }
+
+    public static long fingerprint(String[] cells) {
+        long h = 0xCBF29CE484222325L;
+        for(String cell : cells) { h = mix(h, cell); }
+        return finish(h);
+    }
+
+    // FNV-1a over the characters, with a separator that can't be confused
+    // with a character after each value (and a different one for null)
+    private static long mix(long h, String value) {
+        if(value == null) {
+            return (h ^ 0x10000) * 0x100000001B3L;
+        }
+        for(int x = 0; x < value.length(); x++) {
+            h = (h ^ value.charAt(x)) * 0x100000001B3L;
+        }
+        return (h ^ 0x20000) * 0x100000001B3L;
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Only the "Today" reports are supersets of the earlier reports for
+     * their day.
+     */
+    public static boolean appliesTo(File file) {
+        FileDiscovery.ParsedName name = FileDiscovery.parseReportName(file);
+        return name != null && name.kind == FileDiscovery.Kind.TODAY_REPORT && !name.isProcessed();
+    }
+
+    /**
+     * Sets the conversion up for delta mode: it collects the fingerprints
+     * of the report's rows and, if an earlier "Today" report for the same
+     * day was sent with the same filter settings, skips that report's rows.
+     */
+    public synchronized void begin(File file, Conversion conversion, PrintStream out) {
+
+        if(!appliesTo(file)) {
+            return;
+        }
+
+        load(out);
+
+        FileDiscovery.ParsedName name = FileDiscovery.parseReportName(file);
+        Report previous = reportByDay.get(name.day);
+
+        conversion.rowFingerprints = new Fingerprints();
+        if(previous != null && previous.settingsFingerprint == settingsFingerprint && previous.fileNameTimestamp.compareTo(name.timestamp) < 0) {
+            conversion.previousReport = previous;
+        }
+
+    }
+
+    /**
+     * Records the rows of a "Today" report that has been sent, replacing
+     * the previous report for its day, and saves the index.
+     */
+    public synchronized void commit(File file, Conversion conversion, PrintStream out) throws IOException {
+
+        if(conversion.rowFingerprints == null) {
+            return;
+        }
+
+        load(out);
+
+        FileDiscovery.ParsedName name = FileDiscovery.parseReportName(file);
+        reportByDay.put(name.day, new Report(name.timestamp, settingsFingerprint, conversion.rowFingerprints));
+
+        Calendar cal = ConvertCsvOrXlsx.calendar();
+        cal.add(Calendar.DATE, -lookbackDays);
+        reportByDay.headMap(new SimpleDateFormat("yyyyMMdd").format(cal.getTime())).clear();
+
+        save();
+
+    }
+
+    private void load(PrintStream out) {
+
+        if(loaded) {
+            return;
+        }
+        loaded = true;
+
+        if(!indexFile.exists()) {
+            return;
+        }
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16))) {
+
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a delta index file or wrong version");
+            }
+
+            int reportCount = in.readInt();
+            for(int x = 0; x < reportCount; x++) {
+                String day = in.readUTF();
+                String fileNameTimestamp = in.readUTF();
+                long reportSettingsFingerprint = in.readLong();
+                Fingerprints rows = new Fingerprints();
+                int rowCount = in.readInt();
+                for(int y = 0; y < rowCount; y++) {
+                    rows.add(in.readLong());
+                }
+                reportByDay.put(day, new Report(fileNameTimestamp, reportSettingsFingerprint, rows));
+            }
+
+        }
+        catch(Exception e) {
+            out.println();
+            out.println(String.format("%s - WARNING: delta index could not be read, so every row of the next \"Today\" report will be converted", new Date()));
+            out.println(String.format("    %s", indexFile.getPath()));
+            out.println(String.format("    %s", e.getMessage()));
+            reportByDay.clear();
+        }
+
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it into place, so a
+     * crash part way through never leaves a truncated index behind.
+     */
+    private void save() throws IOException {
+
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+
+        try(DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(reportByDay.size());
+            for(Map.Entry<String, Report> entry : reportByDay.entrySet()) {
+                Report report = entry.getValue();
+                dos.writeUTF(entry.getKey());
+                dos.writeUTF(report.fileNameTimestamp);
+                dos.writeLong(report.settingsFingerprint);
+                dos.writeInt(report.rows.size());
+                for(long fingerprint : report.rows.table) {
+                    if(fingerprint != 0) {
+                        dos.writeLong(fingerprint);
+                    }
+                }
+            }
+        }
+
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    }
+
+}
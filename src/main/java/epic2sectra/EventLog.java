@@ -0,0 +1,152 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.apache.logging.log4j.core.config.builder.api.AppenderComponentBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+import org.apache.logging.log4j.message.MapMessage;
+
+/**
+ * Writes the two logs of a run from a properties file through log4j2:
+ *
+ *   log-file        everything the converter has always logged, line for
+ *                   line and byte for byte, for people to read
+ *   event-log-file  one JSON object per line for each thing that happens
+ *                   to a report (converted, sent, rejected, not_ready, ...)
+ *                   and each pass, with the file, row counts, skip reasons
+ *                   and durations as fields, for monitoring to parse
+ *
+ * Both go through an AsyncAppender in front of a RollingFile appender, so
+ * the disk is written on log4j's thread and a burst of warnings (say, a
+ * dedup index full of unreadable manifests) doesn't hold up the
+ * conversion. Logging only waits if QUEUE_EVENTS lines are already queued.
+ * Whatever is still queued is written by log4j's shutdown hook when the
+ * JVM exits. The files roll over at log-file-max-mb megabytes and
+ * log-file-max-files of the old ones are kept.
+ *
+ * In singleton mode there is no log file: the log goes to the console as
+ * before and event() does nothing.
+ *
+ * @author Geoff
+ */
+public class EventLog {
+
+    static final int QUEUE_EVENTS = 16384;
+
+    static Logger textLogger;
+    static Logger eventLogger;
+    static File eventLogFile;
+
+    /**
+     * Sets log4j up and returns the PrintStream the rest of the converter
+     * logs to.
+     */
+    public static PrintStream open(File logFile, File eventLogFile, int maxMegabytes, int maxFiles) throws UnsupportedEncodingException {
+
+        ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+        builder.setConfigurationName("epic2sectra");
+        builder.setStatusLevel(Level.WARN);
+        rollingFile(builder, "text", logFile, "%m%n", maxMegabytes, maxFiles);
+        rollingFile(builder, "events", eventLogFile, "%m{JSON}%n", maxMegabytes, maxFiles);
+        builder.add(builder.newLogger("epic2sectra.log", Level.INFO).add(builder.newAppenderRef("text")).addAttribute("additivity", false));
+        builder.add(builder.newLogger("epic2sectra.events", Level.INFO).add(builder.newAppenderRef("events")).addAttribute("additivity", false));
+        builder.add(builder.newRootLogger(Level.WARN));
+        Configurator.initialize(builder.build());
+
+        textLogger = LogManager.getLogger("epic2sectra.log");
+        eventLogger = LogManager.getLogger("epic2sectra.events");
+        EventLog.eventLogFile = eventLogFile;
+
+        return new PrintStream(new LineOutputStream(textLogger), true, ManifestWriter.CHARSET.name());
+
+    }
+
+    // an async appender named name in front of a rolling file appender
+    private static void rollingFile(ConfigurationBuilder<BuiltConfiguration> builder, String name, File file, String pattern, int maxMegabytes, int maxFiles) {
+
+        // forward slashes, since a backslash is an escape in log4j patterns
+        String path = file.getAbsolutePath().replace('\\', '/');
+        int dot = path.lastIndexOf('.');
+        String filePattern = dot > path.lastIndexOf('/') ? path.substring(0, dot) + "-%i" + path.substring(dot) : path + "-%i";
+
+        AppenderComponentBuilder rollingFile = builder.newAppender(name + "File", "RollingFile")
+            .addAttribute("fileName", path)
+            .addAttribute("filePattern", filePattern)
+            .addAttribute("append", true)
+            .add(builder.newLayout("PatternLayout").addAttribute("pattern", pattern).addAttribute("charset", ManifestWriter.CHARSET.name()))
+            .addComponent(builder.newComponent("Policies").addComponent(builder.newComponent("SizeBasedTriggeringPolicy").addAttribute("size", maxMegabytes + " MB")))
+            .addComponent(builder.newComponent("DefaultRolloverStrategy").addAttribute("max", maxFiles));
+        builder.add(rollingFile);
+
+        builder.add(builder.newAppender(name, "Async")
+            .addAttribute("bufferSize", QUEUE_EVENTS)
+            .addComponent(builder.newAppenderRef(name + "File")));
+
+    }
+
+    /**
+     * Logs a structured event: its name, the time, the pipeline (if there
+     * are several) and the given name/value pairs.
+     */
+    public static void event(String event, Configuration config, Object... fields) {
+        if(eventLogger == null) {
+            return;
+        }
+        MapMessage<?, Object> message = new MapMessage<>();
+        message.with("event", event);
+        message.with("time", Instant.ofEpochMilli(ConvertCsvOrXlsx.clock.millis()).toString());
+        if(config != null && config.pipeline != null) {
+            message.with("pipeline", config.pipeline);
+        }
+        for(int x = 0; x + 1 < fields.length; x += 2) {
+            message.with((String)fields[x], fields[x + 1]);
+        }
+        eventLogger.info(message);
+    }
+
+    /**
+     * Hands each line written to it to the logger, without the line
+     * separator. The bytes are decoded the way PrintStream encoded them.
+     */
+    static class LineOutputStream extends OutputStream {
+
+        final Logger logger;
+        final Charset charset = ManifestWriter.CHARSET;
+        byte[] line = new byte[256];
+        int length = 0;
+
+        LineOutputStream(Logger logger) {
+            this.logger = logger;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if(b == '\n') {
+                int end = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+                logger.info(new String(line, 0, end, charset));
+                length = 0;
+                return;
+            }
+            if(length == line.length) {
+                line = java.util.Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = (byte)b;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            for(int x = off; x < off + len; x++) {
+                write(b[x]);
+            }
+        }
+
+    }
+
+}
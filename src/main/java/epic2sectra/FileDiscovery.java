@@ -0,0 +1,180 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the Epic reports to convert (step 2 of ConvertCsvOrXlsx) and the
+ * processed manifests to load into the dedup index (step 4). Each directory
+ * is read once, each file name is parsed once with a precompiled pattern
+ * into a ParsedName, and the sorting and selection work on the parsed
+ * fields. The Epic report directories pile up thousands of renamed
+ * .SENT_TO_SECTRA_nnn files, and this keeps those cheap to skip over.
+ *
+ * @author Geoff
+ */
+public class FileDiscovery {
+
+    public enum Kind { TODAY_REPORT, PRIOR_DAY_REPORT, MISSED_REPORT, MANIFEST }
+
+    // e.g., LabSlidesOrderedTodayEUH_20230428_1150.SENT_TO_SECTRA_028.csv
+    static final Pattern REPORT_PATTERN = Pattern.compile("(?i)^([^\\.]*)_([0-9]{8})_([0-9]{4})(\\.[^\\.]*)?\\.(csv|xlsx)$");
+    // e.g., LabSlidesOrderedTodayEUH_20230428_1150.csv.sectra_20230428_1152.csv
+    static final Pattern MANIFEST_PATTERN = Pattern.compile("(?i)^([^\\.]*)_([0-9]{8})_([0-9]{4})(\\..*)?\\.csv$");
+
+    /**
+     * The parts of a report or manifest file name that matter.
+     */
+    public static class ParsedName {
+
+        public final File file;
+        public final Kind kind;
+        public final String prefix;
+        public final String day;             // yyyyMMdd
+        public final String timestamp;       // yyyyMMdd_HHmm
+        public final String processedSuffix; // e.g., ".SENT_TO_SECTRA_028", null if not processed yet
+        public final String extension;       // "csv" or "xlsx", lower case
+
+        ParsedName(File file, Kind kind, String prefix, String day, String time, String processedSuffix, String extension) {
+            this.file = file;
+            this.kind = kind;
+            this.prefix = prefix;
+            this.day = day;
+            this.timestamp = day + "_" + time;
+            this.processedSuffix = processedSuffix;
+            this.extension = extension;
+        }
+
+        public boolean isProcessed() {
+            return processedSuffix != null;
+        }
+
+    }
+
+    /**
+     * Parses the name of an Epic report. Returns null if the name doesn't
+     * look like one.
+     */
+    public static ParsedName parseReportName(File file) {
+        Matcher m = REPORT_PATTERN.matcher(file.getName());
+        if(!m.matches()) {
+            return null;
+        }
+        String prefix = m.group(1);
+        String extension = m.group(5).toLowerCase();
+        Kind kind;
+        if(extension.equals("xlsx")) {
+            kind = Kind.MISSED_REPORT;
+        }
+        else if(prefix.equalsIgnoreCase("LabSlidesOrderedTodayEUH")) {
+            kind = Kind.TODAY_REPORT;
+        }
+        else if(prefix.equalsIgnoreCase("LabSlidesOrderedPriorDayEUH")) {
+            kind = Kind.PRIOR_DAY_REPORT;
+        }
+        else {
+            kind = null; // some other CSV report (e.g., one converted by hand)
+        }
+        return new ParsedName(file, kind, prefix, m.group(2), m.group(3), m.group(4), extension);
+    }
+
+    /**
+     * Parses the name of a manifest in the Sectra processed directory.
+     * Returns null if the name doesn't look like one.
+     */
+    public static ParsedName parseManifestName(File file) {
+        Matcher m = MANIFEST_PATTERN.matcher(file.getName());
+        if(!m.matches()) {
+            return null;
+        }
+        return new ParsedName(file, Kind.MANIFEST, m.group(1), m.group(2), m.group(3), m.group(4), "csv");
+    }
+
+    /**
+     * Returns the Epic reports waiting to be converted, latest first. Only
+     * the latest "Today" report for a day is a candidate, since it contains
+     * all of the records of the earlier "Today" reports that day, and it is
+     * skipped if it has already been processed.
+     */
+    public static List<File> filesToProcess(File epicReportDir, File epicMissedReportDir, List<String> recentDays) throws IOException {
+
+        Set<String> recentDaySet = new HashSet<>(recentDays);
+        List<ParsedName> allNames = new ArrayList<>();
+
+        // Epic_reports
+        for(ParsedName name : scan(epicReportDir, FileDiscovery::parseReportName)) {
+            if((name.kind == Kind.TODAY_REPORT || name.kind == Kind.PRIOR_DAY_REPORT) && recentDaySet.contains(name.day)) {
+                allNames.add(name);
+            }
+        }
+        // Epic_missed_slide_report
+        for(ParsedName name : scan(epicMissedReportDir, FileDiscovery::parseReportName)) {
+            if(name.kind == Kind.MISSED_REPORT && recentDaySet.contains(name.day)) {
+                allNames.add(name);
+            }
+        }
+
+        // sort in reverse order based on the timestamp in the file name
+        allNames.sort(Comparator.comparing((ParsedName name) -> name.timestamp).reversed());
+
+        List<File> filesToProcess = new ArrayList<>();
+        String lastDay = "99999999";
+        for(ParsedName name : allNames) {
+            if(name.kind == Kind.TODAY_REPORT) {
+                if(!name.day.equals(lastDay)) {
+                    lastDay = name.day;
+                    if(!name.isProcessed()) {
+                        filesToProcess.add(name.file);
+                    }
+                }
+            }
+            else if(!name.prefix.isEmpty() && !name.isProcessed()) {
+                filesToProcess.add(name.file);
+            }
+        }
+
+        return filesToProcess;
+
+    }
+
+    /**
+     * Returns the manifests in the Sectra processed directory from the given
+     * days, latest first.
+     */
+    public static List<ParsedName> processedManifests(File sectraProcessedDir, List<String> recentDays) throws IOException {
+        Set<String> recentDaySet = new HashSet<>(recentDays);
+        List<ParsedName> manifests = new ArrayList<>();
+        for(ParsedName name : scan(sectraProcessedDir, FileDiscovery::parseManifestName)) {
+            if(recentDaySet.contains(name.day)) {
+                manifests.add(name);
+            }
+        }
+        manifests.sort(Comparator.comparing((ParsedName name) -> name.timestamp).reversed());
+        return manifests;
+    }
+
+    interface NameParser {
+        ParsedName parse(File file);
+    }
+
+    /**
+     * Reads the directory once and returns the parsed names of the entries
+     * the parser recognizes.
+     */
+    static List<ParsedName> scan(File dir, NameParser parser) throws IOException {
+        List<ParsedName> names = new ArrayList<>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+            for(Path path : stream) {
+                ParsedName name = parser.parse(new File(dir, path.getFileName().toString()));
+                if(name != null) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+}
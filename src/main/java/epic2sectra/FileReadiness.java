@@ -0,0 +1,218 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Decides whether an Epic report has been completely written and is safe
+ * to convert. The file-readiness property lists the checks to use, in
+ * order (e.g., "size-mtime,md5"). The first check that can tell one way
+ * or the other decides; a check that can't tell (e.g., the file system
+ * doesn't support locks) falls through to the next one. No check waits
+ * longer than file-readiness-max-wait-seconds.
+ *
+ *   size-mtime - the size and last-modified time have stopped changing
+ *                (polls with exponential backoff, and is usually done in
+ *                a fraction of a second for a file that landed a while ago)
+ *   lock       - we can get a shared lock on the file, which the writer's
+ *                exclusive lock would prevent on Windows (the file is
+ *                only opened for reading, so read-only reports work too)
+ *   rename     - always ready, for writers that write to a temporary name
+ *                and rename the file into place when it is complete
+ *   md5        - the MD5 hash is the same at the start and the end of the
+ *                wait (reads the whole file twice, so it's a last resort)
+ *
+ * @author Geoff
+ */
+public abstract class FileReadiness {
+
+    public static final String DEFAULT = "size-mtime,md5";
+
+    public enum Verdict { READY, NOT_READY, UNKNOWN }
+
+    final String name;
+    long maxWaitMillis;
+
+    FileReadiness(String name) {
+        this.name = name;
+    }
+
+    abstract Verdict check(File file, PrintStream out) throws Exception;
+
+    /**
+     * Returns the checks named in the comma-separated spec.
+     */
+    public static List<FileReadiness> parse(String spec, int maxWaitSeconds) {
+        List<FileReadiness> checks = new ArrayList<>();
+        for(String checkName : spec.split(",")) {
+            FileReadiness check;
+            switch(checkName.trim().toLowerCase()) {
+                case "size-mtime": check = new SizeMtime(); break;
+                case "lock": check = new Lock(); break;
+                case "rename": check = new Rename(); break;
+                case "md5": check = new Md5(); break;
+                default: throw new IllegalArgumentException(String.format("unknown file-readiness check \"%s\"", checkName.trim()));
+            }
+            check.maxWaitMillis = maxWaitSeconds * 1000L;
+            checks.add(check);
+        }
+        return checks;
+    }
+
+    /**
+     * Returns normally if the file is ready and otherwise throws an
+     * exception whose message starts with "file not stable", which tells
+     * step 5 to leave the file alone and try again later.
+     */
+    public static void awaitReady(List<FileReadiness> checks, File file, PrintStream out) throws Exception {
+        long start = System.nanoTime();
+        try {
+            for(FileReadiness check : checks) {
+                Verdict verdict = check.check(file, out);
+                if(verdict == Verdict.READY) {
+                    return;
+                }
+                if(verdict == Verdict.NOT_READY) {
+                    throw new Exception(String.format("file not stable (%s check)", check.name));
+                }
+            }
+            throw new Exception("file not stable (no file-readiness check could tell)");
+        }
+        finally {
+            Metrics.fileReadinessWait.record(System.nanoTime() - start);
+        }
+    }
+
+    static class SizeMtime extends FileReadiness {
+
+        // the file must not have changed for this long
+        static final long QUIET_MILLIS = 2000;
+        // but we always watch it ourselves for at least this long, in case
+        // the file server's clock doesn't agree with ours
+        static final long MIN_OBSERVED_MILLIS = 100;
+
+        SizeMtime() { super("size-mtime"); }
+
+        @Override
+        Verdict check(File file, PrintStream out) throws InterruptedException {
+            long start = System.currentTimeMillis();
+            long size = file.length();
+            long mtime = file.lastModified();
+            if(mtime == 0) {
+                return Verdict.UNKNOWN;
+            }
+            long unchangedSince = start;
+            long delay = MIN_OBSERVED_MILLIS;
+            while(true) {
+                long now = System.currentTimeMillis();
+                long observed = now - unchangedSince;
+                if(observed >= QUIET_MILLIS || (observed >= MIN_OBSERVED_MILLIS && now - mtime >= QUIET_MILLIS)) {
+                    out.println(String.format("    file is stable (size = %d bytes, unchanged for %d ms, checked in %d ms)", size, Math.max(observed, now - mtime), now - start));
+                    return Verdict.READY;
+                }
+                if(now - start + delay > maxWaitMillis) {
+                    out.println(String.format("    file is still changing after %d ms (size = %d bytes)", now - start, size));
+                    return Verdict.NOT_READY;
+                }
+                Thread.sleep(delay);
+                delay = Math.min(delay * 2, 1000);
+                long newSize = file.length();
+                long newMtime = file.lastModified();
+                if(newSize != size || newMtime != mtime) {
+                    size = newSize;
+                    mtime = newMtime;
+                    unchangedSince = System.currentTimeMillis();
+                }
+            }
+        }
+
+    }
+
+    static class Lock extends FileReadiness {
+
+        Lock() { super("lock"); }
+
+        @Override
+        Verdict check(File file, PrintStream out) {
+            try(
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel();
+            ) {
+                try(FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true)) {
+                    if(lock == null) {
+                        out.println("    file is locked by another process");
+                        return Verdict.NOT_READY;
+                    }
+                }
+                out.println("    file is not locked by another process");
+                return Verdict.READY;
+            }
+            catch(FileNotFoundException e) {
+                // Windows refuses to open a file that another process has
+                // open for writing without sharing it
+                out.println(String.format("    file can't be opened (%s)", e.getMessage()));
+                return Verdict.NOT_READY;
+            }
+            catch(IOException | UnsupportedOperationException e) {
+                return Verdict.UNKNOWN;
+            }
+        }
+
+    }
+
+    static class Rename extends FileReadiness {
+
+        Rename() { super("rename"); }
+
+        @Override
+        Verdict check(File file, PrintStream out) {
+            out.println("    file is ready (written under a temporary name and renamed into place)");
+            return Verdict.READY;
+        }
+
+    }
+
+    static class Md5 extends FileReadiness {
+
+        Md5() { super("md5"); }
+
+        @Override
+        Verdict check(File file, PrintStream out) throws Exception {
+            int[] byteCounts = new int[] { 0, 0 };
+            byte[][] md5Hashes = new byte[2][];
+            for(int x = 0; x < 2; x++) {
+                MessageDigest md = MessageDigest.getInstance("MD5");
+                try (
+                    FileInputStream fileInputStream = new FileInputStream(file);
+                    DigestInputStream dis = new DigestInputStream(fileInputStream, md);
+                ) {
+                    //byteCounts[x] = dis.readAllBytes().length; - not in Java 1.8
+                    byte[] buf = new byte[100000];
+                    int readLen;
+                    while ((readLen = dis.read(buf, 0, 100000)) != -1) { byteCounts[x] += readLen; }
+                    md5Hashes[x] = md.digest();
+                    out.println(String.format("    MD5 hash = %s file size = %d bytes", byteArrayToHex(md5Hashes[x]), byteCounts[x]));
+                    if(x == 0) { Thread.sleep(maxWaitMillis); }
+                }
+            }
+            if(byteCounts[0] != byteCounts[1] || !Arrays.equals(md5Hashes[0], md5Hashes[1])) {
+                return Verdict.NOT_READY;
+            }
+            out.println(String.format("    file is stable over %d seconds", maxWaitMillis / 1000));
+            return Verdict.READY;
+        }
+
+        private static String byteArrayToHex(byte[] a) {
+           StringBuilder sb = new StringBuilder(a.length * 2);
+           for(byte b: a)
+              sb.append(String.format("%02x", b));
+           return sb.toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,129 @@
+package epic2sectra;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * The service, unstained and stain-regex filters, set up once in step 1
+ * rather than on every row. The stain regex is compiled a single time and,
+ * since an Epic report only uses a few hundred different stain names, the
+ * stain verdict is worked out once per stain name and remembered. Service
+ * verdicts are remembered the same way, keyed by the service as it appears
+ * in the report. The engine is shared by every conversion (including the
+ * ones running in parallel), so the memo tables are concurrent.
+ *
+ * Each conversion keeps its own Stats, which count how many slides each
+ * rule filtered out and how long the checks took.
+ *
+ * @author Geoff
+ */
+public class FilterEngine {
+
+    public enum Verdict { PASS, SERVICE, UNSTAINED, STAIN_REGEX }
+
+    // stop remembering verdicts past this many distinct names, in case a
+    // report has garbage in the stain or service column
+    static final int MAX_MEMO_SIZE = 10000;
+
+    final Set<String> services;
+    final boolean noUnstained;
+    final Pattern stainPattern; // null if stain filtering is off
+
+    final Map<String, Boolean> serviceVerdictMap = new ConcurrentHashMap<>();
+    final Map<String, Verdict> stainVerdictMap = new ConcurrentHashMap<>();
+
+    // one engine per distinct set of filter settings, so pipelines with
+    // the same filters share the compiled regex and the memo tables
+    static final Map<String, FilterEngine> SHARED = new ConcurrentHashMap<>();
+
+    /**
+     * The engine for these settings, built the first time they are asked
+     * for. Throws PatternSyntaxException if stainRegex is not a valid
+     * regular expression.
+     */
+    public static FilterEngine shared(List<String> services, boolean noUnstained, String stainRegex) {
+        String key = String.join(",", services).toUpperCase() + "\n" + noUnstained + "\n" + stainRegex;
+        FilterEngine filterEngine = SHARED.get(key);
+        if(filterEngine == null) {
+            filterEngine = new FilterEngine(services, noUnstained, stainRegex);
+            SHARED.putIfAbsent(key, filterEngine);
+        }
+        return SHARED.get(key);
+    }
+
+    /**
+     * Throws PatternSyntaxException if stainRegex is not a valid regular
+     * expression.
+     */
+    public FilterEngine(List<String> services, boolean noUnstained, String stainRegex) {
+        this.services = new HashSet<>();
+        for(String service : services) { this.services.add(service.toUpperCase()); }
+        this.noUnstained = noUnstained;
+        this.stainPattern = stainRegex != null ? Pattern.compile(stainRegex) : null;
+    }
+
+    public static class Stats {
+
+        public final long[] hits = new long[Verdict.values().length];
+        public long serviceNanos = 0;
+        public long stainNanos = 0;
+        public int stainsEvaluated = 0;
+
+        @Override
+        public String toString() {
+            return String.format("service %d hits (%.1f ms), unstained %d hits, stain-regex %d hits, stain checks %.1f ms (%d distinct stains evaluated)",
+                hits[Verdict.SERVICE.ordinal()], serviceNanos / 1e6,
+                hits[Verdict.UNSTAINED.ordinal()], hits[Verdict.STAIN_REGEX.ordinal()],
+                stainNanos / 1e6, stainsEvaluated);
+        }
+
+    }
+
+    /**
+     * Returns the first rule that filters the slide out, or PASS.
+     */
+    public Verdict check(String service, String stain, Stats stats) {
+
+        Verdict verdict = Verdict.PASS;
+
+        if(!services.isEmpty()) {
+            long start = System.nanoTime();
+            Boolean included = serviceVerdictMap.get(service);
+            if(included == null) {
+                included = services.contains(service.toUpperCase());
+                if(serviceVerdictMap.size() < MAX_MEMO_SIZE) { serviceVerdictMap.put(service, included); }
+            }
+            stats.serviceNanos += System.nanoTime() - start;
+            if(!included) {
+                verdict = Verdict.SERVICE;
+            }
+        }
+
+        if(verdict == Verdict.PASS && (noUnstained || stainPattern != null)) {
+            long start = System.nanoTime();
+            verdict = stainVerdictMap.get(stain);
+            if(verdict == null) {
+                verdict = checkStain(stain);
+                stats.stainsEvaluated++;
+                if(stainVerdictMap.size() < MAX_MEMO_SIZE) { stainVerdictMap.put(stain, verdict); }
+            }
+            stats.stainNanos += System.nanoTime() - start;
+        }
+
+        stats.hits[verdict.ordinal()]++;
+        return verdict;
+
+    }
+
+    private Verdict checkStain(String stain) {
+        if(noUnstained && (stain.startsWith("US") || stain.startsWith("Unstained"))) {
+            return Verdict.UNSTAINED;
+        }
+        if(stainPattern != null && stainPattern.matcher(stain).matches()) {
+            return Verdict.STAIN_REGEX;
+        }
+        return Verdict.PASS;
+    }
+
+}
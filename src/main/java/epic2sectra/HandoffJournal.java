@@ -0,0 +1,203 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Makes handing a manifest to Sectra crash safe. A send is three steps:
+ * the manifest goes into the Sectra inbox, then the Epic report is renamed
+ * SENT_TO_SECTRA so it isn't converted again. A crash in between used to
+ * leave a half-copied manifest in the inbox, or a manifest in the inbox
+ * with the report still waiting to be converted (and sent) again.
+ *
+ * Now the manifest is fsynced before anything else happens. A BEGIN record
+ * goes to this journal (and is fsynced) before the manifest moves, the
+ * move itself is atomic, a MOVED record follows it, and a DONE record
+ * follows the report rename. At the start of every pass, recover() looks
+ * for sends that never got to DONE:
+ *
+ *   BEGIN, manifest still next to the report - it never reached the inbox,
+ *          so it is deleted and the report will simply be converted again
+ *   BEGIN, manifest gone (or in the inbox), or MOVED - Sectra has it, so
+ *          the report is renamed SENT_TO_SECTRA
+ *
+ * A manifest that was split into parts (see ManifestSplitter) is one send
+ * per part, and every part is journaled before the first one is written.
+ * If the manifest the parts were split from is still there, the split
+ * didn't finish and the parts are deleted with it. If any part of a report
+ * reached the inbox, the parts that didn't are moved after it, so a report
+ * is never half sent and then converted again.
+ *
+ * The journal is emptied once everything in it is resolved.
+ *
+ * @author Geoff
+ */
+public class HandoffJournal {
+
+    static final String BEGIN = "BEGIN";
+    static final String MOVED = "MOVED";
+    static final String DONE = "DONE";
+
+    final File journalFile;
+
+    public HandoffJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * One manifest on its way to the inbox.
+     */
+    public static class Handoff {
+
+        final File report;
+        final File manifest;
+        final File inboxTarget;
+        final File reportTarget;
+
+        public Handoff(File report, File manifest, File inboxTarget, File reportTarget) {
+            this.report = report;
+            this.manifest = manifest;
+            this.inboxTarget = inboxTarget;
+            this.reportTarget = reportTarget;
+        }
+
+    }
+
+    public synchronized void begin(Handoff handoff) throws IOException {
+        append(BEGIN, handoff);
+    }
+
+    public synchronized void moved(Handoff handoff) throws IOException {
+        append(MOVED, handoff);
+    }
+
+    public synchronized void done(Handoff handoff) throws IOException {
+        append(DONE, handoff);
+    }
+
+    private void append(String state, Handoff handoff) throws IOException {
+        String line = String.join("\t", state, handoff.report.getPath(), handoff.manifest.getPath(), handoff.inboxTarget.getPath(), handoff.reportTarget.getPath()) + "\n";
+        try(FileOutputStream journalOutputStream = new FileOutputStream(journalFile, true)) {
+            journalOutputStream.write(line.getBytes("UTF-8"));
+            journalOutputStream.getFD().sync();
+        }
+    }
+
+    /**
+     * Moves the manifest into the inbox so that Sectra either sees all of
+     * it or none of it. If the inbox is on another volume, where a rename
+     * can't be atomic, the manifest is copied to a temporary name in the
+     * inbox, fsynced and then renamed. Like Files.move without options,
+     * this refuses to overwrite a manifest that is already in the inbox.
+     */
+    public static void moveIntoInbox(File manifest, File inboxTarget) throws IOException {
+        if(inboxTarget.exists()) {
+            throw new FileAlreadyExistsException(inboxTarget.getPath());
+        }
+        try {
+            Files.move(manifest.toPath(), inboxTarget.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(AtomicMoveNotSupportedException e) {
+            File tempFile = inboxTempFile(inboxTarget);
+            Files.copy(manifest.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try(FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tempFile.toPath(), inboxTarget.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(manifest.toPath());
+        }
+    }
+
+    // not .csv, so neither Sectra nor the inbox check picks it up
+    static File inboxTempFile(File inboxTarget) {
+        return new File(inboxTarget.getParentFile(), inboxTarget.getName() + ".tmp");
+    }
+
+    /**
+     * Finishes or rolls back every send that was interrupted, then empties
+     * the journal.
+     */
+    public synchronized void recover(PrintStream out) throws IOException {
+
+        if(!journalFile.exists() || journalFile.length() == 0) {
+            return;
+        }
+
+        // the last state of each send, by manifest
+        Map<String, String> stateByManifest = new LinkedHashMap<>();
+        Map<String, Handoff> handoffByManifest = new HashMap<>();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if(fields.length != 5) {
+                    continue; // torn write at the end of the journal
+                }
+                stateByManifest.put(fields[2], fields[0]);
+                handoffByManifest.put(fields[2], new Handoff(new File(fields[1]), new File(fields[2]), new File(fields[3]), new File(fields[4])));
+            }
+        }
+
+        // the unfinished sends, by report
+        Map<String, List<Handoff>> unfinishedByReport = new LinkedHashMap<>();
+        Map<Handoff, String> stateByHandoff = new HashMap<>();
+        for(Map.Entry<String, String> entry : stateByManifest.entrySet()) {
+            Handoff handoff = handoffByManifest.get(entry.getKey());
+            if(!entry.getValue().equals(DONE)) {
+                unfinishedByReport.computeIfAbsent(handoff.report.getPath(), k -> new ArrayList<>()).add(handoff);
+                stateByHandoff.put(handoff, entry.getValue());
+            }
+        }
+
+        for(List<Handoff> handoffs : unfinishedByReport.values()) {
+
+            Handoff first = handoffs.get(0);
+            out.println();
+            out.println(String.format("%s - WARNING: recovering an interrupted send to Sectra (%s)", new Date(), stateByHandoff.get(first)));
+            out.println(String.format("    %s", first.report.getPath()));
+
+            boolean reachedInbox = false;
+            for(Handoff handoff : handoffs) {
+                inboxTempFile(handoff.inboxTarget).delete();
+                File splitFrom = ManifestSplitter.splitFrom(handoff.manifest);
+                if(!(stateByHandoff.get(handoff).equals(BEGIN) && (handoff.manifest.exists() || splitFrom.exists()) && !handoff.inboxTarget.exists())) {
+                    reachedInbox = true;
+                }
+            }
+
+            if(!reachedInbox) {
+                for(Handoff handoff : handoffs) {
+                    handoff.manifest.delete();
+                    ManifestSplitter.splitFrom(handoff.manifest).delete(); // a split that didn't finish
+                }
+                out.println("    the manifest never reached the Sectra inbox, so it was deleted and the Epic report will be converted again");
+            }
+            else {
+                for(Handoff handoff : handoffs) {
+                    if(handoff.manifest.exists() && handoff.inboxTarget.exists()) {
+                        handoff.manifest.delete(); // left behind by a copy into the inbox
+                    }
+                    else if(handoff.manifest.exists()) {
+                        moveIntoInbox(handoff.manifest, handoff.inboxTarget); // the rest of a split manifest
+                        out.println("    moved the rest of the manifest to the Sectra inbox");
+                        out.println(String.format("    %s", handoff.inboxTarget.getPath()));
+                    }
+                }
+                if(first.report.exists()) {
+                    Files.move(first.report.toPath(), first.reportTarget.toPath());
+                    out.println("    the manifest is in the Sectra inbox, so the Epic report was renamed to prevent future processing");
+                    out.println(String.format("    %s", first.reportTarget.getPath()));
+                }
+            }
+
+        }
+
+        try(FileOutputStream journalOutputStream = new FileOutputStream(journalFile)) {
+            journalOutputStream.getFD().sync();
+        }
+
+    }
+
+}
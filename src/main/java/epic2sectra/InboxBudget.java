@@ -0,0 +1,117 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Limits how fast manifests flow into the Sectra inbox when reports are
+ * converted in parallel: at most inbox-budget-manifests manifests and
+ * inbox-budget-slides slides in any inbox-budget-window-minutes window
+ * (zero means no limit). A manifest is always allowed into an empty
+ * window, so one big manifest can't get stuck forever.
+ *
+ * What has been sent is kept in a small ledger file (one "time,slides"
+ * line per manifest), so the window carries over from one scheduled run
+ * to the next.
+ *
+ * @author Geoff
+ */
+public class InboxBudget {
+
+    final File ledgerFile;
+    final int maxManifests;
+    final int maxSlides;
+    final long windowMillis;
+
+    // send time (epoch milliseconds) and slide count of each manifest in the window
+    final List<long[]> ledger = new ArrayList<>();
+
+    public InboxBudget(File ledgerFile, int maxManifests, int maxSlides, int windowMinutes) {
+        this.ledgerFile = ledgerFile;
+        this.maxManifests = maxManifests;
+        this.maxSlides = maxSlides;
+        this.windowMillis = windowMinutes * 60000L;
+    }
+
+    public static InboxBudget load(File ledgerFile, int maxManifests, int maxSlides, int windowMinutes) throws IOException {
+        InboxBudget budget = new InboxBudget(ledgerFile, maxManifests, maxSlides, windowMinutes);
+        if(ledgerFile.exists()) {
+            try(BufferedReader reader = new BufferedReader(new FileReader(ledgerFile))) {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    String[] fields = line.split(",");
+                    if(fields.length == 2) {
+                        budget.ledger.add(new long[] { Long.parseLong(fields[0].trim()), Long.parseLong(fields[1].trim()) });
+                    }
+                }
+            }
+        }
+        budget.expire();
+        return budget;
+    }
+
+    private void expire() {
+        long windowStart = ConvertCsvOrXlsx.clock.millis() - windowMillis;
+        ledger.removeIf(entry -> entry[0] < windowStart);
+    }
+
+    /**
+     * How many more manifests can go into the inbox in the current window.
+     */
+    public synchronized int manifestsRemaining() {
+        expire();
+        if(maxManifests <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        return Math.max(0, maxManifests - ledger.size());
+    }
+
+    /**
+     * Whether this many manifests (the parts of a split manifest, or just
+     * one) with this many slides between them can go into the inbox now.
+     */
+    public synchronized boolean allows(int manifests, int slides) {
+        expire();
+        if(ledger.isEmpty()) {
+            return true;
+        }
+        if(maxManifests > 0 && ledger.size() + manifests > maxManifests) {
+            return false;
+        }
+        if(maxSlides > 0) {
+            long slidesInWindow = 0;
+            for(long[] entry : ledger) { slidesInWindow += entry[1]; }
+            return slidesInWindow + slides <= maxSlides;
+        }
+        return true;
+    }
+
+    /**
+     * Records one manifest sent, each part of a split manifest separately.
+     */
+    public synchronized void record(int slides) {
+        ledger.add(new long[] { ConvertCsvOrXlsx.clock.millis(), slides });
+    }
+
+    public synchronized void save() throws IOException {
+        expire();
+        File tempFile = new File(ledgerFile.getPath() + ".tmp");
+        try(PrintStream ledgerPrintStream = new PrintStream(new FileOutputStream(tempFile))) {
+            for(long[] entry : ledger) {
+                ledgerPrintStream.println(String.format("%d,%d", entry[0], entry[1]));
+            }
+        }
+        Files.move(tempFile.toPath(), ledgerFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s manifests and %s slides per %d minutes",
+            maxManifests > 0 ? String.valueOf(maxManifests) : "unlimited",
+            maxSlides > 0 ? String.valueOf(maxSlides) : "unlimited",
+            windowMillis / 60000);
+    }
+
+}
@@ -0,0 +1,120 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Splits a manifest with more slides than one manifest may hold into parts
+ * that are within the limit, so a big catch-up report goes to Sectra in
+ * pieces instead of being renamed REJECTED and split by hand.
+ *
+ * The slides of an accession stay in the same part. Accessions are packed
+ * into the parts in the order they appear in the manifest, and a new part
+ * is started when the next accession doesn't fit. Only an accession with
+ * more slides than a part can hold is spread over consecutive parts.
+ *
+ * The parts are named after the manifest, with ".partNofM" in front of the
+ * extension (LabSlidesOrderedTodayEUH_20230428_1150.csv.sectra_20230428_1152.part1of3.csv),
+ * so they load into the dedup index like any other manifest once Sectra
+ * has processed them.
+ *
+ * The manifest is kept until every part is written, and the parts are
+ * journaled before the first one is written, so recovery after a crash
+ * can tell a split that didn't finish (the manifest is still there) from
+ * one that did.
+ *
+ * @author Geoff
+ */
+public class ManifestSplitter {
+
+    final File manifestFile;
+    final String header;
+    final List<List<String>> parts = new ArrayList<>();
+    // the parts, in order, named before they are written
+    public final List<File> partFiles = new ArrayList<>();
+
+    /**
+     * Reads the manifest and plans the parts, without writing anything, so
+     * the parts can be journaled (see HandoffJournal) before they exist.
+     */
+    public ManifestSplitter(File manifestFile, int maxSlides) throws IOException {
+
+        this.manifestFile = manifestFile;
+
+        Map<String, List<String>> linesByAccNo = new LinkedHashMap<>();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), ManifestWriter.CHARSET))) {
+            header = reader.readLine();
+            String line;
+            while((line = reader.readLine()) != null) {
+                linesByAccNo.computeIfAbsent(accNo(line), k -> new ArrayList<>()).add(line);
+            }
+        }
+
+        List<String> part = new ArrayList<>();
+        for(List<String> accession : linesByAccNo.values()) {
+            if(!part.isEmpty() && part.size() + accession.size() > maxSlides) {
+                parts.add(part);
+                part = new ArrayList<>();
+            }
+            for(String line : accession) {
+                if(part.size() == maxSlides) {
+                    parts.add(part);
+                    part = new ArrayList<>();
+                }
+                part.add(line);
+            }
+        }
+        if(!part.isEmpty()) {
+            parts.add(part);
+        }
+
+        // the part numbers are padded so the parts sort in order by name
+        // (part01of12 comes before part10of12)
+        String partFormat = String.format(".part%%0%ddof%%d.csv", String.valueOf(parts.size()).length());
+        for(int x = 0; x < parts.size(); x++) {
+            partFiles.add(new File(manifestFile.getParentFile(), manifestFile.getName().replaceAll("(?i)\\.csv$", String.format(partFormat, x + 1, parts.size()))));
+        }
+
+    }
+
+    /**
+     * Writes the parts next to the manifest (each one fsynced, see
+     * ManifestWriter) and then deletes the manifest. Until it is deleted,
+     * the parts are incomplete.
+     */
+    public void write() throws IOException {
+        for(int x = 0; x < parts.size(); x++) {
+            try(ManifestWriter writer = new ManifestWriter(partFiles.get(x))) {
+                writer.writeLine(header);
+                for(String line : parts.get(x)) {
+                    writer.writeLine(line);
+                }
+            }
+        }
+        Files.delete(manifestFile.toPath());
+    }
+
+    /**
+     * The manifest a part was split from, or the file itself if it isn't a
+     * part.
+     */
+    public static File splitFrom(File partFile) {
+        return new File(partFile.getParentFile(), partFile.getName().replaceFirst("(?i)\\.part\\d+of\\d+\\.csv$", ".csv"));
+    }
+
+    // the third field of a manifest line (see ManifestWriter.append); the
+    // fields before it are quoted and never contain a quote
+    static String accNo(String line) {
+        int start = 0;
+        for(int field = 0; field < 2; field++) {
+            start = line.indexOf("\",", start) + 2;
+            if(start == 1) {
+                return line; // not a manifest line, keep it to itself
+            }
+        }
+        int end = line.indexOf("\",", start);
+        return end < 0 ? line : line.substring(start, end + 1);
+    }
+
+}
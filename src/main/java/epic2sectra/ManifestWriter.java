@@ -0,0 +1,184 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Writes Sectra manifest lines. Each line is built in a reusable buffer,
+ * one field at a time, with the dates written digit by digit rather than
+ * through String.format and a DateTimeFormatter. The line is then encoded
+ * into a reusable byte buffer that goes to the file channel when it fills
+ * up.
+ *
+ * The output is byte for byte what PrintStream.println(slide.toManifestString())
+ * used to write:
+ * - every field in double quotes
+ * - double quotes in the names replaced by spaces (nothing else is escaped)
+ * - "null" for a missing field
+ * - the platform default charset and line separator
+ *
+ * @author Geoff
+ */
+public class ManifestWriter implements Closeable {
+
+    static final String LINE_SEPARATOR = System.lineSeparator();
+    static final Charset CHARSET = Charset.defaultCharset();
+
+    final FileOutputStream fileOutputStream;
+    final FileChannel channel;
+    final CharsetEncoder encoder;
+    final StringBuilder line = new StringBuilder(256);
+    char[] chars = new char[256];
+    CharBuffer charBuffer = CharBuffer.wrap(chars);
+    final ByteBuffer bytes = ByteBuffer.allocate(1 << 16);
+
+    public ManifestWriter(File manifestFile) throws FileNotFoundException {
+        this.fileOutputStream = new FileOutputStream(manifestFile);
+        this.channel = fileOutputStream.getChannel();
+        // same error handling as the encoder inside PrintStream
+        this.encoder = CHARSET.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public void writeHeader() throws IOException {
+        writeLine(Slide.toManifestHeaderString());
+    }
+
+    public void write(Slide slide) throws IOException {
+        line.setLength(0);
+        append(line, slide);
+        writeBuffered(line);
+    }
+
+    /**
+     * Writes a line that was built elsewhere (e.g., by toManifestString).
+     */
+    public void writeLine(String text) throws IOException {
+        line.setLength(0);
+        line.append(text);
+        writeBuffered(line);
+    }
+
+    private void writeBuffered(StringBuilder text) throws IOException {
+        text.append(LINE_SEPARATOR);
+        int length = text.length();
+        if(chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            charBuffer = CharBuffer.wrap(chars);
+        }
+        text.getChars(0, length, chars, 0);
+        charBuffer.clear();
+        charBuffer.limit(length);
+        encoder.reset();
+        while(true) {
+            CoderResult result = encoder.encode(charBuffer, bytes, true);
+            if(result.isOverflow()) {
+                drain();
+                continue;
+            }
+            break;
+        }
+        while(encoder.flush(bytes).isOverflow()) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while(bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+            // on disk before it is handed to Sectra (see HandoffJournal)
+            channel.force(true);
+        }
+        finally {
+            fileOutputStream.close();
+        }
+    }
+
+    /**
+     * Appends the manifest line for the slide (without a line separator).
+     */
+    static void append(StringBuilder sb, Slide slide) {
+        field(sb, slide.slideBarCode).append(',');
+        field(sb, slide.service).append(',');
+        field(sb, slide.accNo).append(',');
+        field(sb, slide.partId).append(',');
+        field(sb, slide.blockId).append(',');
+        field(sb, slide.slideNo).append(',');
+        field(sb, slide.stain).append(',');
+        field(sb, slide.mrn).append(',');
+        field(sb, slide.empi).append(',');
+        day(sb.append('"'), slide.dob).append('"').append(',');
+        nameField(sb, slide.lastName).append(',');
+        nameField(sb, slide.firstName).append(',');
+        field(sb, slide.gender).append(',');
+        timestamp(sb.append('"'), slide.collectionDt).append('"').append(',');
+        timestamp(sb.append('"'), slide.orderDt).append('"');
+    }
+
+    private static StringBuilder field(StringBuilder sb, String value) {
+        return sb.append('"').append(value).append('"');
+    }
+
+    private static StringBuilder nameField(StringBuilder sb, String value) {
+        sb.append('"');
+        if(value == null) {
+            sb.append((String)null);
+        }
+        else {
+            for(int x = 0; x < value.length(); x++) {
+                char c = value.charAt(x);
+                sb.append(c == '"' ? ' ' : c);
+            }
+        }
+        return sb.append('"');
+    }
+
+    // yyyyMMdd
+    private static StringBuilder day(StringBuilder sb, LocalDate day) {
+        if(day.getYear() < 0 || day.getYear() > 9999) {
+            return sb.append(Slide.dfDayOut.format(day));
+        }
+        digits(sb, day.getYear(), 4);
+        digits(sb, day.getMonthValue(), 2);
+        return digits(sb, day.getDayOfMonth(), 2);
+    }
+
+    // yyyyMMddHHmmss
+    private static StringBuilder timestamp(StringBuilder sb, LocalDateTime timestamp) {
+        if(timestamp.getYear() < 0 || timestamp.getYear() > 9999) {
+            return sb.append(Slide.dfTimestampOut.format(timestamp));
+        }
+        digits(sb, timestamp.getYear(), 4);
+        digits(sb, timestamp.getMonthValue(), 2);
+        digits(sb, timestamp.getDayOfMonth(), 2);
+        digits(sb, timestamp.getHour(), 2);
+        digits(sb, timestamp.getMinute(), 2);
+        return digits(sb, timestamp.getSecond(), 2);
+    }
+
+    private static StringBuilder digits(StringBuilder sb, int value, int width) {
+        for(int divisor = width == 4 ? 1000 : 10; divisor > 0; divisor /= 10) {
+            sb.append((char)('0' + value / divisor % 10));
+        }
+        return sb;
+    }
+
+}
@@ -0,0 +1,305 @@
+package epic2sectra;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+/**
+ * Counters, gauges and latency histograms for the conversion pipeline, so
+ * slowdowns and a growing backlog can be alerted on instead of dug out of
+ * the log. There is one set per JVM: the daemon accumulates them across
+ * passes and publishes them over JMX (epic2sectra:type=Metrics) and the
+ * metrics-port HTTP endpoint (see MetricsServer), and the scheduled task
+ * writes them to metrics-file at the end of its run.
+ *
+ * Recording is cheap (LongAdder increments and a short bucket scan), so
+ * the per-row histograms are fine in the hot loop.
+ *
+ * @author Geoff
+ */
+public class Metrics {
+
+    public static abstract class Metric {
+
+        final String name;
+        final String labels; // e.g., reason="service", or null
+        final String help;
+
+        Metric(String name, String labels, String help) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            METRICS.add(this);
+        }
+
+        abstract String type();
+
+        String fullName() {
+            return labels == null ? name : name + "{" + labels + "}";
+        }
+
+        // attribute name for JMX and key for JSON, e.g., rows_skipped_total_service
+        String flatName() {
+            return labels == null ? name : name + "_" + labels.replaceAll("^.*=\"(.*)\"$", "$1");
+        }
+
+    }
+
+    public static class Counter extends Metric {
+
+        final LongAdder value = new LongAdder();
+
+        Counter(String name, String labels, String help) { super(name, labels, help); }
+
+        public void inc() { value.increment(); }
+        public void add(long n) { value.add(n); }
+        public long get() { return value.sum(); }
+
+        @Override String type() { return "counter"; }
+
+    }
+
+    public static class Gauge extends Metric {
+
+        final AtomicLong value = new AtomicLong();
+
+        Gauge(String name, String help) { super(name, null, help); }
+        Gauge(String name, String labels, String help) { super(name, labels, help); }
+
+        public void set(long n) { value.set(n); }
+        public long get() { return value.get(); }
+
+        @Override String type() { return "gauge"; }
+
+    }
+
+    public static class Histogram extends Metric {
+
+        final double[] bucketSeconds;
+        final long[] bucketNanos;
+        final LongAdder[] bucketCounts; // not cumulative, the last one is +Inf
+        final LongAdder count = new LongAdder();
+        final LongAdder sumNanos = new LongAdder();
+
+        Histogram(String name, String help, double... bucketSeconds) {
+            super(name, null, help);
+            this.bucketSeconds = bucketSeconds;
+            this.bucketNanos = new long[bucketSeconds.length];
+            this.bucketCounts = new LongAdder[bucketSeconds.length + 1];
+            for(int x = 0; x < bucketSeconds.length; x++) {
+                bucketNanos[x] = (long)(bucketSeconds[x] * 1e9);
+            }
+            for(int x = 0; x < bucketCounts.length; x++) {
+                bucketCounts[x] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            int x = 0;
+            while(x < bucketNanos.length && nanos > bucketNanos[x]) { x++; }
+            bucketCounts[x].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        public long count() { return count.sum(); }
+        public double sumSeconds() { return sumNanos.sum() / 1e9; }
+
+        @Override String type() { return "histogram"; }
+
+    }
+
+    static final List<Metric> METRICS = new ArrayList<>();
+
+    // bucket bounds in seconds
+    static final double[] ROW_BUCKETS = { 1e-6, 5e-6, 1e-5, 5e-5, 1e-4, 5e-4, 1e-3, 5e-3, 1e-2 };
+    static final double[] FILE_BUCKETS = { 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300 };
+
+    public static final Counter filesDiscovered = new Counter("epic2sectra_files_discovered_total", null, "Epic reports found waiting to be converted, counted on every pass");
+    public static final Counter filesSent = new Counter("epic2sectra_files_processed_total", null, "Epic reports renamed SENT_TO_SECTRA");
+    public static final Counter filesRejected = new Counter("epic2sectra_files_rejected_total", null, "Epic reports renamed REJECTED");
+    public static final Counter filesNotReady = new Counter("epic2sectra_files_not_ready_total", null, "Epic reports left alone because they were still being written");
+    public static final Counter manifestsSent = new Counter("epic2sectra_manifests_sent_total", null, "manifests moved to the Sectra inbox");
+    public static final Counter inboxNotEmpty = new Counter("epic2sectra_inbox_not_empty_total", null, "passes stopped because the Sectra inbox was not empty");
+    public static final Counter rowsProcessed = new Counter("epic2sectra_rows_processed_total", null, "slides written to manifests");
+    public static final Counter rowsSkippedError = new Counter("epic2sectra_rows_skipped_total", "reason=\"error\"", "report rows left out of the manifest, by reason");
+    public static final Counter rowsSkippedService = new Counter("epic2sectra_rows_skipped_total", "reason=\"service\"", null);
+    public static final Counter rowsSkippedUnstained = new Counter("epic2sectra_rows_skipped_total", "reason=\"unstained\"", null);
+    public static final Counter rowsSkippedStainRegex = new Counter("epic2sectra_rows_skipped_total", "reason=\"stain_regex\"", null);
+    public static final Counter rowsSkippedDuplicate = new Counter("epic2sectra_rows_skipped_total", "reason=\"duplicate\"", null);
+    public static final Counter rowsSkippedUnchanged = new Counter("epic2sectra_rows_skipped_total", "reason=\"unchanged\"", null);
+    public static final Counter outboxAlarms = new Counter("epic2sectra_outbox_alarms_total", null, "passes that found the outbox too full or its oldest manifest too old");
+    public static final Counter stainUpdatesAllowed = new Counter("epic2sectra_stain_updates_allowed_total", null, "previously sent slides sent again because the stain changed");
+
+    public static final Gauge filesWaiting = new Gauge("epic2sectra_files_waiting", "Epic reports waiting to be converted at the last pass");
+    public static final Gauge dedupIndexSlides = new Gauge("epic2sectra_dedup_index_slides", "slides in the dedup index");
+    public static final Gauge dedupIndexManifests = new Gauge("epic2sectra_dedup_index_manifests", "processed manifests merged into the dedup index");
+    public static final Gauge outboxManifests = new Gauge("epic2sectra_outbox_manifests", "manifests waiting in the outbox for room in the Sectra inbox");
+    public static final Gauge outboxOldestSeconds = new Gauge("epic2sectra_outbox_oldest_seconds", "how long the oldest manifest in the outbox has been waiting");
+    public static final Gauge stageQueueTokenized = new Gauge("epic2sectra_stage_queue_rows", "queue=\"tokenized\"", "report rows waiting between conversion stages, averaged over the last report converted in stages");
+    public static final Gauge stageQueueBound = new Gauge("epic2sectra_stage_queue_rows", "queue=\"bound\"", null);
+    public static final Gauge lastPassTimestamp = new Gauge("epic2sectra_last_pass_timestamp_seconds", "when the last pass finished (seconds since the epoch)");
+
+    public static final Histogram rowParse = new Histogram("epic2sectra_row_parse_seconds", "time to load a slide from a report row", ROW_BUCKETS);
+    public static final Histogram rowFilter = new Histogram("epic2sectra_row_filter_seconds", "time to run the service, unstained and stain-regex filters on a slide", ROW_BUCKETS);
+    public static final Histogram rowWrite = new Histogram("epic2sectra_row_write_seconds", "time to write a slide to the manifest", ROW_BUCKETS);
+    public static final Histogram fileReadinessWait = new Histogram("epic2sectra_file_readiness_wait_seconds", "time spent waiting for an Epic report to be completely written", FILE_BUCKETS);
+    public static final Histogram fileConversion = new Histogram("epic2sectra_file_conversion_seconds", "time to read, filter and write one Epic report", FILE_BUCKETS);
+
+    /**
+     * Adds the row counts of a finished conversion.
+     */
+    public static void record(Conversion conversion) {
+        rowsSkippedError.add(conversion.rowsSkippedError);
+        rowsSkippedService.add(conversion.rowsSkippedService);
+        rowsSkippedUnstained.add(conversion.rowsSkippedUnstained);
+        rowsSkippedStainRegex.add(conversion.rowsSkippedStainRegex);
+        rowsSkippedDuplicate.add(conversion.rowsSkippedDuplicate);
+        rowsSkippedUnchanged.add(conversion.rowsSkippedUnchanged);
+        stainUpdatesAllowed.add(conversion.rowsStainUpdateAllowed);
+    }
+
+    public static void record(DedupIndex dedupIndex) {
+        dedupIndexSlides.set(dedupIndex.size());
+        dedupIndexManifests.set(dedupIndex.manifestCount());
+    }
+
+    /**
+     * The Prometheus text exposition format.
+     */
+    public static String toPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+        for(Metric metric : METRICS) {
+            if(metric.help != null) {
+                sb.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+                sb.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            }
+            if(metric instanceof Counter) {
+                sb.append(metric.fullName()).append(' ').append(((Counter)metric).get()).append('\n');
+            }
+            else if(metric instanceof Gauge) {
+                sb.append(metric.fullName()).append(' ').append(((Gauge)metric).get()).append('\n');
+            }
+            else {
+                Histogram histogram = (Histogram)metric;
+                long cumulative = 0;
+                for(int x = 0; x < histogram.bucketCounts.length; x++) {
+                    cumulative += histogram.bucketCounts[x].sum();
+                    String le = x < histogram.bucketSeconds.length ? String.valueOf(histogram.bucketSeconds[x]) : "+Inf";
+                    sb.append(metric.name).append("_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+                }
+                sb.append(metric.name).append("_sum ").append(histogram.sumSeconds()).append('\n');
+                sb.append(metric.name).append("_count ").append(histogram.count()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A flat JSON object with every counter and gauge, and the count and
+     * sum of every histogram, plus the given extra string values.
+     */
+    public static String toJson(Map<String, String> extra) {
+        StringBuilder sb = new StringBuilder("{\n");
+        for(Map.Entry<String, String> entry : extra.entrySet()) {
+            sb.append(String.format("  \"%s\": \"%s\",\n", entry.getKey(), entry.getValue().replace("\\", "\\\\").replace("\"", "\\\"")));
+        }
+        for(Map.Entry<String, Object> entry : attributes().entrySet()) {
+            sb.append(String.format("  \"%s\": %s,\n", entry.getKey(), entry.getValue()));
+        }
+        sb.setLength(sb.length() - 2);
+        return sb.append("\n}\n").toString();
+    }
+
+    /**
+     * Writes toJson() to a temporary file and moves it into place, so
+     * whatever picks the file up never sees half of it.
+     */
+    public static void writeJson(File file, Map<String, String> extra) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try(PrintStream metricsPrintStream = new PrintStream(new FileOutputStream(tempFile))) {
+            metricsPrintStream.print(toJson(extra));
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static Map<String, Object> attributes() {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        for(Metric metric : METRICS) {
+            if(metric instanceof Counter) {
+                attributes.put(metric.flatName(), ((Counter)metric).get());
+            }
+            else if(metric instanceof Gauge) {
+                attributes.put(metric.flatName(), ((Gauge)metric).get());
+            }
+            else {
+                attributes.put(metric.name + "_count", ((Histogram)metric).count());
+                attributes.put(metric.name + "_sum", ((Histogram)metric).sumSeconds());
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Publishes the metrics as read-only attributes of the MBean
+     * epic2sectra:type=Metrics on the platform MBean server.
+     */
+    public static void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("epic2sectra:type=Metrics"));
+    }
+
+    static class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = attributes().get(attribute);
+            if(value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> attributes = attributes();
+            AttributeList list = new AttributeList();
+            for(String name : names) {
+                if(attributes.containsKey(name)) {
+                    list.add(new Attribute(name, attributes.get(name)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributeInfos = new ArrayList<>();
+            for(Map.Entry<String, Object> entry : attributes().entrySet()) {
+                attributeInfos.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "epic2sectra conversion metrics", attributeInfos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+    }
+
+}
@@ -0,0 +1,52 @@
+package epic2sectra;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Serves Metrics in the Prometheus text format at
+ * http://localhost:{metrics-port}/metrics while running as a daemon. It
+ * only listens on the loopback interface, so a scraper (or a Windows
+ * exporter that forwards it) has to run on the same machine.
+ *
+ * @author Geoff
+ */
+public class MetricsServer {
+
+    public static HttpServer start(int port, PrintStream out) throws IOException {
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        server.createContext("/metrics", (HttpExchange exchange) -> {
+            try {
+                byte[] body = Metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try(OutputStream responseBody = exchange.getResponseBody()) {
+                    responseBody.write(body);
+                }
+            }
+            finally {
+                exchange.close();
+            }
+        });
+
+        // the default executor handles requests on the server's own thread,
+        // which is plenty for a scrape every few seconds
+        server.start();
+
+        out.println();
+        out.println(String.format("%s - serving metrics at http://%s:%d/metrics", new Date(), server.getAddress().getHostString(), server.getAddress().getPort()));
+
+        return server;
+
+    }
+
+}
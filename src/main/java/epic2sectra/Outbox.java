@@ -0,0 +1,105 @@
+package epic2sectra;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A local queue of finished manifests in front of the Sectra inbox. Without
+ * it, a pass stops with INBOX_NOT_EMPTY as long as Sectra hasn't picked up
+ * the last manifest, so a slow Sectra holds up the conversion of every
+ * report behind it. With outbox-dir set, sendManifest moves manifests into
+ * the outbox instead (journaled exactly as a move into the inbox would be,
+ * see HandoffJournal) and the reports are renamed SENT_TO_SECTRA right
+ * away. dispatch() then releases the queued manifests into the inbox,
+ * oldest first, as long as the inbox holds fewer than inbox-max-manifests
+ * of them (1 by default, which is the old "inbox must be empty" rule).
+ *
+ * dispatch() runs at the start of every pass and after every send. The
+ * daemon already watches the inbox, so a manifest goes out as soon as
+ * Sectra takes the one before it; the scheduled task releases it on its
+ * next run.
+ *
+ * The queue shouldn't grow. If it holds outbox-alarm-manifests manifests
+ * or more, or its oldest manifest has been waiting outbox-alarm-minutes or
+ * longer (0 turns either alarm off), every pass logs an ERROR and counts
+ * it in Metrics.outboxAlarms.
+ *
+ * @author Geoff
+ */
+public class Outbox {
+
+    // pipelines may share a Sectra inbox, so only one of them counts and
+    // fills it at a time
+    private static final Object INBOX_LOCK = new Object();
+
+    /**
+     * Moves as many queued manifests into the Sectra inbox as it has room
+     * for, then checks the alarms. Returns the number of manifests moved.
+     */
+    public static int dispatch(Configuration config, PrintStream out) throws IOException {
+
+        int released = 0;
+        List<File> queued;
+
+        synchronized(INBOX_LOCK) {
+
+            queued = queued(config.outboxDir);
+
+            // when testing with the inbox and processed directories the same
+            // (see step 3), the inbox is never empty, so it isn't counted
+            int inInbox = 0;
+            if(!config.sectraInboxDir.getPath().equals(config.sectraProcessedDir.getPath())) {
+                inInbox = config.sectraInboxDir.listFiles((File dir, String name) -> name.matches("(?i)^.*\\.csv$")).length;
+            }
+
+            for(Iterator<File> i = queued.iterator(); i.hasNext() && inInbox < config.inboxMaxManifests; ) {
+                File manifest = i.next();
+                File inboxTarget = new File(config.sectraInboxDir, manifest.getName());
+                if(inboxTarget.exists()) {
+                    // copied into the inbox by a dispatch that was interrupted
+                    // before it could delete the queued manifest
+                    manifest.delete();
+                }
+                else {
+                    HandoffJournal.moveIntoInbox(manifest, inboxTarget);
+                    out.println();
+                    out.println(String.format("%s - released manifest from outbox to Sectra inbox", new Date()));
+                    out.println(String.format("    %s", inboxTarget.getPath()));
+                    EventLog.event("released", config, "manifest", manifest.getName(), "waited_seconds", (ConvertCsvOrXlsx.clock.millis() - inboxTarget.lastModified()) / 1000);
+                    released++;
+                    inInbox++;
+                }
+                i.remove();
+            }
+
+        }
+
+        long oldestMillis = queued.isEmpty() ? 0 : ConvertCsvOrXlsx.clock.millis() - queued.get(0).lastModified();
+        Metrics.outboxManifests.set(queued.size());
+        Metrics.outboxOldestSeconds.set(oldestMillis / 1000);
+
+        boolean tooMany = config.outboxAlarmManifests > 0 && queued.size() >= config.outboxAlarmManifests;
+        boolean tooOld = config.outboxAlarmMinutes > 0 && !queued.isEmpty() && oldestMillis >= config.outboxAlarmMinutes * 60000L;
+        if(tooMany || tooOld) {
+            out.println();
+            out.println(String.format("%s - ERROR: %d manifests are waiting in the outbox, the oldest for %d minutes", new Date(), queued.size(), oldestMillis / 60000));
+            out.println(String.format("    %s", config.outboxDir.getPath()));
+            out.println(String.format("    (alarms at %d manifests or %d minutes)", config.outboxAlarmManifests, config.outboxAlarmMinutes));
+            out.println("    CONTACT SECTRA IF THIS PERSISTS - THE INBOX IS NORMALLY CLEARED ALMOST IMMEDIATELY");
+            Metrics.outboxAlarms.inc();
+            EventLog.event("outbox_alarm", config, "manifests", queued.size(), "oldest_seconds", oldestMillis / 1000);
+        }
+
+        return released;
+
+    }
+
+    // the manifests waiting in the outbox, oldest first
+    static List<File> queued(File outboxDir) {
+        File[] files = outboxDir.listFiles((File dir, String name) -> name.matches("(?i)^.*\\.csv$"));
+        List<File> queued = new ArrayList<>(files != null ? Arrays.asList(files) : Collections.<File>emptyList());
+        queued.sort(Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+        return queued;
+    }
+
+}
@@ -0,0 +1,183 @@
+package epic2sectra;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Converts all of the waiting Epic reports in one run instead of one
+ * report per run, which is what drains the backlog after an outage. The
+ * reports are read and filtered on up to parallel-files threads at once.
+ * The duplicate check and the hand-off to Sectra then happen one report at
+ * a time, latest report first, and each report's slides are merged into
+ * the dedup index before the next report is checked. That gives the same
+ * result as the one-report-per-run mode, where the next run sees the
+ * previous run's manifest in the processed directory.
+ *
+ * How many manifests and slides go into the inbox is limited by the
+ * InboxBudget rather than by stopping after one report. Reports that
+ * don't fit in the budget are left alone for a later run.
+ *
+ * @author Geoff
+ */
+public class ParallelConversion {
+
+    /**
+     * The first half of the work for one report, done on a worker thread.
+     * The log is kept aside and printed when the report's turn comes, so
+     * the log reads the same as when reports are done one at a time.
+     */
+    static class FileTask implements Callable<FileTask> {
+
+        final File file;
+        final Configuration config;
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        final PrintStream out = new PrintStream(log, true);
+
+        File manifestFile;
+        Conversion conversion;
+        Exception exception;
+
+        FileTask(File file, Configuration config) {
+            this.file = file;
+            this.config = config;
+        }
+
+        @Override
+        public FileTask call() {
+            try {
+                out.println();
+                out.println(String.format("%s - converting %s to Sectra manifest", new Date(), file.getName()));
+                FileReadiness.awaitReady(config.fileReadiness, file, out);
+                manifestFile = ConvertCsvOrXlsx.manifestFileFor(file);
+                conversion = new Conversion(manifestFile, ConvertCsvOrXlsx.fileNameTimestamp(file), config.filterEngine, null, true);
+                if(config.deltaIndex != null) {
+                    config.deltaIndex.begin(file, conversion, out);
+                }
+                long conversionStart = System.nanoTime();
+                try {
+                    ConvertCsvOrXlsx.readReport(file, conversion, config);
+                }
+                finally {
+                    conversion.close();
+                }
+                conversion.conversionNanos = System.nanoTime() - conversionStart;
+                Metrics.fileConversion.record(conversion.conversionNanos);
+            }
+            catch(Exception e) {
+                exception = e;
+                if(conversion != null) {
+                    conversion.discard();
+                }
+            }
+            return this;
+        }
+
+    }
+
+    static ConvertCsvOrXlsx.RunResult run(List<File> filesToProcess, Configuration config, DedupIndex dedupIndex, PrintStream out) throws IOException {
+
+        InboxBudget budget = InboxBudget.load(config.inboxBudgetFile, config.inboxBudgetManifests, config.inboxBudgetSlides, config.inboxBudgetWindowMinutes);
+
+        int manifestsRemaining = budget.manifestsRemaining();
+        if(manifestsRemaining == 0) {
+            out.println();
+            out.println(String.format("%s - inbox budget is used up (%s), %d Epic reports will wait", new Date(), budget, filesToProcess.size()));
+            return ConvertCsvOrXlsx.RunResult.BUDGET_USED_UP;
+        }
+
+        List<File> files = filesToProcess.subList(0, Math.min(filesToProcess.size(), manifestsRemaining));
+
+        out.println();
+        out.println(String.format("%s - converting %d Epic reports on %d threads (inbox budget is %s)", new Date(), files.size(), Math.min(config.parallelFiles, files.size()), budget));
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(config.parallelFiles, files.size()));
+        List<Future<FileTask>> futures = new ArrayList<>();
+        for(File file : files) {
+            futures.add(executor.submit(new FileTask(file, config)));
+        }
+        executor.shutdown();
+
+        ConvertCsvOrXlsx.RunResult result = ConvertCsvOrXlsx.RunResult.NOTHING_TO_DO;
+        int heldBack = 0;
+
+        // files are in order from latest to earliest, which is the order the
+        // duplicate check has to see them in
+        for(Future<FileTask> future : futures) {
+
+            FileTask task;
+            try {
+                task = future.get();
+            }
+            catch(InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            }
+
+            out.print(task.log.toString());
+
+            int rowsProcessed = -1;
+            ConvertCsvOrXlsx.RunResult fileResult;
+
+            try {
+
+                if(task.exception != null) {
+                    throw task.exception;
+                }
+
+                Conversion conversion = task.conversion;
+                conversion.applyDedup(dedupIndex);
+                rowsProcessed = conversion.rowsProcessed;
+
+                ConvertCsvOrXlsx.printSummary(conversion, config, out);
+                ConvertCsvOrXlsx.converted(task.file, conversion, config);
+
+                // a manifest that will be split takes one manifest of the
+                // budget for each part
+                int manifests = rowsProcessed > conversion.rowsProcessedMaxAllowed && config.splitManifests ? new ManifestSplitter(task.manifestFile, conversion.rowsProcessedMaxAllowed).partFiles.size() : 1;
+                if(rowsProcessed > 0 && (rowsProcessed <= conversion.rowsProcessedMaxAllowed || config.splitManifests) && !budget.allows(manifests, rowsProcessed)) {
+                    task.manifestFile.delete();
+                    heldBack++;
+                    out.println();
+                    out.println(String.format("%s - inbox budget is used up (%s), Epic report will be converted again later", new Date(), budget));
+                    continue;
+                }
+
+                Metrics.record(conversion);
+
+                List<Integer> slidesSent = ConvertCsvOrXlsx.sendManifest(task.file, task.manifestFile, rowsProcessed, conversion.rowsProcessedMaxAllowed, config, out);
+                for(int slides : slidesSent) {
+                    budget.record(slides);
+                }
+                if(!slidesSent.isEmpty()) {
+                    conversion.commit(dedupIndex);
+                }
+                if(config.deltaIndex != null) {
+                    config.deltaIndex.commit(task.file, conversion, out);
+                }
+
+                fileResult = ConvertCsvOrXlsx.RunResult.FILE_PROCESSED;
+
+            }
+            catch(Exception e) {
+                fileResult = ConvertCsvOrXlsx.reportFailure(task.file, task.manifestFile, rowsProcessed, e, config, out);
+            }
+
+            if(result != ConvertCsvOrXlsx.RunResult.FILE_PROCESSED) {
+                result = fileResult;
+            }
+
+        }
+
+        dedupIndex.save();
+        budget.save();
+        Metrics.record(dedupIndex);
+
+        if(result != ConvertCsvOrXlsx.RunResult.FILE_PROCESSED && (heldBack > 0 || files.size() < filesToProcess.size())) {
+            result = ConvertCsvOrXlsx.RunResult.BUDGET_USED_UP;
+        }
+
+        return result;
+
+    }
+
+}
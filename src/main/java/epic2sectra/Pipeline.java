@@ -0,0 +1,136 @@
+package epic2sectra;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * One named pipeline from the "pipelines" property: a site or service line
+ * with its own Epic report directories, Sectra inbox, filters, limits and
+ * dedup index, converted by the same JVM as the others. A properties file
+ * without "pipelines" is a single unnamed pipeline, which is how the
+ * converter has always run.
+ *
+ * The pipelines share a pool of pipeline-threads threads (and the
+ * FilterEngine, if their filters are the same). Fairness is by rounds:
+ * every pipeline that is due gets exactly one pass per round, and the next
+ * round doesn't start until they are all done, so a pipeline with a
+ * backlog can't starve the others. Each pass is logged to the side and
+ * printed in one piece when it finishes, so the passes don't interleave in
+ * the log.
+ *
+ * @author Geoff
+ */
+public class Pipeline {
+
+    final Configuration config;
+    DedupIndex dedupIndex; // loaded on the first pass and kept up to date by each pass
+
+    // daemon mode: when the next pass is due, and the archiving running in
+    // the background with its log (see WatchDaemon)
+    long dueMillis = 0;
+    Future<?> archiving;
+    ByteArrayOutputStream archiveLog;
+
+    public Pipeline(Configuration config) {
+        this.config = config;
+    }
+
+    public String name() {
+        return config.pipeline;
+    }
+
+    ConvertCsvOrXlsx.RunResult pass(PrintStream out) throws IOException {
+        if(dedupIndex == null) {
+            dedupIndex = DedupIndex.load(config.dedupIndexFile, out);
+        }
+        long start = System.nanoTime();
+        ConvertCsvOrXlsx.RunResult result = ConvertCsvOrXlsx.convert(config, dedupIndex, out);
+        EventLog.event("pass", config, "result", result.name(), "seconds", (System.nanoTime() - start) / 1e9);
+        return result;
+    }
+
+    /**
+     * Runs one round: a pass of each pipeline, on the shared pool. A single
+     * pipeline runs on the calling thread, logs straight to out and throws
+     * whatever its pass throws, as it always has. With several pipelines,
+     * a pass that fails is logged and counted as NOTHING_TO_DO so the
+     * others carry on.
+     */
+    static Map<Pipeline, ConvertCsvOrXlsx.RunResult> runRound(List<Pipeline> pipelines, ExecutorService executor, PrintStream out) throws IOException {
+
+        Map<Pipeline, ConvertCsvOrXlsx.RunResult> resultByPipeline = new LinkedHashMap<>();
+
+        if(pipelines.size() == 1 && pipelines.get(0).name() == null) {
+            resultByPipeline.put(pipelines.get(0), pipelines.get(0).pass(out));
+            return resultByPipeline;
+        }
+
+        Map<Pipeline, ByteArrayOutputStream> logByPipeline = new LinkedHashMap<>();
+        Map<Pipeline, Future<ConvertCsvOrXlsx.RunResult>> futureByPipeline = new LinkedHashMap<>();
+        for(Pipeline pipeline : pipelines) {
+            ByteArrayOutputStream log = new ByteArrayOutputStream();
+            PrintStream pipelineOut = new PrintStream(log, true);
+            logByPipeline.put(pipeline, log);
+            futureByPipeline.put(pipeline, executor.submit(() -> {
+                try {
+                    return pipeline.pass(pipelineOut);
+                }
+                catch(Exception e) {
+                    pipelineOut.println();
+                    pipelineOut.println(String.format("%s - WARNING: pass failed for pipeline %s", new Date(), pipeline.name()));
+                    pipelineOut.println(String.format("    %s", e.getMessage()));
+                    e.printStackTrace(pipelineOut);
+                    return ConvertCsvOrXlsx.RunResult.NOTHING_TO_DO;
+                }
+            }));
+        }
+
+        // printed in the order the pipelines are listed, not the order they
+        // finish in, so the log of a round is always laid out the same way
+        for(Pipeline pipeline : pipelines) {
+            ConvertCsvOrXlsx.RunResult result;
+            try {
+                result = futureByPipeline.get(pipeline).get();
+            }
+            catch(InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            }
+            out.println();
+            out.println(String.format("%s - pipeline %s: %s", new Date(), pipeline.name(), result));
+            out.print(logByPipeline.get(pipeline).toString());
+            resultByPipeline.put(pipeline, result);
+        }
+
+        return resultByPipeline;
+
+    }
+
+    /**
+     * Two pipelines must not convert the same Epic reports. Throws
+     * IllegalArgumentException if they would.
+     */
+    static void checkDistinct(List<Configuration> pipelines) {
+        Map<String, String> pipelineByDir = new HashMap<>();
+        for(Configuration config : pipelines) {
+            for(File dir : new File[] { config.epicReportDir, config.epicMissedReportDir }) {
+                String other = pipelineByDir.put(dir.getAbsolutePath().toLowerCase(), config.pipeline);
+                if(other != null && !other.equals(config.pipeline)) {
+                    throw new IllegalArgumentException(String.format("pipelines %s and %s both read Epic reports from %s", other, config.pipeline, dir.getPath()));
+                }
+            }
+        }
+    }
+
+    /**
+     * A state file that all of the pipelines would otherwise share, with
+     * the pipeline's name put in front of the extension
+     * (epic2sectra.dedup becomes epic2sectra.euh.dedup).
+     */
+    static File pipelineFile(File file, String pipeline) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(file.getParentFile(), dot > 0 ? name.substring(0, dot) + "." + pipeline + name.substring(dot) : name + "." + pipeline);
+    }
+
+}
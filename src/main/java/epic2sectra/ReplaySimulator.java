@@ -0,0 +1,395 @@
+package epic2sectra;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.cli.*;
+
+/**
+ * Replays a directory of historical Epic reports (and the processed
+ * manifests from before them) through discovery, conversion, filtering and
+ * dedup in simulated time, without going near the real directories or the
+ * Sectra inbox:
+ *
+ *   java -cp epic2sectra.jar epic2sectra.ReplaySimulator -z epic2sectra.properties
+ *       -r {history-dir} -o {scratch-dir} [-i {minutes}] [-p {pipeline}]
+ *
+ * The settings come from the properties file; the directories, state files
+ * and log are all put in the scratch directory, which must be new or empty.
+ * Each report appears in the scratch Epic report directory at the time in
+ * its file name (under its original name, if it has been renamed since),
+ * and a pass runs every -i minutes (5 by default, like the scheduled task)
+ * as long as there is anything to do. Sectra picks manifests up from the
+ * scratch inbox straight after each pass. Historical manifests for reports
+ * earlier than the first one replayed go into the scratch processed
+ * directory first, so the duplicate check starts out warm.
+ *
+ * At the end it prints each report's outcome, latency (simulated time
+ * from the report landing to it being sent) and conversion time (real
+ * time, blank if the report couldn't be read), rows per second, the skip
+ * reasons, the manifest sizes against the limits and the peak heap.
+ *
+ * Archiving (archive-dir) is not replayed: the reports and manifests stay
+ * in the scratch directories to the end.
+ *
+ * @author Geoff
+ */
+public class ReplaySimulator {
+
+    /**
+     * A clock that only moves when it is told to.
+     */
+    static class SimulatedClock extends Clock {
+
+        volatile long millis;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneId.systemDefault();
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+    }
+
+    /**
+     * One historical Epic report and what happened to it in the replay.
+     */
+    static class ReplayedReport {
+
+        final File source;
+        final String name;    // the name Epic gave it
+        final long landedMillis;
+        final boolean missed; // goes in the missed report directory
+
+        String outcome;       // e.g., ".SENT_TO_SECTRA_093", null until it is handled
+        long handledMillis;
+        Double conversionSeconds; // null if it wasn't converted
+
+        ReplayedReport(File source, String name, long landedMillis, boolean missed) {
+            this.source = source;
+            this.name = name;
+            this.landedMillis = landedMillis;
+            this.missed = missed;
+        }
+
+        int rows() {
+            return Integer.parseInt(outcome.replaceAll("^.*_([0-9]+)$", "$1"));
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Options options = new Options();
+
+        Option optionPropertiesFileName = new Option("z", "properties-file", true, "the settings to replay with");
+        optionPropertiesFileName.setRequired(true);
+        options.addOption(optionPropertiesFileName);
+
+        Option optionHistoryDir = new Option("r", "history-dir", true, "historical Epic reports and processed manifests (subdirectories are searched too)");
+        optionHistoryDir.setRequired(true);
+        options.addOption(optionHistoryDir);
+
+        Option optionScratchDir = new Option("o", "scratch-dir", true, "where the replay's directories, manifests and log go (must be new or empty)");
+        optionScratchDir.setRequired(true);
+        options.addOption(optionScratchDir);
+
+        Option optionIntervalMinutes = new Option("i", "interval-minutes", true, "simulated minutes between passes (default 5)");
+        optionIntervalMinutes.setRequired(false);
+        options.addOption(optionIntervalMinutes);
+
+        Option optionPipeline = new Option("p", "pipeline", true, "the pipeline to replay, if the properties file defines several");
+        optionPipeline.setRequired(false);
+        options.addOption(optionPipeline);
+
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        }
+        catch(ParseException e) {
+            System.out.println(e.getMessage());
+            System.out.println();
+            new HelpFormatter().printHelp("java -cp epic2sectra.jar epic2sectra.ReplaySimulator [options]", options);
+            System.exit(1);
+            return;
+        }
+
+        File propertiesFile = new File(cmd.getOptionValue(optionPropertiesFileName));
+        File historyDir = new File(cmd.getOptionValue(optionHistoryDir));
+        File scratchDir = new File(cmd.getOptionValue(optionScratchDir));
+        long intervalMillis = Long.parseLong(cmd.getOptionValue(optionIntervalMinutes, "5")) * 60000L;
+        String pipeline = cmd.getOptionValue(optionPipeline);
+
+        String[] scratchFiles = scratchDir.list();
+        if(scratchFiles != null && scratchFiles.length > 0) {
+            System.out.println(String.format("ERROR: scratch directory %s is not empty", scratchDir.getPath()));
+            System.exit(1);
+        }
+
+        Properties props = new Properties();
+        try(InputStream inputStream = new FileInputStream(propertiesFile)) {
+            props.load(inputStream);
+        }
+        if(props.getProperty("pipelines") != null && props.getProperty("pipelines").length() > 0 && pipeline == null) {
+            System.out.println(String.format("ERROR: the properties file defines pipelines (%s), pick one with -p", props.getProperty("pipelines")));
+            System.exit(1);
+        }
+
+        // the replay's own directories and state files
+        File logFile = new File(scratchDir, "replay.log");
+        Configuration config = ConvertCsvOrXlsx.configure(props, pipeline, propertiesFile, logFile, false, System.out);
+        config.epicReportDir = new File(scratchDir, "Epic_report");
+        config.epicMissedReportDir = new File(scratchDir, "Epic_missed_slide_report");
+        config.sectraInboxDir = new File(scratchDir, "Inbox");
+        config.sectraProcessedDir = new File(scratchDir, "Processed");
+        config.dedupIndexFile = new File(scratchDir, "epic2sectra.dedup");
+        config.passwordIndexFile = new File(scratchDir, "epic2sectra.passwords");
+        config.inboxBudgetFile = new File(scratchDir, "epic2sectra.budget");
+        config.handoffJournal = new HandoffJournal(new File(scratchDir, "epic2sectra.journal"));
+        if(config.deltaIndex != null) {
+            config.deltaIndex = new DeltaIndex(new File(scratchDir, "epic2sectra.delta"), config.deltaIndex.settingsFingerprint, config.reportFileNameLookbackDays);
+        }
+        config.fileReadiness = FileReadiness.parse("rename", 0); // reports are copied in whole
+        config.archiveDir = null; // not replayed
+        config.conversionNanosByFile = new ConcurrentHashMap<>();
+        if(config.outboxDir != null) {
+            config.outboxDir = new File(scratchDir, "Outbox");
+        }
+        for(File dir : new File[] { config.epicReportDir, config.epicMissedReportDir, config.sectraInboxDir, config.sectraProcessedDir }) {
+            Files.createDirectories(dir.toPath());
+        }
+
+        // *********************************************************************
+        // Sort the history into reports (in the order they landed) and
+        // processed manifests.
+        // *********************************************************************
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmm");
+        List<ReplayedReport> reports = new ArrayList<>();
+        List<FileDiscovery.ParsedName> manifests = new ArrayList<>();
+        List<File> historyFiles;
+        try(Stream<Path> paths = Files.walk(historyDir.toPath())) {
+            historyFiles = paths.filter(Files::isRegularFile).map(Path::toFile).collect(Collectors.toList());
+        }
+        for(File file : historyFiles) {
+            if(file.getName().toLowerCase().contains(".sectra_")) {
+                FileDiscovery.ParsedName name = FileDiscovery.parseManifestName(file);
+                if(name != null) {
+                    manifests.add(name);
+                }
+                continue;
+            }
+            FileDiscovery.ParsedName name = FileDiscovery.parseReportName(file);
+            if(name == null || name.kind == null) {
+                continue;
+            }
+            String originalName = String.format("%s_%s.%s", name.prefix, name.timestamp, name.extension);
+            reports.add(new ReplayedReport(file, originalName, sdf.parse(name.timestamp).getTime(), name.kind == FileDiscovery.Kind.MISSED_REPORT));
+        }
+        reports.sort(Comparator.comparing((ReplayedReport report) -> report.landedMillis).thenComparing(report -> report.name));
+
+        if(reports.isEmpty()) {
+            System.out.println(String.format("ERROR: no Epic reports in %s", historyDir.getPath()));
+            System.exit(1);
+        }
+
+        String firstTimestamp = sdf.format(new Date(reports.get(0).landedMillis));
+        String lastTimestamp = sdf.format(new Date(reports.get(reports.size() - 1).landedMillis));
+        int seededManifests = 0;
+        int historicalManifests = 0;
+        long historicalSlides = 0;
+        for(FileDiscovery.ParsedName manifest : manifests) {
+            if(manifest.timestamp.compareTo(firstTimestamp) < 0) {
+                Files.copy(manifest.file.toPath(), new File(config.sectraProcessedDir, manifest.file.getName()).toPath());
+                seededManifests++;
+            }
+            else if(manifest.timestamp.compareTo(lastTimestamp) <= 0) {
+                historicalManifests++;
+                try(Stream<String> lines = Files.lines(manifest.file.toPath())) {
+                    historicalSlides += Math.max(0, lines.count() - 1); // less the header
+                }
+            }
+        }
+
+        // *********************************************************************
+        // Replay.
+        // *********************************************************************
+        SimulatedClock clock = new SimulatedClock();
+        ConvertCsvOrXlsx.clock = clock;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+
+        long[] skippedBefore = skippedCounts();
+        long conversionNanos = 0;
+        int passes = 0;
+        Map<String, ReplayedReport> pendingByName = new LinkedHashMap<>();
+        DedupIndex dedupIndex;
+
+        System.out.println(String.format("replaying %d Epic reports from %s to %s (%d earlier manifests preloaded), a pass every %d minutes", reports.size(), firstTimestamp, lastTimestamp, seededManifests, intervalMillis / 60000));
+
+        try(PrintStream out = new PrintStream(new FileOutputStream(logFile, true))) {
+
+            dedupIndex = DedupIndex.load(config.dedupIndexFile, out);
+            clock.millis = reports.get(0).landedMillis;
+            int next = 0;
+
+            while(true) {
+
+                // Epic drops the reports that are due by now
+                while(next < reports.size() && reports.get(next).landedMillis <= clock.millis) {
+                    ReplayedReport report = reports.get(next++);
+                    File target = new File(report.missed ? config.epicMissedReportDir : config.epicReportDir, report.name);
+                    Files.copy(report.source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    pendingByName.put(report.name, report);
+                }
+
+                long passStart = System.nanoTime();
+                ConvertCsvOrXlsx.RunResult result = ConvertCsvOrXlsx.convert(config, dedupIndex, out);
+                conversionNanos += System.nanoTime() - passStart;
+                passes++;
+
+                // Sectra picks up whatever is in the inbox
+                for(File manifestFile : config.sectraInboxDir.listFiles()) {
+                    Files.move(manifestFile.toPath(), new File(config.sectraProcessedDir, manifestFile.getName()).toPath());
+                }
+
+                // the reports this pass renamed
+                List<ReplayedReport> handled = new ArrayList<>();
+                for(File dir : new File[] { config.epicReportDir, config.epicMissedReportDir }) {
+                    for(FileDiscovery.ParsedName name : FileDiscovery.scan(dir, FileDiscovery::parseReportName)) {
+                        ReplayedReport report = name.isProcessed() ? pendingByName.remove(String.format("%s_%s.%s", name.prefix, name.timestamp, name.extension)) : null;
+                        if(report != null) {
+                            report.outcome = name.processedSuffix;
+                            report.handledMillis = clock.millis;
+                            handled.add(report);
+                        }
+                    }
+                }
+                for(ReplayedReport report : handled) {
+                    Long nanos = config.conversionNanosByFile.remove(report.name);
+                    report.conversionSeconds = nanos != null ? nanos / 1e9 : null;
+                }
+
+                if(next == reports.size() && result == ConvertCsvOrXlsx.RunResult.NOTHING_TO_DO) {
+                    break;
+                }
+
+                // skip ahead to the first pass after the next report lands
+                // if there is nothing else to do before then
+                if(result == ConvertCsvOrXlsx.RunResult.NOTHING_TO_DO && next < reports.size() && reports.get(next).landedMillis > clock.millis + intervalMillis) {
+                    long start = reports.get(0).landedMillis;
+                    clock.millis = start + ((reports.get(next).landedMillis - start + intervalMillis - 1) / intervalMillis) * intervalMillis;
+                }
+                else {
+                    clock.millis += intervalMillis;
+                }
+
+            }
+
+        }
+
+        // *********************************************************************
+        // Report.
+        // *********************************************************************
+        SimpleDateFormat hhmm = new SimpleDateFormat("MM/dd HH:mm");
+        System.out.println();
+        System.out.println("  report                                                landed       handled      latency  outcome                  convert");
+        List<Integer> manifestSizes = new ArrayList<>();
+        List<Long> latencies = new ArrayList<>();
+        int sent = 0, rejected = 0, tooLarge = 0, superseded = 0;
+        for(ReplayedReport report : reports) {
+            if(report.outcome == null) {
+                superseded++;
+                System.out.println(String.format("  %-52s  %s  %-11s  %7s  %-23s", report.name, hhmm.format(new Date(report.landedMillis)), "-", "-", "not converted"));
+                continue;
+            }
+            long latencyMinutes = (report.handledMillis - report.landedMillis) / 60000;
+            latencies.add(latencyMinutes);
+            if(report.outcome.startsWith(".SENT_TO_SECTRA")) {
+                sent++;
+                manifestSizes.add(report.rows());
+            }
+            else {
+                rejected++;
+                if(report.outcome.matches(".*_[0-9]+$")) { tooLarge++; manifestSizes.add(report.rows()); }
+            }
+            System.out.println(String.format("  %-52s  %s  %s  %5d m  %-23s %s", report.name, hhmm.format(new Date(report.landedMillis)), hhmm.format(new Date(report.handledMillis)), latencyMinutes, report.outcome.substring(1), report.conversionSeconds != null ? String.format("%6.3f s", report.conversionSeconds) : ""));
+        }
+
+        long[] skipped = skippedCounts();
+        String[] reasons = { "error", "service", "unstained", "stain-regex", "duplicate", "unchanged" };
+        long rowsSkipped = 0;
+        for(int x = 0; x < reasons.length; x++) { rowsSkipped += skipped[x] - skippedBefore[x]; }
+        long rowsRead = Metrics.rowsProcessed.get() + rowsSkipped;
+        double conversionSeconds = Metrics.fileConversion.sumSeconds();
+
+        System.out.println();
+        System.out.println(String.format("  %d passes over %.1f simulated hours, %.1f seconds of passes in real time", passes, (clock.millis - reports.get(0).landedMillis) / 3600000.0, conversionNanos / 1e9));
+        System.out.println(String.format("  %d reports sent, %d rejected (%d of them as too large), %d never converted (superseded by a later \"Today\" report or outside the lookback window)", sent, rejected, tooLarge, superseded));
+        System.out.println(String.format("  latency from landing to handled: %s", percentiles(latencies, " m")));
+        System.out.println(String.format("  rows read: %d in %.2f seconds of conversion (%.0f rows per second)", rowsRead, conversionSeconds, conversionSeconds > 0 ? rowsRead / conversionSeconds : 0.0));
+        System.out.println(String.format("  rows sent: %d (historical manifests for the same period: %d manifests, %d slides)", Metrics.rowsProcessed.get(), historicalManifests, historicalSlides));
+        for(int x = 0; x < reasons.length; x++) {
+            System.out.println(String.format("  rows skipped (%s): %d", reasons[x], skipped[x] - skippedBefore[x]));
+        }
+        System.out.println(String.format("  manifest size: %s (limit %d slides per manifest, 50 for a password-protected XLSX)", percentiles(manifestSizes, ""), Conversion.ROWS_PROCESSED_MAX_ALLOWED));
+        System.out.println(String.format("  dedup index at the end: %d slides from %d manifests", dedupIndex.size(), dedupIndex.manifestCount()));
+        System.out.println(String.format("  peak heap: %.1f MB", peakHeapBytes() / 1048576.0));
+        System.out.println(String.format("  manifests and log: %s", scratchDir.getPath()));
+
+    }
+
+    static long[] skippedCounts() {
+        return new long[] {
+            Metrics.rowsSkippedError.get(), Metrics.rowsSkippedService.get(), Metrics.rowsSkippedUnstained.get(),
+            Metrics.rowsSkippedStainRegex.get(), Metrics.rowsSkippedDuplicate.get(), Metrics.rowsSkippedUnchanged.get()
+        };
+    }
+
+    static <T extends Number & Comparable<T>> String percentiles(List<T> values, String unit) {
+        if(values.isEmpty()) {
+            return "none";
+        }
+        List<T> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return String.format("median %s%s, 90th percentile %s%s, max %s%s",
+            sorted.get((sorted.size() - 1) / 2), unit,
+            sorted.get((int)Math.ceil(sorted.size() * 0.9) - 1), unit,
+            sorted.get(sorted.size() - 1), unit);
+    }
+
+    static long peakHeapBytes() {
+        long peak = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+}
@@ -1,10 +1,14 @@
 package epic2sectra;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.text.ParsePosition;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.TemporalQuery;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.poi.ss.usermodel.Row;
@@ -15,13 +19,20 @@ import org.apache.poi.ss.usermodel.Row;
  */
 public class Slide {
 
-    static DateFormat dfDayIn = new SimpleDateFormat("MM/dd/yyyy");
-    static DateFormat dfTimestamp1In = new SimpleDateFormat("MM/dd/yyyy HHmm");
-    static DateFormat dfTimestamp2In = new SimpleDateFormat("MM/dd/yyyy hh:mm a");
-    static DateFormat dfTimestamp2InBackup = new SimpleDateFormat("MM/dd/yyyy HH:mm");
-
-    static DateFormat dfDayOut = new SimpleDateFormat("yyyyMMdd");
-    static DateFormat dfTimestampOut = new SimpleDateFormat("yyyyMMddHHmmss");
+    // DateTimeFormatter is immutable, so these can be shared by threads.
+    // Epic uses two formats each for Collected and Ordered Instant. Rather
+    // than trying one and catching the exception to try the other, we pick
+    // the format by looking at the value (see parseCollected and
+    // parseOrderedInstant). The input formats accept single digit
+    // months/days and ignore anything after the part they understand, the
+    // way DateFormat.parse does.
+    static final DateTimeFormatter dfDayIn = DateTimeFormatter.ofPattern("M/d/yyyy", Locale.US);
+    static final DateTimeFormatter dfTimestamp1In = DateTimeFormatter.ofPattern("M/d/yyyy HHmm", Locale.US);
+    static final DateTimeFormatter dfTimestamp2In = new DateTimeFormatterBuilder().parseCaseInsensitive().appendPattern("M/d/yyyy h:mm a").toFormatter(Locale.US);
+    static final DateTimeFormatter dfTimestamp2InBackup = DateTimeFormatter.ofPattern("M/d/yyyy H:mm", Locale.US);
+
+    static final DateTimeFormatter dfDayOut = DateTimeFormatter.ofPattern("yyyyMMdd", Locale.US);
+    static final DateTimeFormatter dfTimestampOut = DateTimeFormatter.ofPattern("yyyyMMddHHmmss", Locale.US);
     
     public Integer slideId;
     public String slideBarCode;
@@ -33,120 +44,87 @@ public class Slide {
     public String stain;
     public String mrn;
     public String empi;
-    public Date dob;
+    public LocalDate dob;
     public String lastName;
     public String firstName;
     public String gender;
-    public Date collectionDt;
-    public Date orderDt;
+    public LocalDateTime collectionDt;
+    public LocalDateTime orderDt;
     
     public String fileNameTimestamp;
     
+    /**
+     * Loads a single row. Converting a whole report should go through one
+     * SlideBinder, which only looks the columns up once.
+     */
     public static Slide load(CSVRecord record, List<String> errorList) {
+        SlideBinder binder = SlideBinder.forCsv(record.getParser().getHeaderMap());
+        Slide slide = binder.load(record);
+        SlideBinder.addErrorMessages(binder.errors, errorList);
+        return slide;
+    }
 
-        // getting bar code by index (0) because Epic uses "Container" twice
-        if(record.get(0) == null || record.get(0).length() == 0) { errorList.add("Slide Bar Code is NULL"); }
-        if(record.get("Specialty") == null || record.get("Specialty").length() == 0) { errorList.add("Specialty is NULL"); }
-        if(record.get("Container") == null || record.get("Container").length() == 0) { errorList.add("Container is NULL"); }
-        if(record.get("Task") == null || record.get("Task").length() == 0) { errorList.add("Task is NULL"); }
-        if(record.get("MRN") == null || record.get("MRN").length() == 0) { errorList.add("MRN is NULL"); }
-        if(record.get("Patient Enterprise ID") == null || record.get("Patient Enterprise ID").length() == 0) { errorList.add("Patient Enterprise ID is NULL"); }
-        if(record.get("Birth Date") == null || record.get("Birth Date").length() == 0) { errorList.add("Birth Date is NULL"); }
-        if(record.get("Patient Last Name") == null || record.get("Patient Last Name").length() == 0) { errorList.add("Patient Last Name is NULL"); }
-        if(record.get("Patient First Name") == null || record.get("Patient First Name").length() == 0) { errorList.add("Patient First Name is NULL"); }
-        // Collected is allowed to be NULL, in which case we use the Ordered Instant as the Collected
-        if(record.get("Ordered Instant") == null || record.get("Ordered Instant").length() == 0) { errorList.add("Ordered Instant is NULL"); }
-        Date parsedBirthDate = null;
-        if(record.get("Birth Date") != null && record.get("Birth Date").length() > 0) {
-            try { parsedBirthDate = dfDayIn.parse(record.get("Birth Date")); } catch(ParseException e) { errorList.add("Birth Date date format can't be parsed"); }
-        }
-        Date parsedCollected = null;
-        if(record.get("Collected") != null && record.get("Collected").length() > 0) {
-            try { parsedCollected = dfTimestamp1In.parse(record.get("Collected")); }
-            catch(ParseException e0)  {
-                try { parsedCollected = dfDayIn.parse(record.get("Collected")); } catch(ParseException e1) { errorList.add("Collected date format can't be parsed"); }
-            }
-        }
-        Date parsedOrderedInstant = null;
-        if(record.get("Ordered Instant") != null && record.get("Ordered Instant").length() > 0) {
-            try { parsedOrderedInstant = dfTimestamp2In.parse(record.get("Ordered Instant")); }
-            catch(ParseException e0) { 
-                try { parsedOrderedInstant = dfTimestamp2InBackup.parse(record.get("Ordered Instant")); } catch(ParseException e1) { errorList.add("Ordered Instant date format can't be parsed"); }
-            }
-        }
-
-        if(!errorList.isEmpty()) {
-            return null;
-        }
-
-        String gender = record.get("Gender").substring(0, 1);
-
-        Slide slide = new Slide();
-
-        slide.slideBarCode = record.get(0);
-        slide.service = record.get("Specialty");
-        slide.accNo = record.get("Specimen/Case ID");
-        slide.partId = record.get("Container").split(",")[1].trim();
-        slide.blockId = record.get("Container").split(",")[2].trim();
-        slide.slideNo = record.get("Container").split(",")[3].trim();
-        slide.stain = record.get("Task");
-        slide.mrn = record.get("MRN");
-        slide.empi = record.get("Patient Enterprise ID");
-        slide.dob = parsedBirthDate;
-        slide.lastName = record.get("Patient Last Name");
-        slide.firstName = record.get("Patient First Name");
-        slide.gender = gender;
-        slide.collectionDt = parsedCollected != null ? parsedCollected : parsedOrderedInstant;
-        slide.orderDt = parsedOrderedInstant;
+    public static Slide load(Row dataRow, List<String> errorList, Map<String, Integer> columnIndexByNameMap) {
+        SlideBinder binder = SlideBinder.forXlsx(columnIndexByNameMap);
+        Slide slide = binder.load(dataRow);
+        SlideBinder.addErrorMessages(binder.errors, errorList);
+        return slide;
+    }
 
+    /**
+     * Same as load(Row, ...) but for a row read by XlsxReportReader, where
+     * date cells hold the raw Excel serial number.
+     */
+    public static Slide load(String[] cells, List<String> errorList, Map<String, Integer> columnIndexByNameMap) {
+        SlideBinder binder = SlideBinder.forXlsx(columnIndexByNameMap);
+        Slide slide = binder.load(cells);
+        SlideBinder.addErrorMessages(binder.errors, errorList);
         return slide;
+    }
 
+    /**
+     * Parses a leading M/d/yyyy, or returns null if it can't.
+     */
+    static LocalDate parseDay(String text) {
+        return parse(text, dfDayIn, LocalDate::from);
     }
 
-    public static Slide load(Row dataRow, List<String> errorList, Map<String, Integer> columnIndexByNameMap) {
+    /**
+     * Collected is either "M/d/yyyy HHmm" or just "M/d/yyyy".
+     */
+    static LocalDateTime parseCollected(String text) {
+        int space = text.indexOf(' ');
+        if(space != -1 && text.length() >= space + 5 && isDigits(text, space + 1, space + 5)) {
+            return parse(text, dfTimestamp1In, LocalDateTime::from);
+        }
+        LocalDate day = parseDay(text);
+        return day != null ? day.atStartOfDay() : null;
+    }
 
-        if(dataRow.getCell(columnIndexByNameMap.get("Slide Bar Code")) == null) { errorList.add("Slide Bar Code is NULL"); }
-        if(dataRow.getCell(columnIndexByNameMap.get("Specialty")) == null) { errorList.add("Specialty is NULL"); }
-        if(dataRow.getCell(columnIndexByNameMap.get("Container")) == null) { errorList.add("Container is NULL"); }
-        if(dataRow.getCell(columnIndexByNameMap.get("Task")) == null) { errorList.add("Task is NULL"); }
-        if(dataRow.getCell(columnIndexByNameMap.get("MRN")) == null) { errorList.add("MRN is NULL"); }
-        if(dataRow.getCell(columnIndexByNameMap.get("Patient Enterprise ID")) == null) { errorList.add("Patient Enterprise ID is NULL"); }
-        if(dataRow.getCell(columnIndexByNameMap.get("Birth Date")) == null) { errorList.add("Birth Date is NULL"); }
-        if(dataRow.getCell(columnIndexByNameMap.get("Patient Last Name")) == null) { errorList.add("Patient Last Name is NULL"); }
-        if(dataRow.getCell(columnIndexByNameMap.get("Patient First Name")) == null) { errorList.add("Patient First Name is NULL"); }
-        // Collected is allowed to be NULL, in which case we use the Ordered Instant as the Collected
-        if(dataRow.getCell(columnIndexByNameMap.get("Ordered Instant")) == null) { errorList.add("Ordered Instant is NULL"); }
-
-        if(!errorList.isEmpty()) {
-            return null;
+    /**
+     * Ordered Instant is either "M/d/yyyy h:mm AM" or "M/d/yyyy H:mm".
+     */
+    static LocalDateTime parseOrderedInstant(String text) {
+        char last = text.charAt(text.length() - 1);
+        if(last == 'M' || last == 'm') {
+            return parse(text, dfTimestamp2In, LocalDateTime::from);
         }
+        return parse(text, dfTimestamp2InBackup, LocalDateTime::from);
+    }
 
-        String gender = dataRow.getCell(columnIndexByNameMap.get("Gender")).getStringCellValue().substring(0, 1);
+    private static <T> T parse(String text, DateTimeFormatter formatter, TemporalQuery<T> query) {
+        // parsing from a ParsePosition ignores trailing text, like
+        // DateFormat.parse(String) did
+        try { return formatter.parse(text, new ParsePosition(0)).query(query); } catch(DateTimeException e) { return null; }
+    }
 
-        Slide slide = new Slide();
+    private static boolean isDigits(String text, int beginIndex, int endIndex) {
+        for(int x = beginIndex; x < endIndex; x++) {
+            if(text.charAt(x) < '0' || text.charAt(x) > '9') { return false; }
+        }
+        return true;
+    }
 
-        slide.slideBarCode = dataRow.getCell(columnIndexByNameMap.get("Slide Bar Code")).getStringCellValue();
-        slide.service = dataRow.getCell(columnIndexByNameMap.get("Specialty")).getStringCellValue();
-        slide.accNo = dataRow.getCell(columnIndexByNameMap.get("Specimen/Case ID")).getStringCellValue();
-        slide.partId = dataRow.getCell(columnIndexByNameMap.get("Container")).getStringCellValue().split(",")[1].trim();
-        slide.blockId =dataRow.getCell(columnIndexByNameMap.get("Container")).getStringCellValue().split(",")[2].trim();
-        slide.slideNo = dataRow.getCell(columnIndexByNameMap.get("Container")).getStringCellValue().split(",")[3].trim();
-        slide.stain = dataRow.getCell(columnIndexByNameMap.get("Task")).getStringCellValue();
-        slide.mrn = dataRow.getCell(columnIndexByNameMap.get("MRN")).getStringCellValue();
-        slide.empi = dataRow.getCell(columnIndexByNameMap.get("Patient Enterprise ID")).getStringCellValue();
-        slide.dob = dataRow.getCell(columnIndexByNameMap.get("Birth Date")).getDateCellValue();
-        slide.lastName = dataRow.getCell(columnIndexByNameMap.get("Patient Last Name")).getStringCellValue();
-        slide.firstName = dataRow.getCell(columnIndexByNameMap.get("Patient First Name")).getStringCellValue();
-        slide.gender = gender;
-        slide.collectionDt = dataRow.getCell(columnIndexByNameMap.get("Collected")) != null
-            ? dataRow.getCell(columnIndexByNameMap.get("Collected")).getDateCellValue()
-            : dataRow.getCell(columnIndexByNameMap.get("Ordered Instant")).getDateCellValue();
-        slide.orderDt = dataRow.getCell(columnIndexByNameMap.get("Ordered Instant")).getDateCellValue();
-        
-        return slide;
-        
-    }    
-    
     public static String toManifestHeaderString() {
         
         return(String.format("\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\"",
@@ -171,27 +149,15 @@ public class Slide {
     
     public String toManifestString() {
 
-        return(String.format("\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\",\"%s\"",
-            slideBarCode,
-            service,
-            accNo,
-            partId,
-            blockId,
-            slideNo,
-            stain,
-            mrn,
-            empi,
-            dfDayOut.format(dob),
-            lastName != null ? lastName.replace("\"", " ") : lastName,
-            firstName != null ? firstName.replace("\"", " ") : firstName,
-            gender,
-            dfTimestampOut.format(collectionDt),
-            dfTimestampOut.format(orderDt)
-        ));
+        // see ManifestWriter, which writes the same thing without making a
+        // String for every slide
+        StringBuilder sb = new StringBuilder(192);
+        ManifestWriter.append(sb, this);
+        return sb.toString();
         
     }
 
-    public static Slide loadFromManifest(CSVRecord record) throws ParseException {
+    public static Slide loadFromManifest(CSVRecord record) {
 
         Slide slide = new Slide();
 
@@ -204,12 +170,12 @@ public class Slide {
         slide.stain = record.get("stain");
         slide.mrn = record.get("mrn");
         slide.empi = record.get("empi");
-        slide.dob = dfDayOut.parse(record.get("dob"));
+        slide.dob = LocalDate.parse(record.get("dob"), dfDayOut);
         slide.lastName = record.get("lastName");
         slide.firstName = record.get("firstName");
         slide.gender = record.get("gender");
-        slide.collectionDt = dfDayOut.parse(record.get("collectionDt"));
-        slide.orderDt = dfDayOut.parse(record.get("orderDt"));
+        slide.collectionDt = LocalDateTime.parse(record.get("collectionDt"), dfTimestampOut);
+        slide.orderDt = LocalDateTime.parse(record.get("orderDt"), dfTimestampOut);
 
         return slide;
 
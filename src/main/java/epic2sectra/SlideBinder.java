@@ -0,0 +1,408 @@
+package epic2sectra;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Row;
+
+/**
+ * Turns report rows into slides. The column indexes are looked up by name
+ * once per report, from the header, rather than for every cell of every
+ * row. Each cell is read once, and the Container column ("S23-12345, A, 1,
+ * 2") is taken apart in one scan instead of being split three times.
+ *
+ * A row that can't be loaded sets bits in errors instead of adding
+ * messages to a new list. The binder is reused row after row, so it
+ * belongs to one report and one thread.
+ *
+ * @author Geoff
+ */
+public class SlideBinder {
+
+    public static final int SLIDE_BAR_CODE_NULL = 1;
+    public static final int SPECIALTY_NULL = 1 << 1;
+    public static final int CONTAINER_NULL = 1 << 2;
+    public static final int TASK_NULL = 1 << 3;
+    public static final int MRN_NULL = 1 << 4;
+    public static final int EMPI_NULL = 1 << 5;
+    public static final int BIRTH_DATE_NULL = 1 << 6;
+    public static final int LAST_NAME_NULL = 1 << 7;
+    public static final int FIRST_NAME_NULL = 1 << 8;
+    public static final int ORDERED_INSTANT_NULL = 1 << 9;
+    public static final int BIRTH_DATE_FORMAT = 1 << 10;
+    public static final int COLLECTED_FORMAT = 1 << 11;
+    public static final int ORDERED_INSTANT_FORMAT = 1 << 12;
+
+    // the message for each bit, in bit order
+    static final String[] ERROR_MESSAGES = {
+        "Slide Bar Code is NULL",
+        "Specialty is NULL",
+        "Container is NULL",
+        "Task is NULL",
+        "MRN is NULL",
+        "Patient Enterprise ID is NULL",
+        "Birth Date is NULL",
+        "Patient Last Name is NULL",
+        "Patient First Name is NULL",
+        // Collected is allowed to be NULL, in which case we use the Ordered Instant as the Collected
+        "Ordered Instant is NULL",
+        "Birth Date date format can't be parsed",
+        "Collected date format can't be parsed",
+        "Ordered Instant date format can't be parsed"
+    };
+
+    final int slideBarCodeIndex;
+    final int specialtyIndex;
+    final int caseIdIndex;
+    final int containerIndex;
+    final int taskIndex;
+    final int mrnIndex;
+    final int empiIndex;
+    final int birthDateIndex;
+    final int lastNameIndex;
+    final int firstNameIndex;
+    final int genderIndex;
+    final int collectedIndex;
+    final int orderedInstantIndex;
+
+    // whether XLSX date cells count from 1904 (XlsxReportReader.date1904)
+    boolean date1904 = false;
+
+    // the errors of the last row loaded, 0 if it loaded
+    public int errors;
+
+    SlideBinder(Map<String, Integer> columnIndexByNameMap, int slideBarCodeIndex, boolean columnsRequired) {
+        this.slideBarCodeIndex = slideBarCodeIndex;
+        this.specialtyIndex = index(columnIndexByNameMap, "Specialty", columnsRequired);
+        this.caseIdIndex = index(columnIndexByNameMap, "Specimen/Case ID", columnsRequired);
+        this.containerIndex = index(columnIndexByNameMap, "Container", columnsRequired);
+        this.taskIndex = index(columnIndexByNameMap, "Task", columnsRequired);
+        this.mrnIndex = index(columnIndexByNameMap, "MRN", columnsRequired);
+        this.empiIndex = index(columnIndexByNameMap, "Patient Enterprise ID", columnsRequired);
+        this.birthDateIndex = index(columnIndexByNameMap, "Birth Date", columnsRequired);
+        this.lastNameIndex = index(columnIndexByNameMap, "Patient Last Name", columnsRequired);
+        this.firstNameIndex = index(columnIndexByNameMap, "Patient First Name", columnsRequired);
+        this.genderIndex = index(columnIndexByNameMap, "Gender", columnsRequired);
+        this.collectedIndex = index(columnIndexByNameMap, "Collected", columnsRequired);
+        this.orderedInstantIndex = index(columnIndexByNameMap, "Ordered Instant", columnsRequired);
+    }
+
+    /**
+     * For a CSV report, given the parser's header map. The header is
+     * matched without regard to case, and Epic uses "Container" for two
+     * columns, so the bar code is taken from the first column and
+     * "Container" means the last one. Throws IllegalArgumentException if
+     * a column is missing, like CSVRecord.get(String) does.
+     */
+    public static SlideBinder forCsv(Map<String, Integer> headerMap) {
+        Map<String, Integer> columnIndexByNameMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        columnIndexByNameMap.putAll(headerMap);
+        return new SlideBinder(columnIndexByNameMap, 0, true);
+    }
+
+    /**
+     * For an XLSX report, given XlsxReportReader.columnIndexByNameMap. A
+     * missing column reads as an empty cell.
+     */
+    public static SlideBinder forXlsx(Map<String, Integer> columnIndexByNameMap) {
+        return forXlsx(columnIndexByNameMap, false);
+    }
+
+    /**
+     * Same as forXlsx(Map) for a workbook whose dates count from 1904.
+     */
+    public static SlideBinder forXlsx(Map<String, Integer> columnIndexByNameMap, boolean date1904) {
+        SlideBinder binder = new SlideBinder(columnIndexByNameMap, index(columnIndexByNameMap, "Slide Bar Code", false), false);
+        binder.date1904 = date1904;
+        return binder;
+    }
+
+    private static int index(Map<String, Integer> columnIndexByNameMap, String columnName, boolean required) {
+        Integer columnIndex = columnIndexByNameMap.get(columnName);
+        if(columnIndex == null) {
+            if(required) {
+                throw new IllegalArgumentException(String.format("Mapping for %s not found, expected one of %s", columnName, columnIndexByNameMap.keySet()));
+            }
+            return -1;
+        }
+        return columnIndex;
+    }
+
+    /**
+     * Adds the messages for the bits in errors to the collection.
+     */
+    public static void addErrorMessages(int errors, Collection<String> errorMessages) {
+        for(int bit = 0; bit < ERROR_MESSAGES.length; bit++) {
+            if((errors & (1 << bit)) != 0) {
+                errorMessages.add(ERROR_MESSAGES[bit]);
+            }
+        }
+    }
+
+    public Slide load(CSVRecord record) {
+        return load(CsvFields.of(record));
+    }
+
+    /**
+     * Returns the slide, or null (with errors set) if the row can't be
+     * loaded.
+     */
+    public Slide load(CsvFields record) {
+
+        errors = 0;
+
+        String slideBarCode = csv(record, slideBarCodeIndex, "Slide Bar Code");
+        String specialty = csv(record, specialtyIndex, "Specialty");
+        String container = csv(record, containerIndex, "Container");
+        String task = csv(record, taskIndex, "Task");
+        String mrn = csv(record, mrnIndex, "MRN");
+        String empi = csv(record, empiIndex, "Patient Enterprise ID");
+        String birthDate = csv(record, birthDateIndex, "Birth Date");
+        String lastName = csv(record, lastNameIndex, "Patient Last Name");
+        String firstName = csv(record, firstNameIndex, "Patient First Name");
+        String collected = csv(record, collectedIndex, "Collected");
+        String orderedInstant = csv(record, orderedInstantIndex, "Ordered Instant");
+
+        if(isEmpty(slideBarCode)) { errors |= SLIDE_BAR_CODE_NULL; }
+        if(isEmpty(specialty)) { errors |= SPECIALTY_NULL; }
+        if(isEmpty(container)) { errors |= CONTAINER_NULL; }
+        if(isEmpty(task)) { errors |= TASK_NULL; }
+        if(isEmpty(mrn)) { errors |= MRN_NULL; }
+        if(isEmpty(empi)) { errors |= EMPI_NULL; }
+        if(isEmpty(birthDate)) { errors |= BIRTH_DATE_NULL; }
+        if(isEmpty(lastName)) { errors |= LAST_NAME_NULL; }
+        if(isEmpty(firstName)) { errors |= FIRST_NAME_NULL; }
+        if(isEmpty(orderedInstant)) { errors |= ORDERED_INSTANT_NULL; }
+        LocalDate parsedBirthDate = null;
+        if(!isEmpty(birthDate)) {
+            parsedBirthDate = Slide.parseDay(birthDate);
+            if(parsedBirthDate == null) { errors |= BIRTH_DATE_FORMAT; }
+        }
+        LocalDateTime parsedCollected = null;
+        if(!isEmpty(collected)) {
+            parsedCollected = Slide.parseCollected(collected);
+            if(parsedCollected == null) { errors |= COLLECTED_FORMAT; }
+        }
+        LocalDateTime parsedOrderedInstant = null;
+        if(!isEmpty(orderedInstant)) {
+            parsedOrderedInstant = Slide.parseOrderedInstant(orderedInstant);
+            if(parsedOrderedInstant == null) { errors |= ORDERED_INSTANT_FORMAT; }
+        }
+
+        if(errors != 0) {
+            return null;
+        }
+
+        Slide slide = new Slide();
+
+        slide.slideBarCode = slideBarCode;
+        slide.service = specialty;
+        slide.accNo = csv(record, caseIdIndex, "Specimen/Case ID");
+        bindContainer(slide, container);
+        slide.stain = task;
+        slide.mrn = mrn;
+        slide.empi = empi;
+        slide.dob = parsedBirthDate;
+        slide.lastName = lastName;
+        slide.firstName = firstName;
+        slide.gender = csv(record, genderIndex, "Gender").substring(0, 1);
+        slide.collectionDt = parsedCollected != null ? parsedCollected : parsedOrderedInstant;
+        slide.orderDt = parsedOrderedInstant;
+
+        return slide;
+
+    }
+
+    /**
+     * Same as load(CsvFields) but for a row read by XlsxReportReader, where
+     * date cells hold the raw Excel serial number. Only missing cells (null)
+     * count as NULL, a blank cell is an empty string, as it was for
+     * Row.getCell(). A blank Collected falls back to Ordered Instant like
+     * an empty one in a CSV report.
+     */
+    public Slide load(String[] cells) {
+
+        errors = 0;
+
+        String slideBarCode = cell(cells, slideBarCodeIndex);
+        String specialty = cell(cells, specialtyIndex);
+        String container = cell(cells, containerIndex);
+        String task = cell(cells, taskIndex);
+        String mrn = cell(cells, mrnIndex);
+        String empi = cell(cells, empiIndex);
+        String birthDate = cell(cells, birthDateIndex);
+        String lastName = cell(cells, lastNameIndex);
+        String firstName = cell(cells, firstNameIndex);
+        String collected = cell(cells, collectedIndex);
+        String orderedInstant = cell(cells, orderedInstantIndex);
+
+        if(slideBarCode == null) { errors |= SLIDE_BAR_CODE_NULL; }
+        if(specialty == null) { errors |= SPECIALTY_NULL; }
+        if(container == null) { errors |= CONTAINER_NULL; }
+        if(task == null) { errors |= TASK_NULL; }
+        if(mrn == null) { errors |= MRN_NULL; }
+        if(empi == null) { errors |= EMPI_NULL; }
+        if(birthDate == null) { errors |= BIRTH_DATE_NULL; }
+        if(lastName == null) { errors |= LAST_NAME_NULL; }
+        if(firstName == null) { errors |= FIRST_NAME_NULL; }
+        if(orderedInstant == null) { errors |= ORDERED_INSTANT_NULL; }
+        LocalDate parsedBirthDate = null;
+        if(birthDate != null) {
+            LocalDateTime parsedBirthTimestamp = excelDate(birthDate);
+            parsedBirthDate = parsedBirthTimestamp != null ? parsedBirthTimestamp.toLocalDate() : null;
+            if(parsedBirthDate == null) { errors |= BIRTH_DATE_FORMAT; }
+        }
+        LocalDateTime parsedCollected = null;
+        if(!isEmpty(collected)) {
+            parsedCollected = excelDate(collected);
+            if(parsedCollected == null) { errors |= COLLECTED_FORMAT; }
+        }
+        LocalDateTime parsedOrderedInstant = null;
+        if(orderedInstant != null) {
+            parsedOrderedInstant = excelDate(orderedInstant);
+            if(parsedOrderedInstant == null) { errors |= ORDERED_INSTANT_FORMAT; }
+        }
+
+        if(errors != 0) {
+            return null;
+        }
+
+        Slide slide = new Slide();
+
+        slide.slideBarCode = slideBarCode;
+        slide.service = specialty;
+        slide.accNo = cell(cells, caseIdIndex);
+        bindContainer(slide, container);
+        slide.stain = task;
+        slide.mrn = mrn;
+        slide.empi = empi;
+        slide.dob = parsedBirthDate;
+        slide.lastName = lastName;
+        slide.firstName = firstName;
+        slide.gender = cell(cells, genderIndex).substring(0, 1);
+        slide.collectionDt = parsedCollected != null ? parsedCollected : parsedOrderedInstant;
+        slide.orderDt = parsedOrderedInstant;
+
+        return slide;
+
+    }
+
+    /**
+     * Same as load(String[]) but for a row of a workbook loaded by POI's
+     * user model, where date cells are real dates.
+     */
+    public Slide load(Row row) {
+
+        errors = 0;
+
+        Cell slideBarCode = cell(row, slideBarCodeIndex);
+        Cell specialty = cell(row, specialtyIndex);
+        Cell container = cell(row, containerIndex);
+        Cell task = cell(row, taskIndex);
+        Cell mrn = cell(row, mrnIndex);
+        Cell empi = cell(row, empiIndex);
+        Cell birthDate = cell(row, birthDateIndex);
+        Cell lastName = cell(row, lastNameIndex);
+        Cell firstName = cell(row, firstNameIndex);
+        Cell collected = cell(row, collectedIndex);
+        Cell orderedInstant = cell(row, orderedInstantIndex);
+
+        if(slideBarCode == null) { errors |= SLIDE_BAR_CODE_NULL; }
+        if(specialty == null) { errors |= SPECIALTY_NULL; }
+        if(container == null) { errors |= CONTAINER_NULL; }
+        if(task == null) { errors |= TASK_NULL; }
+        if(mrn == null) { errors |= MRN_NULL; }
+        if(empi == null) { errors |= EMPI_NULL; }
+        if(birthDate == null) { errors |= BIRTH_DATE_NULL; }
+        if(lastName == null) { errors |= LAST_NAME_NULL; }
+        if(firstName == null) { errors |= FIRST_NAME_NULL; }
+        if(orderedInstant == null) { errors |= ORDERED_INSTANT_NULL; }
+
+        if(errors != 0) {
+            return null;
+        }
+
+        Slide slide = new Slide();
+
+        slide.slideBarCode = slideBarCode.getStringCellValue();
+        slide.service = specialty.getStringCellValue();
+        slide.accNo = cell(row, caseIdIndex).getStringCellValue();
+        bindContainer(slide, container.getStringCellValue());
+        slide.stain = task.getStringCellValue();
+        slide.mrn = mrn.getStringCellValue();
+        slide.empi = empi.getStringCellValue();
+        slide.dob = birthDate.getLocalDateTimeCellValue().toLocalDate();
+        slide.lastName = lastName.getStringCellValue();
+        slide.firstName = firstName.getStringCellValue();
+        slide.gender = cell(row, genderIndex).getStringCellValue().substring(0, 1);
+        slide.orderDt = orderedInstant.getLocalDateTimeCellValue();
+        slide.collectionDt = collected != null ? collected.getLocalDateTimeCellValue() : slide.orderDt;
+
+        return slide;
+
+    }
+
+    /**
+     * Sets partId, blockId and slideNo from the second, third and fourth
+     * comma separated fields of the Container column, trimmed (e.g., "A",
+     * "1" and "2" from "S23-12345, A, 1, 2"). Anything after the fourth
+     * field is ignored. Like String.split, empty trailing fields don't
+     * count, and a Container with fewer than four fields is an error in
+     * the report as a whole rather than in the row.
+     */
+    static void bindContainer(Slide slide, String container) {
+        int comma1 = container.indexOf(',');
+        int comma2 = comma1 == -1 ? -1 : container.indexOf(',', comma1 + 1);
+        int comma3 = comma2 == -1 ? -1 : container.indexOf(',', comma2 + 1);
+        if(comma3 == -1 || onlyCommas(container, comma3 + 1)) {
+            throw new ArrayIndexOutOfBoundsException(String.format("Container \"%s\" does not have part, block and slide", container));
+        }
+        int end = container.indexOf(',', comma3 + 1);
+        slide.partId = trimmed(container, comma1 + 1, comma2);
+        slide.blockId = trimmed(container, comma2 + 1, comma3);
+        slide.slideNo = trimmed(container, comma3 + 1, end == -1 ? container.length() : end);
+    }
+
+    private static boolean onlyCommas(String text, int beginIndex) {
+        for(int x = beginIndex; x < text.length(); x++) {
+            if(text.charAt(x) != ',') { return false; }
+        }
+        return true;
+    }
+
+    // same as text.substring(beginIndex, endIndex).trim() without the
+    // intermediate string
+    private static String trimmed(String text, int beginIndex, int endIndex) {
+        while(beginIndex < endIndex && text.charAt(beginIndex) <= ' ') { beginIndex++; }
+        while(endIndex > beginIndex && text.charAt(endIndex - 1) <= ' ') { endIndex--; }
+        return text.substring(beginIndex, endIndex);
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
+    }
+
+    private static String csv(CsvFields record, int columnIndex, String columnName) {
+        if(columnIndex >= record.size()) {
+            // same complaint as CSVRecord.get(String)
+            throw new IllegalArgumentException(String.format("Index for header '%s' is %d but CSVRecord only has %d values!", columnName, columnIndex, record.size()));
+        }
+        return record.get(columnIndex);
+    }
+
+    private static String cell(String[] cells, int columnIndex) {
+        return columnIndex != -1 && columnIndex < cells.length ? cells[columnIndex] : null;
+    }
+
+    private static Cell cell(Row row, int columnIndex) {
+        return columnIndex != -1 ? row.getCell(columnIndex) : null;
+    }
+
+    private LocalDateTime excelDate(String serialNumber) {
+        try { return DateUtil.getLocalDateTime(Double.parseDouble(serialNumber), date1904); } catch(NumberFormatException e) { return null; }
+    }
+
+}
@@ -0,0 +1,282 @@
+package epic2sectra;
+
+import java.util.concurrent.*;
+
+/**
+ * Converts one Epic report in three stages on three threads, so a single
+ * big report can use more than one core:
+ *
+ *   read     - tokenizes the CSV (or parses the XLSX sheet XML) and, in
+ *              delta mode, fingerprints each row
+ *   bind     - turns rows into Slides (SlideBinder), skipping the rows
+ *              delta mode will skip anyway
+ *   accept   - filters, checks for duplicates and writes the manifest
+ *              (Conversion), on the calling thread and in report order
+ *
+ * Rows go from stage to stage in batches of BATCH_ROWS over queues that
+ * hold at most QUEUE_BATCHES batches, so a slow stage holds up the stages
+ * before it instead of the whole report piling up in memory. How full the
+ * two queues were on average is published after each report
+ * (Metrics.stageQueueTokenized and stageQueueBound): a full queue means
+ * the stage after it is the one limiting throughput, an empty one means
+ * the stage before it is.
+ *
+ * The manifest, counts and errors are exactly the same as when the report
+ * is converted on one thread. Turned on with staged-conversion=yes.
+ *
+ * @author Geoff
+ */
+public class StagedConversion {
+
+    static final int BATCH_ROWS = 256;
+    static final int QUEUE_BATCHES = 16;
+
+    static final ExecutorService STAGES = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "epic2sectra-stage");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Where the read stage gets its rows from.
+     */
+    interface RowSource {
+        void read(Batcher batcher) throws Exception;
+    }
+
+    /**
+     * Makes the bind stage's SlideBinder when the first row arrives.
+     */
+    interface BinderFactory {
+        SlideBinder binder();
+    }
+
+    // rows on their way through the stages: the read stage fills rows and
+    // fingerprints, the bind stage fills slides and errors
+    static class Batch {
+        final Object[] rows = new Object[BATCH_ROWS]; // CsvFields or String[]
+        final long[] fingerprints = new long[BATCH_ROWS];
+        final Slide[] slides = new Slide[BATCH_ROWS];
+        final int[] errors = new int[BATCH_ROWS];
+        int size = 0;
+        boolean last = false;
+        Throwable failure; // only on the last batch
+    }
+
+    /**
+     * Collects the read stage's rows into batches and queues them.
+     */
+    static class Batcher {
+
+        final BlockingQueue<Batch> queue;
+        final boolean fingerprints;
+        final DepthSampler depth = new DepthSampler();
+        Batch batch = new Batch();
+
+        Batcher(BlockingQueue<Batch> queue, boolean fingerprints) {
+            this.queue = queue;
+            this.fingerprints = fingerprints;
+        }
+
+        void add(CsvTokenizer records) throws InterruptedException {
+            if(fingerprints) { batch.fingerprints[batch.size] = DeltaIndex.fingerprint(records); }
+            add((Object)records.record());
+        }
+
+        void add(String[] cells) throws InterruptedException {
+            if(fingerprints) { batch.fingerprints[batch.size] = DeltaIndex.fingerprint(cells); }
+            add((Object)cells.clone()); // the XLSX reader reuses its array
+        }
+
+        private void add(Object row) throws InterruptedException {
+            batch.rows[batch.size++] = row;
+            if(batch.size == BATCH_ROWS) {
+                depth.put(queue, batch);
+                batch = new Batch();
+            }
+        }
+
+        void finish(Throwable failure) throws InterruptedException {
+            batch.last = true;
+            batch.failure = failure;
+            depth.put(queue, batch);
+        }
+
+    }
+
+    // the average number of rows in a queue, sampled every time a batch is
+    // put on it
+    static class DepthSampler {
+
+        long samples = 0;
+        long sum = 0;
+
+        void put(BlockingQueue<Batch> queue, Batch batch) throws InterruptedException {
+            sum += queue.size();
+            samples++;
+            queue.put(batch);
+        }
+
+        long averageRows() {
+            return samples == 0 ? 0 : sum * BATCH_ROWS / samples;
+        }
+
+    }
+
+    public static void readCsv(CsvTokenizer records, Conversion conversion) throws Exception {
+        run(batcher -> {
+            while(records.next()) {
+                batcher.add(records);
+            }
+        }, () -> SlideBinder.forCsv(records.headerMap), conversion);
+    }
+
+    public static void readXlsx(XlsxReportReader reader, Conversion conversion) throws Exception {
+        run(batcher -> {
+            reader.read(cells -> {
+                try {
+                    batcher.add(cells);
+                }
+                catch(InterruptedException e) {
+                    throw new CancellationException();
+                }
+            });
+        }, () -> SlideBinder.forXlsx(reader.columnIndexByNameMap, reader.date1904), conversion);
+    }
+
+    static void run(RowSource source, BinderFactory binderFactory, Conversion conversion) throws Exception {
+
+        BlockingQueue<Batch> tokenized = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        BlockingQueue<Batch> bound = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        boolean delta = conversion.rowFingerprints != null;
+        // read only while the report is converted, so the bind stage can
+        // look at it too
+        DeltaIndex.Report previousReport = conversion.previousReport;
+
+        Batcher batcher = new Batcher(tokenized, delta);
+        Future<?> read = STAGES.submit(() -> {
+            Throwable failure = null;
+            try {
+                source.read(batcher);
+            }
+            catch(CancellationException | InterruptedException e) {
+                return null;
+            }
+            catch(Throwable e) {
+                // an Error too, or the stages after this one would wait
+                // for the last batch forever
+                failure = e;
+            }
+            batcher.finish(failure);
+            return null;
+        });
+
+        DepthSampler boundDepth = new DepthSampler();
+        Future<?> bind = STAGES.submit(() -> {
+            SlideBinder binder = null;
+            while(true) {
+                Batch batch = take(tokenized, read);
+                for(int x = 0; x < batch.size; x++) {
+                    if(delta && previousReport != null && previousReport.rows.contains(batch.fingerprints[x])) {
+                        continue; // the accept stage skips it (Conversion.unchanged)
+                    }
+                    if(binder == null) {
+                        try {
+                            binder = binderFactory.binder();
+                        }
+                        catch(Throwable e) {
+                            // reported when the accept stage gets to this row,
+                            // as it would be without stages
+                            batch.size = x;
+                            batch.last = true;
+                            batch.failure = e;
+                            break;
+                        }
+                    }
+                    long parseStart = System.nanoTime();
+                    try {
+                        Object row = batch.rows[x];
+                        batch.slides[x] = row instanceof String[] ? binder.load((String[])row) : binder.load((CsvFields)row);
+                    }
+                    catch(Throwable e) {
+                        batch.size = x;
+                        batch.last = true;
+                        batch.failure = e;
+                        break;
+                    }
+                    Metrics.rowParse.record(System.nanoTime() - parseStart);
+                    batch.errors[x] = binder.errors;
+                    batch.rows[x] = null;
+                }
+                boundDepth.put(bound, batch);
+                if(batch.last) {
+                    return null;
+                }
+            }
+        });
+
+        try {
+            while(true) {
+                Batch batch = take(bound, bind);
+                for(int x = 0; x < batch.size; x++) {
+                    if(delta && conversion.unchanged(batch.fingerprints[x])) {
+                        continue;
+                    }
+                    if(batch.slides[x] == null) {
+                        conversion.reject(batch.errors[x]);
+                        continue;
+                    }
+                    conversion.accept(batch.slides[x]);
+                }
+                if(batch.last) {
+                    if(batch.failure != null) {
+                        throw rethrow(batch.failure);
+                    }
+                    break;
+                }
+            }
+        }
+        finally {
+            read.cancel(true);
+            bind.cancel(true);
+        }
+
+        Metrics.stageQueueTokenized.set(batcher.depth.averageRows());
+        Metrics.stageQueueBound.set(boundDepth.averageRows());
+
+    }
+
+    // the next batch the stage queues, or why the stage stopped without
+    // queuing its last batch, instead of waiting for it forever
+    static Batch take(BlockingQueue<Batch> queue, Future<?> stage) throws Exception {
+        while(true) {
+            Batch batch = queue.poll(1, TimeUnit.SECONDS);
+            if(batch != null) {
+                return batch;
+            }
+            if(stage.isDone()) {
+                // it may have queued the batch just after the poll
+                batch = queue.poll();
+                if(batch != null) {
+                    return batch;
+                }
+                try {
+                    stage.get();
+                }
+                catch(ExecutionException e) {
+                    throw rethrow(e.getCause());
+                }
+                throw new IllegalStateException("a conversion stage stopped before the end of the report");
+            }
+        }
+    }
+
+    // a stage's failure as the calling thread throws it: Errors as they are
+    static Exception rethrow(Throwable failure) {
+        if(failure instanceof Error) {
+            throw (Error)failure;
+        }
+        return failure instanceof Exception ? (Exception)failure : new ExecutionException(failure);
+    }
+
+}
@@ -0,0 +1,260 @@
+package epic2sectra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+
+/**
+ * Keeps the JVM resident and runs ConvertCsvOrXlsx.convert whenever
+ * something changes in the Epic report directories or the Sectra inbox.
+ * Files are renamed exactly as they are by the scheduled task, so it is
+ * safe to switch between the two modes (just don't run both at once).
+ *
+ * The watch service is only a latency optimization. Windows does not
+ * reliably deliver change notifications for network shares, so we also
+ * run a pass every daemon-poll-seconds no matter what.
+ *
+ * With several pipelines, each one has its own next pass time. A file
+ * system event makes every pipeline due (a pass rescans its directories,
+ * which is cheap), and the due pipelines run together in one round (see
+ * Pipeline.runRound).
+ *
+ * The daemon's own renames and manifests don't count as changes, or every
+ * pass would trigger the next one. Neither does a report disappearing. In
+ * the inbox, a manifest disappearing does (Sectra took it).
+ *
+ * @author Geoff
+ */
+public class WatchDaemon {
+
+    // wait this long after the last event before running, so a burst of
+    // events for one file (create, modify, modify, ...) triggers one pass
+    static final long QUIET_MILLIS = 2000;
+
+    // the files a pass itself creates: manifests (and their parts and
+    // temporary copies) and renamed reports
+    static final String OWN_FILE_NAME_REGEX = "(?i)^.*\\.(sectra_.*\\.csv|SENT_TO_SECTRA_\\d+\\.(csv|xlsx)|REJECTED(_\\d+)?\\.(csv|xlsx))(\\.tmp)?$";
+
+    // how soon to look again at a report that is still being written
+    static final long NOT_READY_RETRY_MILLIS = 15000;
+
+    final Configuration config; // the first pipeline, for the process-wide settings
+    final List<Pipeline> pipelines = new ArrayList<>();
+    final PrintStream out;
+    final Set<Path> inboxDirs = new HashSet<>();
+
+    public WatchDaemon(List<Configuration> pipelines, PrintStream out) {
+        this.config = pipelines.get(0);
+        for(Configuration pipelineConfig : pipelines) { this.pipelines.add(new Pipeline(pipelineConfig)); }
+        this.out = out;
+    }
+
+    public void run() throws IOException {
+
+        // each pipeline's dedup index is loaded on its first pass and kept
+        // up to date by each pass, so a pass only reads the manifests Sectra
+        // has processed since the previous pass
+        ExecutorService executor = Executors.newFixedThreadPool(config.pipelineThreads > 0 ? config.pipelineThreads : pipelines.size());
+        // archiving is slow and never urgent, so it gets its own thread
+        ExecutorService archiver = Executors.newSingleThreadExecutor();
+
+        try {
+            Metrics.registerMBean();
+        }
+        catch(JMException e) {
+            out.println();
+            out.println(String.format("%s - WARNING: metrics could not be published over JMX", new Date()));
+            out.println(String.format("    %s", e.getMessage()));
+        }
+        if(config.metricsPort != 0) {
+            MetricsServer.start(config.metricsPort, out);
+        }
+
+        try(WatchService watchService = FileSystems.getDefault().newWatchService()) {
+
+            for(Pipeline pipeline : pipelines) {
+                register(watchService, pipeline.config.epicReportDir);
+                register(watchService, pipeline.config.epicMissedReportDir);
+                // the inbox draining is what unblocks us after INBOX_NOT_EMPTY
+                register(watchService, pipeline.config.sectraInboxDir);
+                inboxDirs.add(pipeline.config.sectraInboxDir.toPath());
+            }
+
+            out.println();
+            if(pipelines.size() == 1) {
+                out.println(String.format("%s - running as a daemon (poll every %d seconds)", new Date(), config.daemonPollSeconds));
+            }
+            else {
+                List<String> names = new ArrayList<>();
+                for(Pipeline pipeline : pipelines) { names.add(String.format("%s every %d seconds", pipeline.name(), pipeline.config.daemonPollSeconds)); }
+                out.println(String.format("%s - running as a daemon (poll %s)", new Date(), String.join(", ", names)));
+            }
+
+            // every pipeline is due right away in case reports landed while we were down
+
+            while(true) {
+
+                long waitMillis = Long.MAX_VALUE;
+                for(Pipeline pipeline : pipelines) { waitMillis = Math.min(waitMillis, pipeline.dueMillis - System.currentTimeMillis()); }
+
+                if(waitMillis > 0) {
+                    if(awaitChange(watchService, waitMillis)) {
+                        for(Pipeline pipeline : pipelines) { pipeline.dueMillis = 0; }
+                    }
+                    else {
+                        out.println();
+                        out.println(String.format("%s - no file system events, polling", new Date()));
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                List<Pipeline> round = new ArrayList<>();
+                for(Pipeline pipeline : pipelines) {
+                    if(pipeline.dueMillis <= now) { round.add(pipeline); }
+                }
+
+                Map<Pipeline, ConvertCsvOrXlsx.RunResult> resultByPipeline;
+                try {
+                    resultByPipeline = Pipeline.runRound(round, executor, out);
+                }
+                catch(Exception e) {
+                    // a pass that blows up must not take the daemon down with it
+                    out.println();
+                    out.println(String.format("%s - WARNING: daemon pass failed", new Date()));
+                    out.println(String.format("    %s", e.getMessage()));
+                    e.printStackTrace(out);
+                    resultByPipeline = new HashMap<>();
+                    for(Pipeline pipeline : round) { resultByPipeline.put(pipeline, ConvertCsvOrXlsx.RunResult.NOTHING_TO_DO); }
+                }
+                Metrics.lastPassTimestamp.set(System.currentTimeMillis() / 1000);
+
+                for(Pipeline pipeline : pipelines) {
+                    if(pipeline.archiving != null && pipeline.archiving.isDone()) {
+                        out.print(pipeline.archiveLog.toString());
+                        pipeline.archiving = null;
+                    }
+                    if(pipeline.config.archiveDir != null && pipeline.archiving == null && Archiver.isDue(pipeline.config)) {
+                        pipeline.archiveLog = new ByteArrayOutputStream();
+                        PrintStream archiveOut = new PrintStream(pipeline.archiveLog, true);
+                        pipeline.archiving = archiver.submit(() -> ConvertCsvOrXlsx.archive(pipeline.config, archiveOut));
+                    }
+                }
+
+                now = System.currentTimeMillis();
+                for(Map.Entry<Pipeline, ConvertCsvOrXlsx.RunResult> entry : resultByPipeline.entrySet()) {
+                    Pipeline pipeline = entry.getKey();
+                    switch(entry.getValue()) {
+                        case FILE_PROCESSED:
+                            // there may be more reports queued up behind this one
+                            pipeline.dueMillis = now;
+                            break;
+                        case FILE_NOT_READY:
+                            pipeline.dueMillis = now + Math.min(NOT_READY_RETRY_MILLIS, TimeUnit.SECONDS.toMillis(pipeline.config.daemonPollSeconds));
+                            break;
+                        default:
+                            pipeline.dueMillis = now + TimeUnit.SECONDS.toMillis(pipeline.config.daemonPollSeconds);
+                            break;
+                    }
+                }
+
+            }
+
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            out.println();
+            out.println(String.format("%s - daemon interrupted, exiting", new Date()));
+        }
+        finally {
+            executor.shutdownNow();
+            archiver.shutdownNow();
+        }
+
+    }
+
+    private void register(WatchService watchService, File dir) throws IOException {
+        dir.toPath().register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    /**
+     * Blocks until a watched directory changes (and then goes quiet for
+     * QUIET_MILLIS) or until timeoutMillis passes. Returns false on timeout.
+     * A directory that never goes quiet (say, a report Epic writes slowly)
+     * holds the pass off for no longer than timeoutMillis or the shortest
+     * poll interval, whichever comes first.
+     */
+    private boolean awaitChange(WatchService watchService, long timeoutMillis) throws InterruptedException {
+
+        long pollMillis = Long.MAX_VALUE;
+        for(Pipeline pipeline : pipelines) { pollMillis = Math.min(pollMillis, TimeUnit.SECONDS.toMillis(pipeline.config.daemonPollSeconds)); }
+
+        long now = System.currentTimeMillis();
+        long timeoutAt = now + timeoutMillis;
+        long debounceEndsAt = 0;
+        boolean changed = false;
+
+        while(true) {
+            long waitMillis = changed ? Math.min(now + QUIET_MILLIS, debounceEndsAt) - now : timeoutAt - now;
+            WatchKey key = waitMillis > 0 ? watchService.poll(waitMillis, TimeUnit.MILLISECONDS) : null;
+            now = System.currentTimeMillis();
+            if(key == null) {
+                if(changed || now >= timeoutAt) {
+                    return changed;
+                }
+                continue;
+            }
+            // we don't care which file changed, convert() rescans everything
+            boolean relevant = false;
+            for(WatchEvent<?> event : key.pollEvents()) {
+                relevant |= isRelevant((Path)key.watchable(), event);
+            }
+            if(!key.reset()) {
+                out.println();
+                out.println(String.format("%s - WARNING: no longer watching %s", new Date(), (Path)key.watchable()));
+            }
+            if(relevant && !changed) {
+                changed = true;
+                debounceEndsAt = Math.min(now + pollMillis, timeoutAt);
+            }
+        }
+
+    }
+
+    // whether an event is something a pass should look at, rather than the
+    // result of a pass
+    private boolean isRelevant(Path dir, WatchEvent<?> event) {
+        if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            return true;
+        }
+        String name = ((Path)event.context()).getFileName().toString();
+        if(inboxDirs.contains(dir)) {
+            if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                return !name.endsWith(".tmp");
+            }
+            return !name.matches(OWN_FILE_NAME_REGEX);
+        }
+        return event.kind() != StandardWatchEventKinds.ENTRY_DELETE && !name.matches(OWN_FILE_NAME_REGEX);
+    }
+
+}
@@ -0,0 +1,334 @@
+package epic2sectra;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import org.apache.poi.EncryptedDocumentException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.crypt.Decryptor;
+import org.apache.poi.poifs.crypt.EncryptionInfo;
+import org.apache.poi.poifs.filesystem.FileMagic;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads the first sheet of an Epic XLSX report one row at a time with
+ * POI's event API (SAX over the sheet XML) instead of building the whole
+ * workbook in memory the way WorkbookFactory does. Password-protected
+ * reports are decrypted on the fly.
+ *
+ * Each row is handed over as an array of cell values indexed by column.
+ * Cells missing from the sheet are null, cells that are there but blank
+ * (say, styled but empty) are empty strings, as Row.getCell() would have
+ * them. Date cells are passed through as the raw Excel serial number, in
+ * the workbook's date system (see date1904 and SlideBinder), and
+ * everything else as it would be displayed in Excel.
+ *
+ * Checking a password against an agile-encrypted report costs 100,000
+ * rounds of SHA-512, so which of the passwords opened a report is
+ * remembered for its file-name pattern and that one is tried first on the
+ * next report like it. The scheduled task starts a new JVM every run, so
+ * this is kept in a small state file next to the dedup index (just the
+ * position of the password in the list, never the password itself) as
+ * well as in memory.
+ *
+ * @author Geoff
+ */
+public class XlsxReportReader implements Closeable {
+
+    public interface RowHandler {
+        void row(String[] cells);
+    }
+
+    final POIFSFileSystem fileSystem; // null if the report is not encrypted
+    final OPCPackage pkg;
+
+    // the password that opened the report, or the first password we were
+    // given if the report is not encrypted (that's how WorkbookFactory
+    // behaves, too)
+    public final String password;
+
+    // which of the passwords last opened a report, by password index file
+    // and file-name pattern (see key()), since each pipeline has its own
+    // passwords and its own file
+    static final Map<String, Integer> passwordIndexByPatternMap = new java.util.concurrent.ConcurrentHashMap<>();
+
+    // header name -> column index, with the first column always being
+    // "Slide Bar Code" since Epic uses "Container" for two different columns
+    public final Map<String, Integer> columnIndexByNameMap = new HashMap<>();
+
+    // whether the workbook counts dates from 1904 rather than 1900 (set by
+    // read, before the first row)
+    public boolean date1904 = false;
+
+    XlsxReportReader(POIFSFileSystem fileSystem, OPCPackage pkg, String password) {
+        this.fileSystem = fileSystem;
+        this.pkg = pkg;
+        this.password = password;
+    }
+
+    /**
+     * Opens the report with the first of the passwords that fits. Throws
+     * EncryptedDocumentException if none of them do.
+     */
+    public static XlsxReportReader open(File file, String... passwords) throws IOException, GeneralSecurityException, OpenXML4JException {
+        return open(file, null, passwords);
+    }
+
+    /**
+     * Same as open(File, String...), but also remembers which password
+     * worked in passwordIndexFile, unless it is null.
+     */
+    public static XlsxReportReader open(File file, File passwordIndexFile, String... passwords) throws IOException, GeneralSecurityException, OpenXML4JException {
+
+        if(FileMagic.valueOf(file) != FileMagic.OLE2) {
+            return new XlsxReportReader(null, OPCPackage.open(file, PackageAccess.READ), passwords.length > 0 ? passwords[0] : null);
+        }
+
+        // an encrypted XLSX is an OLE2 container around the real package
+        POIFSFileSystem fileSystem = new POIFSFileSystem(file, true);
+        try {
+            EncryptionInfo info = new EncryptionInfo(fileSystem);
+            Decryptor decryptor = Decryptor.getInstance(info);
+            String pattern = pattern(file);
+            for(int x : tryFirst(lastPasswordIndex(passwordIndexFile, pattern), passwords.length)) {
+                String password = passwords[x];
+                if(password != null && decryptor.verifyPassword(password)) {
+                    rememberPasswordIndex(passwordIndexFile, pattern, x);
+                    try(InputStream dataStream = decryptor.getDataStream(fileSystem)) {
+                        return new XlsxReportReader(fileSystem, OPCPackage.open(dataStream), password);
+                    }
+                }
+            }
+            throw new EncryptedDocumentException("Password incorrect");
+        }
+        catch(IOException | GeneralSecurityException | OpenXML4JException | RuntimeException e) {
+            fileSystem.close();
+            throw e;
+        }
+
+    }
+
+    // the file name with its dates and times taken out
+    // (LabSlidesOrderedMissedEUH_20230428_1150.xlsx becomes
+    // labslidesorderedmissedeuh_#_#.xlsx)
+    static String pattern(File file) {
+        return file.getName().replaceAll("[0-9]+", "#").toLowerCase();
+    }
+
+    // the positions of the passwords in the order given, but with the one
+    // that worked last time first, if there is one
+    static List<Integer> tryFirst(Integer cached, int count) {
+        List<Integer> ordered = new ArrayList<>();
+        for(int x = 0; x < count; x++) { ordered.add(x); }
+        if(cached != null && ordered.remove(cached)) {
+            ordered.add(0, cached);
+        }
+        return ordered;
+    }
+
+    // the position of the password that last opened a report like this
+    // one, from memory or else from passwordIndexFile, null if not known
+    static Integer lastPasswordIndex(File passwordIndexFile, String pattern) {
+        Integer index = passwordIndexByPatternMap.get(key(passwordIndexFile, pattern));
+        if(index == null && passwordIndexFile != null) {
+            String value = loadPasswordIndexes(passwordIndexFile).getProperty(pattern);
+            if(value != null && value.matches("[0-9]+")) {
+                index = Integer.valueOf(value);
+                passwordIndexByPatternMap.put(key(passwordIndexFile, pattern), index);
+            }
+        }
+        return index;
+    }
+
+    static void rememberPasswordIndex(File passwordIndexFile, String pattern, int index) {
+        if(Integer.valueOf(index).equals(passwordIndexByPatternMap.put(key(passwordIndexFile, pattern), index)) || passwordIndexFile == null) {
+            return;
+        }
+        // pipelines may share the file, so only one of them rewrites it at
+        // a time
+        synchronized(passwordIndexByPatternMap) {
+            Properties indexes = loadPasswordIndexes(passwordIndexFile);
+            if(String.valueOf(index).equals(indexes.getProperty(pattern))) {
+                return;
+            }
+            indexes.setProperty(pattern, String.valueOf(index));
+            File tempFile = new File(passwordIndexFile.getPath() + ".tmp");
+            try {
+                try(OutputStream outputStream = new FileOutputStream(tempFile)) {
+                    indexes.store(outputStream, "which excel password last opened a report, by file name (0 = excel-password, 1 = excel-password-bypass)");
+                }
+                Files.move(tempFile.toPath(), passwordIndexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch(IOException e) {
+                // only costs the next run some time, the passwords are all
+                // tried anyway
+            }
+        }
+    }
+
+    // the key into passwordIndexByPatternMap; a report opened without a
+    // password index file (by hand, say) only shares with others like it
+    static String key(File passwordIndexFile, String pattern) {
+        return (passwordIndexFile != null ? passwordIndexFile.getAbsolutePath() : "") + File.pathSeparator + pattern;
+    }
+
+    private static Properties loadPasswordIndexes(File passwordIndexFile) {
+        Properties indexes = new Properties();
+        if(passwordIndexFile.exists()) {
+            try(InputStream inputStream = new FileInputStream(passwordIndexFile)) {
+                indexes.load(inputStream);
+            }
+            catch(IOException e) {
+                // as if it weren't there
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Reads the header row into columnIndexByNameMap and passes every row
+     * after it to the handler.
+     */
+    public void read(RowHandler handler) throws IOException, SAXException, OpenXML4JException {
+
+        XSSFReader reader = new XSSFReader(pkg);
+        ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+        StylesTable styles = reader.getStylesTable();
+
+        try(InputStream workbookStream = reader.getWorkbookData()) {
+            XMLReader xmlReader = XMLHelper.newXMLReader();
+            xmlReader.setContentHandler(new DefaultHandler() {
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    if("workbookPr".equals(localName)) {
+                        String value = attributes.getValue("date1904");
+                        date1904 = "1".equals(value) || "true".equalsIgnoreCase(value);
+                    }
+                }
+            });
+            xmlReader.parse(new InputSource(workbookStream));
+        }
+        catch(javax.xml.parsers.ParserConfigurationException e) {
+            throw new IOException(e);
+        }
+
+        RowCollector collector = new RowCollector(handler);
+        XSSFReader.SheetIterator sheetIterator = (XSSFReader.SheetIterator)reader.getSheetsData();
+        try(InputStream sheetStream = sheetIterator.next()) {
+            XMLReader xmlReader = XMLHelper.newXMLReader();
+            xmlReader.setContentHandler(new XSSFSheetXMLHandler(styles, null, strings, collector, new RawDateFormatter(), false) {
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+                    // a cell without a value is never passed to cell(), but
+                    // it is there
+                    if("c".equals(localName) && attributes.getValue("r") != null) {
+                        collector.set(attributes.getValue("r"), "");
+                    }
+                    super.startElement(uri, localName, qName, attributes);
+                }
+            });
+            xmlReader.parse(new InputSource(sheetStream));
+        }
+        catch(javax.xml.parsers.ParserConfigurationException e) {
+            throw new IOException(e);
+        }
+
+    }
+
+    @Override
+    public void close() throws IOException {
+        pkg.revert(); // opened read-only, nothing to save
+        if(fileSystem != null) {
+            fileSystem.close();
+        }
+    }
+
+    /**
+     * Collects the cells of each row and hands complete rows over.
+     */
+    class RowCollector implements XSSFSheetXMLHandler.SheetContentsHandler {
+
+        final RowHandler handler;
+        boolean headerRow = true;
+        String[] cells = new String[32];
+
+        RowCollector(RowHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            Arrays.fill(cells, null);
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            set(cellReference, formattedValue);
+        }
+
+        void set(String cellReference, String value) {
+            int column = new CellReference(cellReference).getCol();
+            if(column >= cells.length) {
+                cells = Arrays.copyOf(cells, Math.max(column + 1, cells.length * 2));
+            }
+            cells[column] = value;
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if(headerRow) {
+                headerRow = false;
+                int firstCellNum = -1;
+                for(int x = 0; x < cells.length; x++) {
+                    if(cells[x] == null) { continue; }
+                    if(firstCellNum == -1) {
+                        firstCellNum = x;
+                        columnIndexByNameMap.put("Slide Bar Code", x); // Epic uses "Container" for two different columns
+                    }
+                    else {
+                        columnIndexByNameMap.put(cells[x], x);
+                    }
+                }
+                return;
+            }
+            handler.row(cells);
+        }
+
+    }
+
+    /**
+     * Leaves date cells as raw serial numbers so they can be turned into
+     * dates exactly as Cell.getDateCellValue() does, rather than being
+     * formatted with whatever date format the report happened to use.
+     */
+    static class RawDateFormatter extends DataFormatter {
+
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString, boolean use1904Windowing) {
+            if(DateUtil.isADateFormat(formatIndex, formatString)) {
+                return Double.toString(value);
+            }
+            return super.formatRawCellContents(value, formatIndex, formatString, use1904Windowing);
+        }
+
+    }
+
+}
@@ -0,0 +1,241 @@
+package epic2sectra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * CsvTokenizer against commons-csv 1.7 with the format the reports used to
+ * be read with: the same header map, records, values and errors. Every
+ * case is read with buffers from one byte up, so records and fields are
+ * cut off by a refill at every possible place.
+ *
+ * @author Geoff
+ */
+public class CsvTokenizerTest {
+
+    static final int[] BUFFER_SIZES = { 1, 2, 3, 5, 16, CsvTokenizer.BUFFER_SIZE };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void plain() throws IOException {
+        assertParity("a,b,c\n1,2,3\n4,5,6\n");
+    }
+
+    @Test
+    public void crlf() throws IOException {
+        assertParity("a,b,c\r\n1,2,3\r\n4,5,6\r\n");
+        assertParity("a,b,c\r1,2,3\r4,5,6");
+    }
+
+    @Test
+    public void noNewLineAtTheEnd() throws IOException {
+        assertParity("a,b,c\n1,2,3\n4,5,6");
+        assertParity("a,b,c\n1,2,");
+    }
+
+    @Test
+    public void quotedFields() throws IOException {
+        assertParity("\"a\",\"b\",\"c\"\n\"1,2\",\"line 1\nline 2\",\"\"\n\"x\",,\"\r\n\"\n");
+    }
+
+    @Test
+    public void doubledQuotes() throws IOException {
+        assertParity("a,b\n\"say \"\"hi\"\"\",\"\"\"\"\n\"\"\"\"\"\",\"a\"\"b\"\"c\"\n");
+    }
+
+    @Test
+    public void blankLines() throws IOException {
+        assertParity("\n\r\na,b\n\n1,2\r\n\r\n\n3,4\n\n\n");
+    }
+
+    @Test
+    public void emptyAndShortRecords() throws IOException {
+        assertParity("a,b,c\n,,\n1\n1,2\n,\n1,2,3,4\n");
+    }
+
+    @Test
+    public void trimming() throws IOException {
+        assertParity(" a , b\t,c \n  1  ,\t2\t, \" 3 \" \n\" x\"  ,  \"y \"\t, z\n");
+    }
+
+    @Test
+    public void notAscii() throws IOException {
+        assertParity("Name,Stain\nRenée,Grocott’s methenamine silver\n\"Müller\" ,\"PAS – D\"　\n");
+    }
+
+    @Test
+    public void duplicateContainerHeader() throws IOException {
+        assertParity(OutboxDedupTest.HEADER + "\n"
+            + "\"S23-1\",\"GI 2 Bx\",\"S23-00001\",\"S23-00001, A, 1, 1\",\"H&E\",\"MRN1\",\"E1\",\"01/02/1960\",\"O'Brien\",\"Ann \"\"Annie\"\"\",\"Female\",\"04/27/2023 0930\",\"04/28/2023 08:05 AM\"\r\n"
+            + "\"S23-2\",\"GI 2 Bx\",\"S23-00002\",\"S23-00002, A, 1, 2\",\"Trichrome\",\"MRN2\",\"E2\",\"03/04/1970\",\"Smith\",\"Bob\",\"Male\",\"\",\"04/28/2023 08:05 AM\"\r\n");
+    }
+
+    @Test
+    public void headerOnly() throws IOException {
+        assertParity("a,b,c\n");
+        assertParity("");
+    }
+
+    @Test
+    public void missingHeaderName() throws IOException {
+        assertParity("a,,b,\n1,2,3,4\n");
+    }
+
+    @Test
+    public void charactersAfterClosingQuote() throws IOException {
+        assertParity("a,b\n1,2\n\"3\"x,4\n");
+    }
+
+    @Test
+    public void unfinishedQuote() throws IOException {
+        assertParity("a,b\n1,2\n\"3,4\n5,6\n");
+    }
+
+    @Test
+    public void recordsStayValidAfterNext() throws IOException {
+
+        // a report bigger than the buffer, read through a real file
+        StringBuilder report = new StringBuilder(OutboxDedupTest.HEADER).append("\r\n");
+        for(int x = 0; x < 3000; x++) {
+            report.append(String.format("\"S23-%d\",\"GI 2 Bx\",\"S23-%05d\",\"S23-%05d, A, 1, 1\",\"H&E\",\"MRN%d\",\"E%d\",\"01/02/1960\",\"Smith\",\"Ann\",\"Female\",\"04/27/2023 0930\",\"04/28/2023 08:05 AM\"\r\n", x, x, x, x, x));
+        }
+        File file = temporaryFolder.newFile("LabSlidesOrderedTodayEUH_20230428_1150.csv");
+        Files.write(file.toPath(), report.toString().getBytes(StandardCharsets.UTF_8));
+        assertTrue(file.length() > CsvTokenizer.BUFFER_SIZE * 4);
+
+        List<CsvFields> records = new ArrayList<>();
+        try(CsvTokenizer tokenizer = CsvTokenizer.open(file, StandardCharsets.UTF_8)) {
+            while(tokenizer.next()) {
+                records.add(tokenizer.record());
+            }
+            assertEquals(CsvTokenizer.BUFFER_SIZE, tokenizer.bytes.length);
+            // closed as soon as it has all been read
+            assertTrue(tokenizer.channel == null);
+        }
+
+        assertEquals(3000, records.size());
+        for(int x = 0; x < 3000; x++) {
+            assertEquals("S23-" + x, records.get(x).get(0));
+            assertEquals(String.format("S23-%05d, A, 1, 1", x), records.get(x).get(3));
+            assertEquals("04/28/2023 08:05 AM", records.get(x).get(12));
+        }
+
+    }
+
+    @Test
+    public void longRecordGrowsTheBuffer() throws IOException {
+        char[] longField = new char[100];
+        Arrays.fill(longField, 'x');
+        String csv = "a,b\n1," + new String(longField) + "\n2,3\n";
+        assertParity(csv);
+    }
+
+    // *************************************************************************
+
+    static void assertParity(String csv) throws IOException {
+
+        List<String> expected = readWithCommonsCsv(csv);
+        for(int bufferSize : BUFFER_SIZES) {
+            assertEquals(String.format("buffer of %d bytes", bufferSize), expected, readWithTokenizer(csv, bufferSize));
+        }
+
+        // and from memory, as the benchmarks do
+        List<String> fromMemory = new ArrayList<>();
+        try {
+            CsvTokenizer tokenizer = new CsvTokenizer(csv.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+            fromMemory.add("header " + headerMap(tokenizer.headerMap));
+            readRecords(tokenizer, fromMemory);
+        }
+        catch(RuntimeException e) {
+            fromMemory.add(e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+        assertEquals("from memory", expected, fromMemory);
+
+    }
+
+    // the header map, then each record's values (and what it looks up by
+    // name), then the exception that stopped the reading, if any
+    static List<String> readWithCommonsCsv(String csv) throws IOException {
+        List<String> result = new ArrayList<>();
+        try {
+            CSVParser parser = CSVFormat.DEFAULT.withFirstRecordAsHeader()
+                .withIgnoreHeaderCase()
+                .withTrim()
+                .parse(new StringReader(csv));
+            result.add("header " + headerMap(parser.getHeaderMap()));
+            for(CSVRecord record : parser) {
+                List<String> values = new ArrayList<>();
+                for(String value : record) { values.add(value); }
+                result.add(values.toString() + lookups(parser.getHeaderMap(), name -> record.get(name)));
+            }
+        }
+        catch(RuntimeException e) {
+            result.add(e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+        return result;
+    }
+
+    static List<String> readWithTokenizer(String csv, int bufferSize) throws IOException {
+        List<String> result = new ArrayList<>();
+        try(CsvTokenizer tokenizer = new CsvTokenizer(Channels.newChannel(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8))), StandardCharsets.UTF_8, bufferSize)) {
+            result.add("header " + headerMap(tokenizer.headerMap));
+            readRecords(tokenizer, result);
+        }
+        catch(RuntimeException e) {
+            result.add(e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+        return result;
+    }
+
+    static void readRecords(CsvTokenizer tokenizer, List<String> result) {
+        while(tokenizer.next()) {
+            List<String> values = new ArrayList<>();
+            for(int x = 0; x < tokenizer.size(); x++) { values.add(tokenizer.get(x)); }
+            CsvFields record = tokenizer.record();
+            List<String> copied = new ArrayList<>();
+            for(int x = 0; x < record.size(); x++) { copied.add(record.get(x)); }
+            assertEquals(values, copied);
+            result.add(values.toString() + lookups(tokenizer.headerMap, tokenizer::get));
+        }
+        assertFalse(tokenizer.next());
+    }
+
+    static String headerMap(Map<String, Integer> headerMap) {
+        return headerMap == null ? "none" : new TreeMap<>(headerMap).toString();
+    }
+
+    interface Lookup {
+        String get(String name);
+    }
+
+    // what get(name) returns or throws for each header name, in upper case
+    // to check the case is ignored
+    static String lookups(Map<String, Integer> headerMap, Lookup lookup) {
+        StringBuilder lookups = new StringBuilder();
+        for(String name : new TreeSet<>(headerMap.keySet())) {
+            try {
+                lookups.append(" ").append(name).append("=").append(lookup.get(name.toUpperCase()));
+            }
+            catch(RuntimeException e) {
+                lookups.append(" ").append(name).append(" ").append(e.getClass().getSimpleName()).append(": ").append(e.getMessage());
+            }
+        }
+        return lookups.toString();
+    }
+
+}
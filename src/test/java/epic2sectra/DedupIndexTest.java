@@ -0,0 +1,222 @@
+package epic2sectra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The dedup index: its open addressing DayShard, the latest timestamp
+ * winning in merge, days expiring in refresh and the file format.
+ *
+ * @author Geoff
+ */
+public class DedupIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    final PrintStream out = new PrintStream(log, true);
+
+    @Test
+    public void findsEverySlideAcrossGrowth() throws IOException {
+
+        DedupIndex index = new DedupIndex(temporaryFolder.newFile());
+        for(int x = 0; x < 5000; x++) {
+            index.merge("S23-" + x, x % 2 == 0 ? "H&E" : "PAS", "20230428_0900");
+        }
+
+        assertEquals(5000, index.size());
+        // the shard started with 64 slots
+        assertTrue(index.shardByDay.get("20230428").keyOffsets.length >= 8192);
+        for(int x = 0; x < 5000; x++) {
+            DedupIndex.Entry entry = index.get("S23-" + x);
+            assertNotNull("S23-" + x, entry);
+            assertEquals(x % 2 == 0 ? "H&E" : "PAS", entry.stain);
+            assertEquals("20230428_0900", entry.fileNameTimestamp);
+        }
+        for(int x = 5000; x < 6000; x++) {
+            assertNull(index.get("S23-" + x));
+        }
+
+    }
+
+    @Test
+    public void removeShiftsTheRestOfTheRunBack() {
+
+        // the hashes are given, so the keys collide on purpose: a run from
+        // slot 5 to 9, and one that wraps around from slot 62 to slot 1
+        DedupIndex.DayShard shard = new DedupIndex.DayShard("20230428");
+        int[] hashes = { 5, 5, 6, 5, 8, 62, 63, 62, 0 };
+        for(int x = 0; x < hashes.length; x++) {
+            shard.put(key(x), hashes[x], x, (short)900);
+        }
+
+        for(int removed : new int[] { 1, 6, 0 }) {
+            shard.remove(shard.find(key(removed), hashes[removed]));
+            assertEquals(-1, shard.find(key(removed), hashes[removed]));
+        }
+
+        assertEquals(hashes.length - 3, shard.count);
+        for(int x : new int[] { 2, 3, 4, 5, 7, 8 }) {
+            int slot = shard.find(key(x), hashes[x]);
+            assertTrue("key " + x, slot != -1);
+            assertEquals(x, shard.stainIds[slot]);
+        }
+
+    }
+
+    @Test
+    public void movingSlidesToLaterDaysKeepsTheRestFindable() {
+
+        DedupIndex index = new DedupIndex(new File(temporaryFolder.getRoot(), "epic2sectra.dedup"));
+        for(int x = 0; x < 2000; x++) {
+            index.merge("S23-" + x, "H&E", "20230427_0900");
+        }
+        // every third slide is sent again the next day, which takes it out
+        // of the first day's shard
+        for(int x = 0; x < 2000; x += 3) {
+            index.merge("S23-" + x, "H&E", "20230428_0900");
+        }
+
+        assertEquals(2000, index.size());
+        for(int x = 0; x < 2000; x++) {
+            assertEquals("S23-" + x, x % 3 == 0 ? "20230428_0900" : "20230427_0900", index.get("S23-" + x).fileNameTimestamp);
+        }
+
+    }
+
+    @Test
+    public void latestTimestampWins() {
+
+        DedupIndex index = new DedupIndex(new File(temporaryFolder.getRoot(), "epic2sectra.dedup"));
+
+        index.merge("S23-1", "H&E", "20230428_0900");
+        index.merge("S23-1", "PAS", "20230428_0800"); // earlier the same day
+        assertEntry(index, "S23-1", "H&E", "20230428_0900");
+
+        index.merge("S23-1", "PAS", "20230428_0900"); // same time
+        assertEntry(index, "S23-1", "H&E", "20230428_0900");
+
+        index.merge("S23-1", "GMS", "20230428_1100"); // later the same day
+        assertEntry(index, "S23-1", "GMS", "20230428_1100");
+
+        index.merge("S23-1", "Iron", "20230427_2300"); // the day before
+        assertEntry(index, "S23-1", "GMS", "20230428_1100");
+
+        index.merge("S23-1", "H&E", "20230429_0100"); // the day after
+        assertEntry(index, "S23-1", "H&E", "20230429_0100");
+        assertEquals(0, index.shardByDay.get("20230428").count);
+
+        assertEquals(1, index.size());
+
+    }
+
+    @Test
+    public void refreshDropsDaysOutsideTheWindow() throws IOException {
+
+        DedupIndex index = new DedupIndex(new File(temporaryFolder.getRoot(), "epic2sectra.dedup"));
+        index.merge("S23-1", "H&E", "20230401_0900");
+        index.merge("S23-2", "H&E", "20230426_0900");
+        index.merge("S23-3", "H&E", "20230428_0900");
+        index.fileNameTimestampByManifestName.put("LabSlidesOrderedTodayEUH_20230401_0900.csv.sectra_20230401_0905.csv", "20230401_0900");
+        index.fileNameTimestampByManifestName.put("LabSlidesOrderedTodayEUH_20230428_0900.csv.sectra_20230428_0905.csv", "20230428_0900");
+
+        index.refresh(temporaryFolder.newFolder("Processed"), Arrays.asList("20230428", "20230427", "20230426"), out);
+
+        assertNull(index.get("S23-1"));
+        assertNotNull(index.get("S23-2"));
+        assertNotNull(index.get("S23-3"));
+        assertEquals(2, index.size());
+        assertEquals(1, index.manifestCount());
+        assertTrue(index.dirty);
+
+    }
+
+    @Test
+    public void savesAndLoads() throws IOException {
+
+        File indexFile = new File(temporaryFolder.getRoot(), "epic2sectra.dedup");
+        DedupIndex index = new DedupIndex(indexFile);
+        for(int x = 0; x < 300; x++) {
+            index.merge("S23-" + x, x % 3 == 0 ? "H&E" : "Trichrome", "20230427_0900");
+        }
+        for(int x = 0; x < 300; x += 2) {
+            index.merge("S23-" + x, "PAS", "20230428_1150"); // leaves gaps behind
+        }
+        index.merge("S23-é", "H&E", "20230428_0005"); // not ASCII
+        index.fileNameTimestampByManifestName.put("LabSlidesOrderedTodayEUH_20230428_1150.csv.sectra_20230428_1152.csv", "20230428_1150");
+        index.save();
+        assertTrue(!index.dirty);
+
+        DedupIndex loaded = DedupIndex.load(indexFile, out);
+
+        assertEquals(index.size(), loaded.size());
+        assertEquals(index.manifestCount(), loaded.manifestCount());
+        assertEquals("20230428_1150", loaded.fileNameTimestampByManifestName.get("LabSlidesOrderedTodayEUH_20230428_1150.csv.sectra_20230428_1152.csv"));
+        for(int x = 0; x < 300; x++) {
+            DedupIndex.Entry entry = index.get("S23-" + x);
+            assertEntry(loaded, "S23-" + x, entry.stain, entry.fileNameTimestamp);
+        }
+        assertEntry(loaded, "S23-é", "H&E", "20230428_0005");
+        assertNull(loaded.get("S23-300"));
+        assertTrue(!loaded.dirty);
+        assertEquals("", log.toString());
+
+    }
+
+    @Test
+    public void startsEmptyIfTheFileIsCorrupt() throws IOException {
+
+        File indexFile = new File(temporaryFolder.getRoot(), "epic2sectra.dedup");
+        Files.write(indexFile.toPath(), "not an index".getBytes(StandardCharsets.UTF_8));
+
+        DedupIndex index = DedupIndex.load(indexFile, out);
+
+        assertEquals(0, index.size());
+        assertEquals(0, index.manifestCount());
+        assertTrue(log.toString().contains("WARNING: dedup index could not be read and will be rebuilt"));
+
+    }
+
+    @Test
+    public void startsEmptyIfTheFileIsCutShort() throws IOException {
+
+        File indexFile = new File(temporaryFolder.getRoot(), "epic2sectra.dedup");
+        DedupIndex index = new DedupIndex(indexFile);
+        for(int x = 0; x < 100; x++) {
+            index.merge("S23-" + x, "H&E", "20230428_0900");
+        }
+        index.save();
+        byte[] bytes = Files.readAllBytes(indexFile.toPath());
+        Files.write(indexFile.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+
+        DedupIndex loaded = DedupIndex.load(indexFile, out);
+
+        assertEquals(0, loaded.size());
+        assertNull(loaded.get("S23-1"));
+        assertTrue(log.toString().contains("WARNING: dedup index could not be read and will be rebuilt"));
+
+    }
+
+    static byte[] key(int x) {
+        return DedupIndex.key("S23-" + x);
+    }
+
+    static void assertEntry(DedupIndex index, String slideBarCode, String stain, String fileNameTimestamp) {
+        DedupIndex.Entry entry = index.get(slideBarCode);
+        assertNotNull(slideBarCode, entry);
+        assertEquals(stain, entry.stain);
+        assertEquals(fileNameTimestamp, entry.fileNameTimestamp);
+    }
+
+}
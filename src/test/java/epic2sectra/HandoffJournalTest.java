@@ -0,0 +1,263 @@
+package epic2sectra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * HandoffJournal.recover() after a crash at each point of a send: after
+ * BEGIN, after some of the parts of a split manifest have MOVED, and
+ * after the last MOVED but before DONE.
+ *
+ * @author Geoff
+ */
+public class HandoffJournalTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    File reportDir;
+    File inboxDir;
+    File report;
+    File renamedReport;
+    HandoffJournal journal;
+    final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    final PrintStream out = new PrintStream(log, true);
+
+    @Before
+    public void setUp() throws IOException {
+        reportDir = temporaryFolder.newFolder("Epic_report");
+        inboxDir = temporaryFolder.newFolder("Inbox");
+        report = write(new File(reportDir, "LabSlidesOrderedTodayEUH_20230428_1150.csv"), "report");
+        renamedReport = new File(reportDir, "LabSlidesOrderedTodayEUH_20230428_1150.SENT_TO_SECTRA_003.csv");
+        journal = new HandoffJournal(temporaryFolder.newFile("epic2sectra.journal"));
+    }
+
+    @Test
+    public void nothingToRecover() throws IOException {
+        journal.recover(out);
+        assertTrue(report.exists());
+        assertEquals("", log.toString());
+    }
+
+    @Test
+    public void afterBeginRollsBack() throws IOException {
+
+        List<HandoffJournal.Handoff> handoffs = begin(1);
+
+        journal.recover(out);
+
+        assertFalse(handoffs.get(0).manifest.exists());
+        assertFalse(handoffs.get(0).inboxTarget.exists());
+        assertTrue(report.exists());
+        assertFalse(renamedReport.exists());
+        assertTrue(log.toString().contains("the manifest never reached the Sectra inbox"));
+        assertJournalEmpty();
+
+    }
+
+    @Test
+    public void afterBeginOfEveryPartRollsBack() throws IOException {
+
+        List<HandoffJournal.Handoff> handoffs = begin(3);
+
+        journal.recover(out);
+
+        for(HandoffJournal.Handoff handoff : handoffs) {
+            assertFalse(handoff.manifest.exists());
+            assertFalse(handoff.inboxTarget.exists());
+        }
+        assertTrue(report.exists());
+        assertJournalEmpty();
+
+    }
+
+    @Test
+    public void afterBeginBeforeTheSplitFinishedRollsBack() throws IOException {
+
+        // the parts are journaled, then written one at a time, and the
+        // manifest they are split from is deleted last
+        File manifest = write(new File(reportDir, report.getName() + ".sectra_20230428_1152.csv"), "manifest");
+        File part1 = write(new File(reportDir, report.getName() + ".sectra_20230428_1152.part1of2.csv"), "part 1");
+        File part2 = new File(reportDir, report.getName() + ".sectra_20230428_1152.part2of2.csv");
+        journal.begin(new HandoffJournal.Handoff(report, part1, new File(inboxDir, part1.getName()), renamedReport));
+        journal.begin(new HandoffJournal.Handoff(report, part2, new File(inboxDir, part2.getName()), renamedReport));
+
+        journal.recover(out);
+
+        assertFalse(manifest.exists());
+        assertFalse(part1.exists());
+        assertEquals(0, inboxDir.list().length);
+        assertTrue(report.exists());
+        assertJournalEmpty();
+
+    }
+
+    @Test
+    public void afterMoveBeforeMovedIsJournaledFinishes() throws IOException {
+
+        List<HandoffJournal.Handoff> handoffs = begin(1);
+        HandoffJournal.moveIntoInbox(handoffs.get(0).manifest, handoffs.get(0).inboxTarget);
+
+        journal.recover(out);
+
+        assertInbox(handoffs);
+        assertFalse(report.exists());
+        assertTrue(renamedReport.exists());
+        assertJournalEmpty();
+
+    }
+
+    @Test
+    public void afterSomeMovedMovesTheRest() throws IOException {
+
+        List<HandoffJournal.Handoff> handoffs = begin(3);
+        move(handoffs.get(0));
+
+        journal.recover(out);
+
+        assertInbox(handoffs);
+        assertTrue(log.toString().contains("moved the rest of the manifest to the Sectra inbox"));
+        assertFalse(report.exists());
+        assertTrue(renamedReport.exists());
+        assertJournalEmpty();
+
+    }
+
+    @Test
+    public void afterLastMovedRenamesTheReport() throws IOException {
+
+        List<HandoffJournal.Handoff> handoffs = begin(2);
+        for(HandoffJournal.Handoff handoff : handoffs) {
+            move(handoff);
+        }
+
+        journal.recover(out);
+
+        assertInbox(handoffs);
+        assertFalse(report.exists());
+        assertTrue(renamedReport.exists());
+        assertTrue(log.toString().contains("the Epic report was renamed to prevent future processing"));
+        assertJournalEmpty();
+
+    }
+
+    @Test
+    public void afterLastMovedWithSectraDoneAlreadyRenamesTheReport() throws IOException {
+
+        // Sectra has already taken the manifest out of the inbox
+        List<HandoffJournal.Handoff> handoffs = begin(1);
+        move(handoffs.get(0));
+        Files.delete(handoffs.get(0).inboxTarget.toPath());
+
+        journal.recover(out);
+
+        assertFalse(report.exists());
+        assertTrue(renamedReport.exists());
+        assertJournalEmpty();
+
+    }
+
+    @Test
+    public void copyLeftBehindIsDeleted() throws IOException {
+
+        // a copy into an inbox on another volume got as far as the rename
+        // but not the delete of the original
+        List<HandoffJournal.Handoff> handoffs = begin(1);
+        Files.copy(handoffs.get(0).manifest.toPath(), handoffs.get(0).inboxTarget.toPath());
+        write(HandoffJournal.inboxTempFile(handoffs.get(0).inboxTarget), "half a copy");
+
+        journal.recover(out);
+
+        assertInbox(handoffs);
+        assertFalse(HandoffJournal.inboxTempFile(handoffs.get(0).inboxTarget).exists());
+        assertTrue(renamedReport.exists());
+        assertJournalEmpty();
+
+    }
+
+    @Test
+    public void afterDoneLeavesEverythingAlone() throws IOException {
+
+        List<HandoffJournal.Handoff> handoffs = begin(1);
+        move(handoffs.get(0));
+        Files.move(report.toPath(), renamedReport.toPath());
+        journal.done(handoffs.get(0));
+
+        journal.recover(out);
+
+        assertInbox(handoffs);
+        assertTrue(renamedReport.exists());
+        assertEquals("", log.toString());
+        assertJournalEmpty();
+
+    }
+
+    @Test
+    public void tornLastLineIsIgnored() throws IOException {
+
+        List<HandoffJournal.Handoff> handoffs = begin(1);
+        move(handoffs.get(0));
+        try(FileOutputStream journalOutputStream = new FileOutputStream(journal.journalFile, true)) {
+            journalOutputStream.write("DONE\t".getBytes(StandardCharsets.UTF_8));
+        }
+
+        journal.recover(out);
+
+        assertInbox(handoffs);
+        assertTrue(renamedReport.exists());
+        assertJournalEmpty();
+
+    }
+
+    // writes the parts (each holding its own name) next to the report and
+    // journals BEGIN for each, as sendManifest does before the first move
+    List<HandoffJournal.Handoff> begin(int parts) throws IOException {
+        List<HandoffJournal.Handoff> handoffs = new ArrayList<>();
+        for(int x = 1; x <= parts; x++) {
+            String name = report.getName() + ".sectra_20230428_1152" + (parts > 1 ? String.format(".part%dof%d", x, parts) : "") + ".csv";
+            File manifest = write(new File(reportDir, name), name);
+            HandoffJournal.Handoff handoff = new HandoffJournal.Handoff(report, manifest, new File(inboxDir, name), renamedReport);
+            journal.begin(handoff);
+            handoffs.add(handoff);
+        }
+        return handoffs;
+    }
+
+    void move(HandoffJournal.Handoff handoff) throws IOException {
+        HandoffJournal.moveIntoInbox(handoff.manifest, handoff.inboxTarget);
+        journal.moved(handoff);
+    }
+
+    void assertInbox(List<HandoffJournal.Handoff> handoffs) throws IOException {
+        for(HandoffJournal.Handoff handoff : handoffs) {
+            assertFalse(handoff.manifest.exists());
+            assertTrue(handoff.inboxTarget.exists());
+            assertEquals(handoff.inboxTarget.getName(), read(handoff.inboxTarget));
+        }
+        assertEquals(handoffs.size(), inboxDir.list().length);
+    }
+
+    void assertJournalEmpty() {
+        assertEquals(0, journal.journalFile.length());
+    }
+
+    static File write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,72 @@
+package epic2sectra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The inbox budget counts each part of a split manifest as a manifest.
+ *
+ * @author Geoff
+ */
+public class InboxBudgetTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        ConvertCsvOrXlsx.clock = Clock.systemDefaultZone();
+    }
+
+    @Test
+    public void countsEveryPart() throws IOException {
+
+        ConvertCsvOrXlsx.clock = Clock.fixed(Instant.parse("2023-04-28T09:00:00Z"), ZoneId.of("UTC"));
+        File ledgerFile = new File(temporaryFolder.getRoot(), "epic2sectra.budget");
+        InboxBudget budget = InboxBudget.load(ledgerFile, 4, 0, 60);
+
+        // an empty window takes anything
+        assertTrue(budget.allows(6, 1800));
+
+        // a report split into three parts
+        for(int slides : new int[] { 300, 300, 120 }) {
+            budget.record(slides);
+        }
+        assertEquals(1, budget.manifestsRemaining());
+        assertTrue(budget.allows(1, 300));
+        assertFalse(budget.allows(2, 600));
+        budget.save();
+
+        // the next run, still in the window
+        ConvertCsvOrXlsx.clock = Clock.fixed(Instant.parse("2023-04-28T09:30:00Z"), ZoneId.of("UTC"));
+        assertEquals(1, InboxBudget.load(ledgerFile, 4, 0, 60).manifestsRemaining());
+
+        // and after it
+        ConvertCsvOrXlsx.clock = Clock.fixed(Instant.parse("2023-04-28T10:01:00Z"), ZoneId.of("UTC"));
+        assertEquals(4, InboxBudget.load(ledgerFile, 4, 0, 60).manifestsRemaining());
+
+    }
+
+    @Test
+    public void limitsSlides() throws IOException {
+
+        InboxBudget budget = new InboxBudget(new File(temporaryFolder.getRoot(), "epic2sectra.budget"), 0, 1000, 60);
+        budget.record(300);
+        budget.record(300);
+        assertTrue(budget.allows(2, 400));
+        assertFalse(budget.allows(2, 401));
+        assertEquals(Integer.MAX_VALUE, budget.manifestsRemaining());
+
+    }
+
+}
@@ -0,0 +1,158 @@
+package epic2sectra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Splitting a manifest over the size limit into parts.
+ *
+ * @author Geoff
+ */
+public class ManifestSplitterTest {
+
+    static final String NAME = "LabSlidesOrderedPriorDayEUH_20230428_0600.csv.sectra_20230428_0605";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void keepsAccessionsTogether() throws IOException {
+
+        // a limit of 5: S23-4 has more slides than a part can hold
+        File manifest = manifest("S23-1", 3, "S23-2", 2, "S23-3", 4, "S23-4", 7, "S23-5", 1);
+        ManifestSplitter splitter = new ManifestSplitter(manifest, 5);
+        splitter.write();
+
+        List<List<String>> parts = accessions(splitter.partFiles);
+        assertEquals(Arrays.asList(
+            Arrays.asList("S23-1", "S23-1", "S23-1", "S23-2", "S23-2"),
+            Arrays.asList("S23-3", "S23-3", "S23-3", "S23-3"),
+            Arrays.asList("S23-4", "S23-4", "S23-4", "S23-4", "S23-4"),
+            Arrays.asList("S23-4", "S23-4", "S23-5")), parts);
+
+        // every slide exactly once, in the order of the manifest
+        List<String> slides = new ArrayList<>();
+        for(File partFile : splitter.partFiles) {
+            List<String> lines = Files.readAllLines(partFile.toPath(), ManifestWriter.CHARSET);
+            assertEquals(Slide.toManifestHeaderString(), lines.get(0));
+            slides.addAll(lines.subList(1, lines.size()));
+        }
+        assertEquals(lines("S23-1", 3, "S23-2", 2, "S23-3", 4, "S23-4", 7, "S23-5", 1), slides);
+
+    }
+
+    @Test
+    public void namesThePartsNofM() throws IOException {
+
+        File manifest = manifest("S23-1", 2, "S23-2", 2, "S23-3", 2);
+        ManifestSplitter splitter = new ManifestSplitter(manifest, 2);
+
+        assertEquals(Arrays.asList(NAME + ".part1of3.csv", NAME + ".part2of3.csv", NAME + ".part3of3.csv"), names(splitter.partFiles));
+        for(File partFile : splitter.partFiles) {
+            assertEquals(manifest, ManifestSplitter.splitFrom(partFile));
+            assertTrue(FileDiscovery.parseManifestName(partFile) != null);
+        }
+        assertEquals(manifest, ManifestSplitter.splitFrom(manifest));
+
+    }
+
+    @Test
+    public void padsThePartNumbersToSortByName() throws IOException {
+
+        Object[] accessions = new Object[24];
+        for(int x = 0; x < 12; x++) {
+            accessions[x * 2] = "S23-" + x;
+            accessions[x * 2 + 1] = 1;
+        }
+        ManifestSplitter splitter = new ManifestSplitter(manifest(accessions), 1);
+
+        List<String> names = names(splitter.partFiles);
+        assertEquals(NAME + ".part01of12.csv", names.get(0));
+        assertEquals(NAME + ".part10of12.csv", names.get(9));
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        assertEquals(names, sorted);
+
+    }
+
+    @Test
+    public void deletesTheManifestOnlyAfterEveryPart() throws IOException {
+
+        File manifest = manifest("S23-1", 2, "S23-2", 2, "S23-3", 2);
+        ManifestSplitter splitter = new ManifestSplitter(manifest, 2);
+
+        // planning writes nothing
+        assertTrue(manifest.exists());
+        for(File partFile : splitter.partFiles) {
+            assertFalse(partFile.exists());
+        }
+
+        // the third part can't be written
+        assertTrue(splitter.partFiles.get(2).mkdir());
+        try {
+            splitter.write();
+            fail();
+        }
+        catch(IOException e) {
+            assertTrue(manifest.exists());
+        }
+
+        assertTrue(splitter.partFiles.get(2).delete());
+        splitter.write();
+        assertFalse(manifest.exists());
+        for(File partFile : splitter.partFiles) {
+            assertTrue(partFile.exists());
+        }
+
+    }
+
+    // a manifest with the given number of slides for each accession
+    File manifest(Object... accessionsAndCounts) throws IOException {
+        File manifest = new File(temporaryFolder.getRoot(), NAME + ".csv");
+        List<String> lines = new ArrayList<>();
+        lines.add(Slide.toManifestHeaderString());
+        lines.addAll(lines(accessionsAndCounts));
+        Files.write(manifest.toPath(), lines, ManifestWriter.CHARSET);
+        return manifest;
+    }
+
+    static List<String> lines(Object... accessionsAndCounts) {
+        List<String> lines = new ArrayList<>();
+        for(int x = 0; x < accessionsAndCounts.length; x += 2) {
+            String accNo = (String)accessionsAndCounts[x];
+            for(int y = 1; y <= (Integer)accessionsAndCounts[x + 1]; y++) {
+                lines.add(String.format("\"%s-%d\",\"GI 2 Bx\",\"%s\",\"A\",\"1\",\"%d\",\"H&E\",\"MRN1\",\"E1\",\"1960-01-02\",\"Smith\",\"Ann\",\"Female\",\"2023-04-27 09:30:00\",\"2023-04-28 08:05:00\"", accNo, y, accNo, y));
+            }
+        }
+        return lines;
+    }
+
+    static List<List<String>> accessions(List<File> partFiles) throws IOException {
+        List<List<String>> parts = new ArrayList<>();
+        for(File partFile : partFiles) {
+            List<String> accNos = new ArrayList<>();
+            List<String> lines = Files.readAllLines(partFile.toPath(), ManifestWriter.CHARSET);
+            for(String line : lines.subList(1, lines.size())) {
+                accNos.add(ManifestSplitter.accNo(line).replace("\"", ""));
+            }
+            parts.add(accNos);
+        }
+        return parts;
+    }
+
+    static List<String> names(List<File> files) {
+        List<String> names = new ArrayList<>();
+        for(File file : files) { names.add(file.getName()); }
+        return names;
+    }
+
+}
@@ -0,0 +1,160 @@
+package epic2sectra;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.*;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Two "Today" reports for the same day, the second a superset of the
+ * first, converted by two scheduled runs with an outbox while Sectra
+ * hasn't processed the first manifest yet. The second manifest must only
+ * hold the slides that are new in the second report, whether the first
+ * manifest is still in the outbox or already in the inbox, and even if
+ * the dedup index file is lost in between.
+ *
+ * @author Geoff
+ */
+public class OutboxDedupTest {
+
+    static final String HEADER = "\"Container\",\"Specialty\",\"Specimen/Case ID\",\"Container\",\"Task\",\"MRN\",\"Patient Enterprise ID\",\"Birth Date\",\"Patient Last Name\",\"Patient First Name\",\"Gender\",\"Collected\",\"Ordered Instant\"";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    File reportDir;
+    File inboxDir;
+    File processedDir;
+    File outboxDir;
+    Configuration config;
+    PrintStream out;
+
+    @Before
+    public void setUp() throws IOException {
+
+        File root = temporaryFolder.getRoot();
+        reportDir = temporaryFolder.newFolder("Epic_report");
+        inboxDir = temporaryFolder.newFolder("Inbox");
+        processedDir = temporaryFolder.newFolder("Processed");
+        outboxDir = new File(root, "Outbox");
+
+        Properties props = new Properties();
+        props.setProperty("services", "GI 2 Bx");
+        props.setProperty("epic-report-dir", reportDir.getPath());
+        props.setProperty("epic-missed-report-dir", temporaryFolder.newFolder("Epic_missed_slide_report").getPath());
+        props.setProperty("sectra-inbox-dir", inboxDir.getPath());
+        props.setProperty("sectra-processed-dir", processedDir.getPath());
+        props.setProperty("report-file-name-lookback-days", "2");
+        props.setProperty("processed-file-name-lookback-days", "20");
+        props.setProperty("no-unstained", "yes");
+        props.setProperty("stain-regex", "^Send.*");
+        props.setProperty("excel-password", "unused");
+        props.setProperty("excel-password-bypass", "unused");
+        props.setProperty("file-readiness", "rename");
+        props.setProperty("outbox-dir", outboxDir.getPath());
+
+        out = new PrintStream(new FileOutputStream(new File(root, "epic2sectra.log")), true);
+        config = ConvertCsvOrXlsx.configure(props, null, new File(root, "epic2sectra.properties"), new File(root, "epic2sectra.log"), false, out);
+
+    }
+
+    @After
+    public void tearDown() {
+        ConvertCsvOrXlsx.clock = Clock.systemDefaultZone();
+        out.close();
+    }
+
+    @Test
+    public void firstManifestInInbox() throws Exception {
+        convertTwoReports(false, false);
+    }
+
+    @Test
+    public void firstManifestInInboxWithoutIndexFile() throws Exception {
+        convertTwoReports(false, true);
+    }
+
+    @Test
+    public void firstManifestInOutbox() throws Exception {
+        convertTwoReports(true, false);
+    }
+
+    @Test
+    public void firstManifestInOutboxWithoutIndexFile() throws Exception {
+        convertTwoReports(true, true);
+    }
+
+    void convertTwoReports(boolean inboxBusy, boolean loseIndexFile) throws Exception {
+
+        if(inboxBusy) {
+            // another manifest Sectra hasn't taken yet, so ours stays in the
+            // outbox
+            try(PrintStream manifest = new PrintStream(new FileOutputStream(new File(inboxDir, "LabSlidesOrderedPriorDayEUH_20230428_0600.csv.sectra_20230428_0605.csv")), true, "UTF-8")) {
+                manifest.println("\"slideBarCode\",\"stain\"");
+                manifest.println("\"P23-1\",\"H&E\"");
+            }
+        }
+
+        writeReport(new File(reportDir, "LabSlidesOrderedTodayEUH_20230428_0900.csv"), "S23-", 3);
+        run(LocalDateTime.of(2023, 4, 28, 9, 5));
+        assertEquals(Arrays.asList("S23-1", "S23-2", "S23-3"), slidesIn(manifest("_0900.csv")));
+
+        if(loseIndexFile) {
+            config.dedupIndexFile.delete();
+        }
+
+        writeReport(new File(reportDir, "LabSlidesOrderedTodayEUH_20230428_1100.csv"), "S23-", 5);
+        run(LocalDateTime.of(2023, 4, 28, 11, 5));
+        assertEquals(Arrays.asList("S23-4", "S23-5"), slidesIn(manifest("_1100.csv")));
+
+    }
+
+    void run(LocalDateTime now) throws IOException {
+        ConvertCsvOrXlsx.clock = Clock.fixed(now.atZone(ZoneId.systemDefault()).toInstant(), ZoneId.systemDefault());
+        // a new dedup index for each run, as in a new JVM
+        assertEquals(ConvertCsvOrXlsx.RunResult.FILE_PROCESSED, ConvertCsvOrXlsx.convert(config, DedupIndex.load(config.dedupIndexFile, out), out));
+    }
+
+    // an Epic report with one slide per case, numbered from 1 to count
+    static void writeReport(File file, String barCodePrefix, int count) throws IOException {
+        try(PrintStream report = new PrintStream(new FileOutputStream(file), true, "UTF-8")) {
+            report.println(HEADER);
+            for(int x = 1; x <= count; x++) {
+                report.println(String.format("\"%s%d\",\"GI 2 Bx\",\"%s%05d\",\"%s%05d, A, 1, 1\",\"H&E\",\"MRN%d\",\"E%d\",\"01/02/1960\",\"Smith\",\"Ann\",\"Female\",\"04/27/2023 0930\",\"04/28/2023 08:05 AM\"", barCodePrefix, x, barCodePrefix, x, barCodePrefix, x, x, x));
+            }
+        }
+    }
+
+    // the manifest for the Epic report whose name ends in reportNameSuffix,
+    // wherever it is waiting
+    File manifest(String reportNameSuffix) {
+        for(File dir : new File[] { outboxDir, inboxDir, processedDir }) {
+            for(File file : dir.listFiles()) {
+                if(file.getName().contains(reportNameSuffix + ".sectra_")) {
+                    return file;
+                }
+            }
+        }
+        throw new AssertionError(String.format("no manifest for %s", reportNameSuffix));
+    }
+
+    static List<String> slidesIn(File manifest) throws IOException {
+        List<String> slideBarCodes = new ArrayList<>();
+        try(CsvTokenizer records = CsvTokenizer.open(manifest, ManifestWriter.CHARSET)) {
+            while(records.next()) {
+                slideBarCodes.add(records.get("slideBarCode"));
+            }
+        }
+        Collections.sort(slideBarCodes);
+        return slideBarCodes;
+    }
+
+}
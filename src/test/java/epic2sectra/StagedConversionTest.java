@@ -0,0 +1,175 @@
+package epic2sectra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A report converted with staged-conversion=yes gives the same manifest
+ * and counts as converted on one thread, and a stage that dies of an
+ * Error fails the conversion instead of leaving it waiting forever.
+ *
+ * @author Geoff
+ */
+public class StagedConversionTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    Configuration config;
+    PrintStream out;
+
+    @Before
+    public void setUp() throws IOException {
+
+        File root = temporaryFolder.getRoot();
+
+        Properties props = new Properties();
+        props.setProperty("services", "GI 2 Bx");
+        props.setProperty("epic-report-dir", temporaryFolder.newFolder("Epic_report").getPath());
+        props.setProperty("epic-missed-report-dir", temporaryFolder.newFolder("Epic_missed_slide_report").getPath());
+        props.setProperty("sectra-inbox-dir", temporaryFolder.newFolder("Inbox").getPath());
+        props.setProperty("sectra-processed-dir", temporaryFolder.newFolder("Processed").getPath());
+        props.setProperty("report-file-name-lookback-days", "2");
+        props.setProperty("processed-file-name-lookback-days", "20");
+        props.setProperty("no-unstained", "yes");
+        props.setProperty("stain-regex", "^Send.*");
+        props.setProperty("excel-password", "unused");
+        props.setProperty("excel-password-bypass", "unused");
+
+        out = new PrintStream(new FileOutputStream(new File(root, "epic2sectra.log")), true);
+        config = ConvertCsvOrXlsx.configure(props, null, new File(root, "epic2sectra.properties"), new File(root, "epic2sectra.log"), false, out);
+
+    }
+
+    @After
+    public void tearDown() {
+        out.close();
+    }
+
+    @Test
+    public void sameManifestAndCountsAsOneThread() throws Exception {
+
+        // many batches' worth of rows, with some of each kind of row the
+        // stages treat differently
+        StringBuilder report = new StringBuilder(OutboxDedupTest.HEADER).append("\r\n");
+        for(int x = 0; x < StagedConversion.BATCH_ROWS * 5 + 17; x++) {
+            String service = x % 7 == 0 ? "Derm" : "GI 2 Bx";
+            String stain = x % 11 == 0 ? "Unstained" : x % 13 == 0 ? "Send Out" : x % 10 == 0 ? "PAS" : "H&E";
+            String mrn = x % 17 == 0 ? "" : "MRN" + x;
+            String birthDate = x % 19 == 0 ? "1960-01-02" : "01/02/1960";
+            report.append(String.format("\"S23-%d\",\"%s\",\"S23-%05d\",\"S23-%05d, A, 1, %d\",\"%s\",\"%s\",\"E%d\",\"%s\",\"Smith\",\"Ann\",\"Female\",\"04/27/2023 0930\",\"04/28/2023 08:05 AM\"\r\n",
+                x, service, x / 3, x / 3, x, stain, mrn, x, birthDate));
+        }
+        File file = temporaryFolder.newFile("LabSlidesOrderedTodayEUH_20230428_1150.csv");
+        Files.write(file.toPath(), report.toString().getBytes(StandardCharsets.UTF_8));
+
+        config.stagedConversion = false;
+        Conversion sequential = convert(file, "one_thread");
+        config.stagedConversion = true;
+        Conversion staged = convert(file, "staged");
+
+        assertEquals(counts(sequential), counts(staged));
+        assertArrayEquals(Files.readAllBytes(sequential.manifestFile.toPath()), Files.readAllBytes(staged.manifestFile.toPath()));
+        // every kind of row was there
+        for(String count : counts(sequential)) {
+            assertFalse(count, count.endsWith("=0") || count.endsWith("=[]"));
+        }
+
+    }
+
+    @Test(timeout = 30000)
+    public void errorInTheReadStageIsThrown() throws Exception {
+
+        OutOfMemoryError error = new OutOfMemoryError("test");
+        try {
+            StagedConversion.run(batcher -> { throw error; }, () -> null, conversion("read"));
+            fail();
+        }
+        catch(OutOfMemoryError e) {
+            assertSame(error, e);
+        }
+
+    }
+
+    @Test(timeout = 30000)
+    public void errorInTheBindStageIsThrown() throws Exception {
+
+        OutOfMemoryError error = new OutOfMemoryError("test");
+        try {
+            StagedConversion.run(batcher -> {
+                for(int x = 0; x < StagedConversion.BATCH_ROWS * 2; x++) {
+                    batcher.add(new String[] { "S23-" + x });
+                }
+            }, () -> { throw error; }, conversion("bind"));
+            fail();
+        }
+        catch(OutOfMemoryError e) {
+            assertSame(error, e);
+        }
+
+    }
+
+    @Test(timeout = 30000)
+    public void stageThatStopsWithoutItsLastBatchIsThrown() throws Exception {
+
+        CompletableFuture<Void> stage = new CompletableFuture<>();
+        stage.completeExceptionally(new OutOfMemoryError("test"));
+        try {
+            StagedConversion.take(new ArrayBlockingQueue<>(StagedConversion.QUEUE_BATCHES), stage);
+            fail();
+        }
+        catch(OutOfMemoryError e) {
+            assertEquals("test", e.getMessage());
+        }
+
+    }
+
+    Conversion convert(File file, String name) throws Exception {
+        Conversion conversion = conversion(name);
+        try {
+            ConvertCsvOrXlsx.readReport(file, conversion, config);
+        }
+        finally {
+            conversion.close();
+        }
+        return conversion;
+    }
+
+    // the slides with x % 5 == 0 were sent in an earlier report, all as H&E
+    Conversion conversion(String name) throws IOException {
+        DedupIndex dedupIndex = new DedupIndex(new File(temporaryFolder.getRoot(), name + ".dedup"));
+        for(int x = 0; x < StagedConversion.BATCH_ROWS * 6; x += 5) {
+            dedupIndex.merge("S23-" + x, "H&E", "20230428_0900");
+        }
+        return new Conversion(new File(temporaryFolder.getRoot(), name + ".csv"), "20230428_1150", config.filterEngine, dedupIndex);
+    }
+
+    static List<String> counts(Conversion conversion) {
+        return Arrays.asList(
+            "rowsProcessed=" + conversion.rowsProcessed,
+            "rowsSkipped=" + conversion.rowsSkipped,
+            "rowsSkippedError=" + conversion.rowsSkippedError,
+            "rowsSkippedService=" + conversion.rowsSkippedService,
+            "rowsSkippedUnstained=" + conversion.rowsSkippedUnstained,
+            "rowsSkippedStainRegex=" + conversion.rowsSkippedStainRegex,
+            "rowsSkippedDuplicate=" + conversion.rowsSkippedDuplicate,
+            "rowsStainUpdateAllowed=" + conversion.rowsStainUpdateAllowed,
+            "errorSet=" + new TreeSet<>(conversion.errorSet),
+            "filteredStainSet=" + new TreeSet<>(conversion.filteredStainSet));
+    }
+
+}
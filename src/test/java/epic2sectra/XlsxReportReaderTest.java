@@ -0,0 +1,82 @@
+package epic2sectra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.*;
+import java.util.*;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Remembering which excel password opened a report: each pipeline, with
+ * its own passwords and its own password index file, only sees what it
+ * remembered itself.
+ *
+ * @author Geoff
+ */
+public class XlsxReportReaderTest {
+
+    static final String PATTERN = XlsxReportReader.pattern(new File("LabSlidesOrderedMissedEUH_20230428_1150.xlsx"));
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        XlsxReportReader.passwordIndexByPatternMap.clear();
+    }
+
+    @Test
+    public void triesTheLastPasswordFirst() {
+        assertEquals(Arrays.asList(0, 1, 2), XlsxReportReader.tryFirst(null, 3));
+        assertEquals(Arrays.asList(2, 0, 1), XlsxReportReader.tryFirst(2, 3));
+        assertEquals(Arrays.asList(0, 1), XlsxReportReader.tryFirst(5, 2)); // the list got shorter
+    }
+
+    @Test
+    public void pipelinesDontShare() throws IOException {
+
+        File gi = new File(temporaryFolder.getRoot(), "epic2sectra.gi.passwords");
+        File derm = new File(temporaryFolder.getRoot(), "epic2sectra.derm.passwords");
+
+        XlsxReportReader.rememberPasswordIndex(gi, PATTERN, 1);
+        assertEquals(Integer.valueOf(1), XlsxReportReader.lastPasswordIndex(gi, PATTERN));
+        assertNull(XlsxReportReader.lastPasswordIndex(derm, PATTERN));
+        assertNull(XlsxReportReader.lastPasswordIndex(null, PATTERN));
+
+        // the same index for the second pipeline is still written to its
+        // own file
+        XlsxReportReader.rememberPasswordIndex(derm, PATTERN, 1);
+        assertEquals("1", load(derm).getProperty(PATTERN));
+        assertEquals("1", load(gi).getProperty(PATTERN));
+
+        XlsxReportReader.rememberPasswordIndex(derm, PATTERN, 0);
+        assertEquals("0", load(derm).getProperty(PATTERN));
+        assertEquals(Integer.valueOf(1), XlsxReportReader.lastPasswordIndex(gi, PATTERN));
+
+    }
+
+    @Test
+    public void readsTheFileOfAnEarlierRun() throws IOException {
+
+        File passwordIndexFile = new File(temporaryFolder.getRoot(), "epic2sectra.passwords");
+        XlsxReportReader.rememberPasswordIndex(passwordIndexFile, PATTERN, 1);
+        XlsxReportReader.passwordIndexByPatternMap.clear(); // a new JVM
+
+        assertEquals(Integer.valueOf(1), XlsxReportReader.lastPasswordIndex(passwordIndexFile, PATTERN));
+        assertNull(XlsxReportReader.lastPasswordIndex(passwordIndexFile, XlsxReportReader.pattern(new File("Other_20230428_1150.xlsx"))));
+
+    }
+
+    static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        try(InputStream inputStream = new FileInputStream(file)) {
+            properties.load(inputStream);
+        }
+        return properties;
+    }
+
+}